@@ -12,13 +12,23 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -30,6 +40,7 @@ import org.hbase.async.Bytes;
 import org.hbase.async.HBaseRpc;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.Scanner;
 
 import net.opentsdb.stats.StatsCollector;
 
@@ -37,7 +48,8 @@ import net.opentsdb.stats.StatsCollector;
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
+ * to this queue, which is effectively a set sorted by base time (see
+ * {@link PendingRows}).  There is a separate
  * thread that periodically goes through the queue and look for "old rows" to
  * compact.  A row is considered "old" if the timestamp in the row key is
  * older than a certain threshold.
@@ -49,21 +61,46 @@ import net.opentsdb.stats.StatsCollector;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * So that the rows pending compaction aren't forgotten when the TSD is
+ * restarted, the queue can be checkpointed to a local file, periodically
+ * and on shutdown, and reloaded at startup.  This is enabled by setting the
+ * {@code tsd.compaction.checkpoint_dir} system property.  The queue can
+ * also be rebuilt at startup by scanning the rows of the last few hours,
+ * if {@code tsd.compaction.rebuild_hours} is set, which is useful after a
+ * crash.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
-  private final AtomicInteger size = new AtomicInteger();
+  /** Directory in which to checkpoint the queue, or {@code null}.  */
+  private static final String CHECKPOINT_DIR =
+    System.getProperty("tsd.compaction.checkpoint_dir");
+
+  /** How frequently the queue is checkpointed.  */
+  private static final int CHECKPOINT_INTERVAL =
+    Integer.getInteger("tsd.compaction.checkpoint_interval", 60);  // seconds
+
+  /** Name of the checkpoint file in {@link #CHECKPOINT_DIR}.  */
+  private static final String CHECKPOINT_FILE = "compactionq";
+
+  /** First bytes of a checkpoint file.  */
+  private static final int CHECKPOINT_MAGIC = 0x43515545;  // "CQUE"
+
+  /** How many hours worth of rows to scan at startup, 0 to not do it.  */
+  private static final int REBUILD_HOURS =
+    Integer.getInteger("tsd.compaction.rebuild_hours", 0);
+
+  /** The rows to compact.  */
+  private final PendingRows rows;
 
   private final AtomicLong trivial_compactions = new AtomicLong();
   private final AtomicLong complex_compactions = new AtomicLong();
   private final AtomicLong written_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
+  private final AtomicLong checkpoints = new AtomicLong();
+  private final AtomicLong checkpoint_errors = new AtomicLong();
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -76,23 +113,26 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
+    rows = new PendingRows(metric_width);
     if (TSDB.enable_compactions) {
+      restore();
+      if (REBUILD_HOURS > 0) {
+        final Rebuild rebuild = new Rebuild();
+        rebuild.setDaemon(true);
+        rebuild.start();
+      }
       startCompactionThread();
     }
   }
 
-  @Override
   public int size() {
-    return size.get();
+    return rows.size();
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
-    }
+    rows.add(row);
   }
 
   /**
@@ -122,13 +162,122 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return;
     }
     // The remaining stats only make sense with compactions enabled.
+    final int size = rows.size();
+    final long memory = rows.memoryUsage();
     collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.memory", memory);
+    collector.record("compaction.queue.bytes_per_row",
+                     size == 0 ? 0 : memory / size);
+    final long oldest = rows.oldestBaseTime();
+    collector.record("compaction.queue.lag", oldest < 0 ? 0
+                     : System.currentTimeMillis() / 1000 - oldest);
+    collector.record("compaction.inflight",
+                     MAX_CONCURRENT_FLUSHES - inflight.availablePermits());
+    collector.record("compaction.rpc_rate", (long) pacer.rate);
+    collector.record("compaction.latency", pacer.latency);
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (CHECKPOINT_DIR != null) {
+      collector.record("compaction.checkpoints", checkpoints);
+      collector.record("compaction.checkpoint.errors", checkpoint_errors);
+    }
+  }
+
+  /**
+   * Saves all the rows of the queue to the checkpoint file, if enabled.
+   * <p>
+   * The file is written under a temporary name and then renamed, so a
+   * crash while checkpointing leaves the previous checkpoint intact.
+   * Errors are logged, not thrown.
+   */
+  synchronized void checkpoint() {
+    if (CHECKPOINT_DIR == null) {
+      return;
+    }
+    final long start = System.currentTimeMillis();
+    final File file = new File(CHECKPOINT_DIR, CHECKPOINT_FILE);
+    final File tmp = new File(CHECKPOINT_DIR, CHECKPOINT_FILE + ".tmp");
+    FileOutputStream fos = null;
+    try {
+      fos = new FileOutputStream(tmp);
+      final CRC32 crc = new CRC32();
+      final DataOutputStream out = new DataOutputStream(
+        new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeShort(metric_width);
+      final int nrows = rows.writeTo(out);
+      out.writeLong(crc.getValue());
+      out.flush();
+      fos.getFD().sync();
+      fos.close();
+      fos = null;
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to rename " + tmp + " to " + file);
+      }
+      checkpoints.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Checkpointed " + nrows + " rows to compact in "
+                  + (System.currentTimeMillis() - start) + "ms");
+      }
+    } catch (IOException e) {
+      checkpoint_errors.incrementAndGet();
+      LOG.error("Failed to checkpoint the compaction queue to " + tmp, e);
+    } finally {
+      if (fos != null) {
+        try {
+          fos.close();
+        } catch (IOException e) {
+          LOG.error("Failed to close " + tmp, e);
+        }
+      }
+    }
+  }
+
+  /** Loads the rows saved in the checkpoint file, if there's one.  */
+  private void restore() {
+    if (CHECKPOINT_DIR == null) {
+      return;
+    }
+    final File file = new File(CHECKPOINT_DIR, CHECKPOINT_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = null;
+    try {
+      final CRC32 crc = new CRC32();
+      in = new DataInputStream(new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(file)), crc));
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        throw new IOException("Not a checkpoint of the compaction queue");
+      }
+      final short width = in.readShort();
+      if (width != metric_width) {
+        throw new IOException("Checkpoint written with metric IDs on "
+                              + width + " bytes instead of " + metric_width);
+      }
+      final int nrows = rows.readFrom(in);
+      final long checksum = crc.getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Checksum mismatch, the " + nrows
+                              + " rows restored may be bogus");
+      }
+      LOG.info("Restored " + nrows + " rows to compact from " + file);
+    } catch (IOException e) {
+      LOG.error("Failed to restore the compaction queue from " + file
+                + ", some rows may never be compacted", e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.error("Failed to close " + file, e);
+        }
+      }
+    }
   }
 
   /**
@@ -146,32 +295,13 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     if (maxflushes == 0) {  // Because size() might be 0.
       return Deferred.fromResult(new ArrayList<Object>(0));
     }
+    final int batch = Math.min(maxflushes, MAX_CONCURRENT_FLUSHES);
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>(batch);
+    final int nflushes = rows.poll(cut_off, batch, polled);
+    maxflushes -= nflushes;
     final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes,
-                                               MAX_CONCURRENT_FLUSHES));
-    int nflushes = 0;
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      final long base_time = Bytes.getUnsignedInt(row, metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == MAX_CONCURRENT_FLUSHES) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
-      }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
-      }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
+      new ArrayList<Deferred<Object>>(nflushes);
+    for (final byte[] row : polled) {
       ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
@@ -205,7 +335,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
     public Object call(final ArrayList<KeyValue> row) {
-      return compact(row, null);
+      return compact(row, null, null, true);
     }
     public String toString() {
       return "compact";
@@ -220,10 +350,27 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   KeyValue compact(final ArrayList<KeyValue> row) {
     final KeyValue[] compacted = { null };
-    compact(row, compacted);
+    compact(row, compacted, null, true);
     return compacted[0];
   }
 
+  /**
+   * Compacts a row and writes it back to HBase right away, however recent
+   * the row is.
+   * @param row The row containing all the KVs to compact.  Must be non-null.
+   * Cells that must not be deleted are removed from it.
+   * @param stored If non-null, the first item in the array will be set to
+   * the cell the row is made of once compacted, if it needed compacting.
+   * @return A {@link Deferred} if the compaction processed required a write
+   * or a delete, otherwise {@code null}.  Unlike the compactions done by
+   * the queue, a compaction that HBase asks us to throttle isn't retried
+   * later: the {@link PleaseThrottleException} is passed to the caller.
+   */
+  Deferred<Object> compactNow(final ArrayList<KeyValue> row,
+                              final KeyValue[] stored) {
+    return compact(row, null, stored, false);
+  }
+
   /**
    * Compacts a row into a single {@link KeyValue}.
    * <p>
@@ -237,17 +384,29 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * a {@link KeyValue} containing the compacted form of this row.
    * If non-null, we will also not write the compacted form back to HBase
    * unless the timestamp in the row key is old enough.
+   * @param stored_cell If non-null, the first item in the array will be set
+   * to the cell written back to HBase (or already there), if any.
+   * @param requeue If {@code true}, the row is put back in the queue when
+   * HBase asks us to throttle, otherwise the {@link PleaseThrottleException}
+   * is passed to the caller, and the {@link Deferred} of the deletes is
+   * returned when there's nothing to write.
    * @return A {@link Deferred} if the compaction processed required a write
    * to HBase, otherwise {@code null}.
    */
   private Deferred<Object> compact(final ArrayList<KeyValue> row,
-                                   final KeyValue[] compacted) {
+                                   final KeyValue[] compacted,
+                                   final KeyValue[] stored_cell,
+                                   final boolean requeue) {
     if (row.size() <= 1) {
       if (row.isEmpty()) {  // Maybe the row got deleted in the mean time?
         LOG.debug("Attempted to compact a row that doesn't exist.");
       } else if (compacted != null) {
         // no need to re-compact rows containing a single value.
         KeyValue kv = row.get(0);
+        if (CompressedCell.isCompressed(kv)) {
+          compacted[0] = CompressedCell.decompress(kv);
+          return null;
+        }
         final byte[] qual = kv.qualifier();
         if (qual.length % 2 != 0 || qual.length == 0) {
           // Right now we expect all qualifiers to have an even number of
@@ -275,6 +434,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // logic required to compact it is more complex.
     boolean write = true;  // Do we need to write a compacted cell?
     final KeyValue compact;
+    final KeyValue stored;  // What we write, maybe the compressed `compact'.
     {
       boolean trivial = true;  // Are we doing a trivial compaction?
       int qual_len = 0;  // Pre-compute the size of the qualifier we'll need.
@@ -291,6 +451,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // partially compacted set of cells, with the rest.
         final int len = qual.length;
         if (len != 2) {
+          if (CompressedCell.isCompressed(kv)) {
+            trivial = false;
+            qual_len += CompressedCell.numValues(kv) * 2;
+            continue;
+          }
           // Right now we expect all qualifiers to have an even number of
           // bytes.  If we find one with an odd number of bytes, or an empty
           // qualifier (which is possible), just skip it, we don't know what
@@ -345,13 +510,17 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // the case where this KV is an old, incorrectly encoded floating
         // point value that needs to be fixed.  This is guaranteed to not
         // recurse again.
-        return compact(row, compacted);
+        return compact(row, compacted, stored_cell, requeue);
       } else if (trivial) {
         trivial_compactions.incrementAndGet();
         compact = trivialCompact(row, qual_len, val_len);
+        stored = CompressedCell.enabled
+          ? CompressedCell.compress(compact) : compact;
       } else {
         complex_compactions.incrementAndGet();
         compact = complexCompact(row, qual_len / 2);
+        stored = CompressedCell.enabled
+          ? CompressedCell.compress(compact) : compact;
         // Now it's vital that we check whether the compact KV has the same
         // qualifier as one of the qualifiers that were already in the row.
         // Otherwise we might do a `put' in this cell, followed by a delete.
@@ -361,9 +530,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // Optimization: since we kept track of which KV had the longest
         // qualifier, we can opportunistically check here if it happens to
         // have the same qualifier as the one we just created.
-        final byte[] qual = compact.qualifier();
+        // A compressed cell keeps the same qualifier as long as its first
+        // and last data points don't change, so always look for it.
+        final byte[] qual = stored.qualifier();
         final byte[] longest_qual = longest.qualifier();
-        if (qual.length <= longest_qual.length) {
+        if (qual.length <= longest_qual.length || stored != compact) {
           KeyValue dup = null;
           int dup_idx = -1;
           if (Bytes.equals(longest_qual, qual)) {
@@ -388,7 +559,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           if (dup != null) {
             // So we did find an existing KV with the same qualifier.
             // Let's check if, by chance, the value is the same too.
-            if (Bytes.equals(dup.value(), compact.value())) {
+            if (Bytes.equals(dup.value(), stored.value())) {
               // Since the values are the same, we don't need to write
               // anything.  There's already a properly compacted version of
               // this row in TSDB.
@@ -416,21 +587,29 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return null;
     }
 
+    if (stored_cell != null) {
+      stored_cell[0] = stored;
+    }
     final byte[] key = compact.key();
     //LOG.debug("Compacting row " + Arrays.toString(key));
     deleted_cells.addAndGet(row.size());  // We're going to delete this.
     if (write) {
-      final byte[] qual = compact.qualifier();
-      final byte[] value = compact.value();
+      final byte[] qual = stored.qualifier();
+      final byte[] value = stored.value();
       written_cells.incrementAndGet();
       return tsdb.put(key, qual, value)
-        .addCallbacks(new DeleteCompactedCB(row), handle_write_error);
+        .addCallbacks(new DeleteCompactedCB(row, requeue ? handle_delete_error
+                                                 : report_delete_error),
+                      requeue ? handle_write_error : report_write_error);
     } else {
       // We had nothing to write, because one of the cells is already the
       // correctly compacted version, so we can go ahead and delete the
       // individual cells directly.
-      new DeleteCompactedCB(row).call(null);
-      return null;
+      if (requeue) {
+        new DeleteCompactedCB(row, handle_delete_error).call(null);
+        return null;
+      }
+      return new DeleteCompactedCB(row, report_delete_error).call(null);
     }
   }
 
@@ -690,7 +869,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   private static ArrayList<Cell> breakDownValues(final ArrayList<KeyValue> row,
                                                  final int estimated_nvalues) {
     final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
+    for (KeyValue kv : row) {
+      if (CompressedCell.isCompressed(kv)) {
+        kv = CompressedCell.decompress(kv);
+      }
       final byte[] qual = kv.qualifier();
       final int len = qual.length;
       final byte[] val = kv.value();
@@ -751,8 +933,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     private final byte[] key;
     private final byte[] family;
     private final byte[][] qualifiers;
+    private final HandleErrorCB errback;
 
-    public DeleteCompactedCB(final ArrayList<KeyValue> cells) {
+    public DeleteCompactedCB(final ArrayList<KeyValue> cells,
+                             final HandleErrorCB errback) {
+      this.errback = errback;
       final KeyValue first = cells.get(0);
       key = first.key();
       family = first.family();
@@ -762,8 +947,8 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
     }
 
-    public Object call(final Object arg) {
-      return tsdb.delete(key, qualifiers).addErrback(handle_delete_error);
+    public Deferred<Object> call(final Object arg) {
+      return tsdb.delete(key, qualifiers).addErrback(errback);
     }
 
     public String toString() {
@@ -775,6 +960,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   private final HandleErrorCB handle_read_error = new HandleErrorCB("read");
   private final HandleErrorCB handle_write_error = new HandleErrorCB("write");
   private final HandleErrorCB handle_delete_error = new HandleErrorCB("delete");
+  /** Errbacks for {@link #compactNow}, which let the caller retry.  */
+  private final HandleErrorCB report_write_error =
+    new HandleErrorCB("write", false);
+  private final HandleErrorCB report_delete_error =
+    new HandleErrorCB("delete", false);
 
   /**
    * Callback to handle exceptions during the compaction process.
@@ -784,17 +974,33 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     private volatile int errors;
 
     private final String what;
+    /** Whether rows throttled by HBase are put back in the queue.  */
+    private final boolean requeue;
 
     /**
      * Constructor.
      * @param what String describing what kind of operation (e.g. "read").
      */
     public HandleErrorCB(final String what) {
+      this(what, true);
+    }
+
+    /**
+     * Constructor.
+     * @param what String describing what kind of operation (e.g. "read").
+     * @param requeue If {@code false}, a {@link PleaseThrottleException} is
+     * passed through instead of putting the row back in the queue.
+     */
+    public HandleErrorCB(final String what, final boolean requeue) {
       this.what = what;
+      this.requeue = requeue;
     }
 
     public Object call(final Exception e) {
       if (e instanceof PleaseThrottleException) {  // HBase isn't keeping up.
+        if (!requeue) {
+          return e;  // Our caller will deal with it.
+        }
         final HBaseRpc rpc = ((PleaseThrottleException) e).getFailedRpc();
         if (rpc instanceof HBaseRpc.HasKey) {
           // We failed to compact this row.  Whether it's because of a failed
@@ -819,8 +1025,6 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
   /** Starts a compaction thread.  Only one such thread is needed.  */
   private void startCompactionThread() {
     final Thrd thread = new Thrd();
@@ -829,20 +1033,227 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /** How frequently the compaction thread wakes up flush stuff.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_INTERVAL = 10;  // seconds
+  private static final int FLUSH_INTERVAL =
+    Integer.getInteger("tsd.compaction.flush_interval", 10);  // seconds
 
   /** Minimum number of rows we'll attempt to compact at once.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MIN_FLUSH_THRESHOLD = 100;  // rows
+  private static final int MIN_FLUSH_THRESHOLD =
+    Integer.getInteger("tsd.compaction.min_flush_threshold", 100);  // rows
 
   /** Maximum number of rows we'll compact concurrently.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MAX_CONCURRENT_FLUSHES = 10000;  // rows
+  private static final int MAX_CONCURRENT_FLUSHES =
+    Math.max(1, Integer.getInteger("tsd.compaction.max_concurrent_flushes",
+                                   10000));  // rows
 
   /** If this is X then we'll flush X times faster than we really need.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_SPEED = 2;  // multiplicative factor
+  private static final int FLUSH_SPEED =
+    Integer.getInteger("tsd.compaction.flush_speed", 2);  // factor
+
+  /** Maximum number of compaction RPCs per second, 0 for unlimited.  */
+  private static final int MAX_RPC_RATE =
+    Integer.getInteger("tsd.compaction.max_rpc_rate", 0);
+
+  /**
+   * Average latency of the reads of the compactions above which we slow
+   * down, in milliseconds.  0 to never slow down.
+   */
+  private static final int TARGET_LATENCY =
+    Integer.getInteger("tsd.compaction.target_latency", 100);
+
+  /** Number of RPCs we account for per row: a get, a put and a delete.  */
+  private static final int RPCS_PER_COMPACTION = 3;
+
+  /** How many rows the compaction thread takes off the queue at once.  */
+  private static final int POLL_BATCH = 1000;
+
+  /** Number of compactions in flight, started by the compaction thread.  */
+  private final Semaphore inflight = new Semaphore(MAX_CONCURRENT_FLUSHES);
+
+  /** Paces the compactions started by the compaction thread.  */
+  private final Pacer pacer = new Pacer();
+
+  /**
+   * Flushes old rows, respecting the limits on concurrency and on the rate
+   * of RPCs.  Blocks until all the compactions have been started, but
+   * doesn't wait for them to complete.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   * @param maxflushes How many rows to flush off the queue at most.
+   * @return The number of compactions started.
+   * @throws InterruptedException if interrupted while waiting, in which
+   * case the rows not compacted yet are put back in the queue.
+   */
+  private int pacedFlush(final long cut_off, final int maxflushes)
+    throws InterruptedException {
+    final ArrayList<byte[]> batch = new ArrayList<byte[]>(POLL_BATCH);
+    int started = 0;
+    while (started < maxflushes) {
+      batch.clear();
+      final int n = rows.poll(cut_off,
+                              Math.min(POLL_BATCH, maxflushes - started),
+                              batch);
+      if (n == 0) {
+        break;
+      }
+      for (int i = 0; i < n; i++) {
+        try {
+          pacer.acquire(RPCS_PER_COMPACTION);
+          inflight.acquire();
+        } catch (InterruptedException e) {
+          for (int j = i; j < n; j++) {
+            rows.add(batch.get(j));
+          }
+          throw e;
+        }
+        tsdb.get(batch.get(i))
+          .addBoth(new RecordLatencyCB<ArrayList<KeyValue>>())
+          .addCallbacks(compactcb, handle_read_error)
+          .addBoth(release_inflight);
+        started++;
+      }
+    }
+    return started;
+  }
+
+  /**
+   * Records the latency of the read of a row to compact, whether it
+   * succeeded or not, and passes its result (or its exception) through.
+   * The type parameter is erased, so unlike a callback declared on
+   * {@code ArrayList<KeyValue>} there's no cast that would fail on errors.
+   */
+  private final class RecordLatencyCB<T> implements Callback<T, T> {
+    private final long start = System.nanoTime();
+    public T call(final T arg) {
+      pacer.recordLatency(System.nanoTime() - start);
+      return arg;
+    }
+    public String toString() {
+      return "record compaction read latency";
+    }
+  }
+
+  private final ReleaseInflightCB release_inflight = new ReleaseInflightCB();
+
+  /** Called once a compaction started by the compaction thread is done.  */
+  private final class ReleaseInflightCB implements Callback<Object, Object> {
+    public Object call(final Object arg) {
+      inflight.release();
+      return arg;
+    }
+    public String toString() {
+      return "release compaction slot";
+    }
+  }
+
+  /**
+   * Token bucket limiting the rate of compaction RPCs.
+   * <p>
+   * The rate starts at {@link #MAX_RPC_RATE}, unlimited by default.  Every
+   * {@link #FLUSH_INTERVAL} we look at the average latency of the reads done
+   * by the compactions: if it's above {@link #TARGET_LATENCY}, HBase is
+   * struggling so we halve the rate (starting from the rate observed during
+   * the interval when it was unlimited), otherwise we increase it by a tenth
+   * of its ceiling, until we're back to {@link #MAX_RPC_RATE}.  The ceiling
+   * is {@link #MAX_RPC_RATE} if it's set, otherwise the rate observed when
+   * we started slowing down, so that with the default settings compactions
+   * are only slowed down while HBase is struggling, and never capped to a
+   * fixed rate that could fall behind the write load.
+   * <p>
+   * Only the compaction thread acquires tokens, so only the latency
+   * accounting needs to be thread-safe.
+   */
+  private static final class Pacer {
+
+    /** Current rate, in RPCs per second, 0 or less if unlimited.  */
+    private volatile double rate = MAX_RPC_RATE;
+    /** Rate up to which we speed up again after slowing down.  */
+    private double ceiling = MAX_RPC_RATE;
+    /** Number of tokens taken since the last adjustment.  */
+    private long acquired;
+    /** Tokens currently available, at most a second worth.  */
+    private double tokens;
+    private long last_refill = System.nanoTime();
+    private long last_adjust = System.nanoTime();
+
+    /** Sum of the latencies recorded since the last adjustment, in ns.  */
+    private final AtomicLong latency_sum = new AtomicLong();
+    private final AtomicLong latency_count = new AtomicLong();
+    /** Average latency seen during the last interval, in ms.  */
+    private volatile long latency;
+
+    /**
+     * Waits until the given number of tokens are available, and takes them.
+     */
+    void acquire(final int ntokens) throws InterruptedException {
+      acquired += ntokens;
+      while (true) {
+        final long now = System.nanoTime();
+        if (now - last_adjust >= FLUSH_INTERVAL * 1000000000L) {
+          adjust(now - last_adjust);
+          last_adjust = now;
+        }
+        final double current = rate;
+        if (current <= 0) {
+          tokens = 0;
+          last_refill = now;
+          return;
+        }
+        tokens = Math.min(current,
+                          tokens + (now - last_refill) * current / 1e9);
+        last_refill = now;
+        if (tokens >= ntokens) {
+          tokens -= ntokens;
+          return;
+        }
+        final long wait = (long) ((ntokens - tokens) * 1e9 / current);
+        TimeUnit.NANOSECONDS.sleep(Math.max(wait, 1000000));
+      }
+    }
+
+    void recordLatency(final long nanos) {
+      latency_sum.addAndGet(nanos);
+      latency_count.incrementAndGet();
+    }
+
+    /**
+     * Adapts the rate to the latency observed since the last call.
+     * @param elapsed Time since the last call, in nanoseconds.
+     */
+    private void adjust(final long elapsed) {
+      final double observed = acquired * 1e9 / elapsed;
+      acquired = 0;
+      final long count = latency_count.getAndSet(0);
+      final long sum = latency_sum.getAndSet(0);
+      if (count == 0) {
+        return;
+      }
+      latency = sum / count / 1000000;
+      if (TARGET_LATENCY <= 0) {
+        return;
+      }
+      if (latency > TARGET_LATENCY) {
+        double current = rate;
+        if (current <= 0) {
+          ceiling = Math.max(RPCS_PER_COMPACTION, observed);
+          current = ceiling;
+        }
+        final double min_rate = Math.max(RPCS_PER_COMPACTION, ceiling / 100);
+        rate = Math.max(min_rate, current / 2);
+        LOG.info("Compaction reads took " + latency + "ms on average, "
+                 + "slowing down to " + (long) rate + " RPCs/s");
+      } else if (rate > 0) {
+        final double faster = rate + ceiling / 10.0;
+        if (faster < ceiling) {
+          rate = faster;
+        } else {
+          rate = MAX_RPC_RATE;
+          if (MAX_RPC_RATE <= 0) {
+            LOG.info("Compaction reads are fast again, no longer pacing");
+          }
+        }
+      }
+    }
+
+  }
 
   /**
    * Background thread to trigger periodic compactions.
@@ -854,6 +1265,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
     public void run() {
       long last_flush = 0;
+      long last_checkpoint = System.currentTimeMillis();
       while (true) {
         try {
           final long now = System.currentTimeMillis();
@@ -879,23 +1291,36 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // or (2) we have too many rows to recompact already.
           // Note that in the case (2) we might not be able to flush anything
           // if the rows aren't old enough.
-          if (last_flush - now > Const.MAX_TIMESPAN  // (1)
-              || size > maxflushes) {                // (2)
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+          // The compactions are spread over time by pacedFlush(), instead
+          // of all being started at once.
+          if (now - last_flush > Const.MAX_TIMESPAN * 1000L  // (1)
+              || size > maxflushes) {                        // (2)
+            final int started =
+              pacedFlush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            last_flush = now;
             if (LOG.isDebugEnabled()) {
               final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
+              LOG.debug("Started " + started + " compactions in "
+                        + (System.currentTimeMillis() - now)
                         + "ms, new queue size=" + newsize
                         + " (" + (newsize - size) + ')');
             }
           }
+          if (CHECKPOINT_DIR != null
+              && System.currentTimeMillis() - last_checkpoint
+                 >= CHECKPOINT_INTERVAL * 1000L) {
+            checkpoint();
+            last_checkpoint = System.currentTimeMillis();
+          }
+        } catch (InterruptedException e) {
+          LOG.error("Compaction thread interrupted, doing one last flush", e);
+          flush();
+          return;
         } catch (Exception e) {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
+          final int sz = rows.clear();
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
@@ -928,24 +1353,65 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /**
-   * Helper to sort the byte arrays in the compaction queue.
+   * Background thread to rebuild the queue by scanning the recent rows.
    * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
+   * Every metric is scanned separately, from {@link #REBUILD_HOURS} ago to
+   * now, and all the rows made of more than one cell are added to the
+   * queue.
    */
-  private static final class Cmp implements Comparator<byte[]> {
-
-    /** On how many bytes do we encode metrics IDs.  */
-    private final short metric_width;
+  private final class Rebuild extends Thread {
+    public Rebuild() {
+      super("CompactionQueueRebuild");
+    }
 
-    public Cmp(final TSDB tsdb) {
-      metric_width = tsdb.metrics.width();
+    public void run() {
+      final long start = System.currentTimeMillis();
+      long start_time = start / 1000 - REBUILD_HOURS * 3600L;
+      start_time -= start_time % Const.MAX_TIMESPAN;
+      try {
+        final long maxid = tsdb.metrics.maxAssignedId();
+        LOG.info("Rebuilding the compaction queue from the rows of the last "
+                 + REBUILD_HOURS + " hours of " + maxid + " metrics");
+        int nrows = 0;
+        for (long id = 1; id <= maxid; id++) {
+          nrows += scan(id, start_time);
+        }
+        LOG.info("Rebuilt the compaction queue with " + nrows + " rows in "
+                 + (System.currentTimeMillis() - start) + "ms");
+      } catch (Exception e) {
+        LOG.error("Failed to rebuild the compaction queue", e);
+      }
     }
 
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, metric_width, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
+    /**
+     * Adds to the queue the rows of a metric that need to be compacted.
+     * @param id The ID of the metric.
+     * @param start_time The UNIX timestamp from which to scan.
+     * @return The number of rows added.
+     */
+    private int scan(final long id, final long start_time) throws Exception {
+      final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+      for (int i = 0; i < metric_width; i++) {
+        start_row[metric_width - 1 - i] = (byte) (id >>> (i * 8));
+      }
+      final byte[] end_row = Arrays.copyOf(start_row, start_row.length);
+      Bytes.setInt(start_row, (int) start_time, metric_width);
+      Bytes.setInt(end_row, -1, metric_width);  // The end of this metric.
+      final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+      scanner.setStartKey(start_row);
+      scanner.setStopKey(end_row);
+      scanner.setFamily(TSDB.FAMILY);
+      int nrows = 0;
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          if (row.size() > 1) {
+            add(row.get(0).key());
+            nrows++;
+          }
+        }
+      }
+      return nrows;
     }
   }
 
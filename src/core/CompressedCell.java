@@ -0,0 +1,405 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Compressed encoding of compacted cells.
+ * <p>
+ * A compacted cell normally concatenates the 2-byte qualifiers of all its
+ * data points, and all their values followed by a meta-data byte that is 0.
+ * For data points coming at regular intervals this wastes a lot of space,
+ * so the compressed encoding, inspired by Facebook's Gorilla, packs the
+ * whole row in a bit stream where:
+ * <ul>
+ *   <li>Time deltas are stored as a delta-of-delta, which takes a single bit
+ *   when data points are evenly spaced.</li>
+ *   <li>Flags take a single bit when they're the same as the previous data
+ *   point's.</li>
+ *   <li>Integers are stored as the zig-zag varint of the difference with the
+ *   previous integer.</li>
+ *   <li>Floating point values are XOR'ed with the previous one, and only the
+ *   meaningful bits of the result are stored.</li>
+ * </ul>
+ * The encoding is lossless: decompressing a cell gives back the exact
+ * qualifiers and values of the original compacted cell.
+ * <p>
+ * The meta-data byte at the end of the value is {@link #FORMAT} to tell the
+ * encodings apart.  The qualifier is made of the qualifiers of the first
+ * and last data points followed by {@link #FORMAT}: since it has an odd
+ * length, it can't collide with the qualifier of an uncompressed cell, and
+ * older versions of OpenTSDB ignore such cells instead of misreading them.
+ * <p>
+ * Writing compressed cells is disabled unless the system property
+ * {@code tsd.feature.compressed_compactions} is set to "true", but they're
+ * always readable.
+ */
+final class CompressedCell {
+
+  /** Meta-data byte that marks a compressed cell.  */
+  static final byte FORMAT = 1;
+
+  /** Whether compacted cells are written compressed.  */
+  static final boolean enabled =
+    "true".equals(System.getProperty("tsd.feature.compressed_compactions"));
+
+  /** Length of the qualifier of a compressed cell.  */
+  private static final int QUALIFIER_LENGTH = 2 + 2 + 1;
+
+  private CompressedCell() {
+    // Can't create instances of this utility class.
+  }
+
+  /** Returns whether or not the given cell is compressed.  */
+  static boolean isCompressed(final KeyValue kv) {
+    final byte[] qual = kv.qualifier();
+    final byte[] value = kv.value();
+    return qual.length == QUALIFIER_LENGTH
+      && qual[QUALIFIER_LENGTH - 1] == FORMAT
+      && value.length > 0 && value[value.length - 1] == FORMAT;
+  }
+
+  /** Returns the number of data points in a compressed cell.  */
+  static int numValues(final KeyValue kv) {
+    final byte[] value = kv.value();
+    return value.length < 3 ? 0 : Bytes.getUnsignedShort(value);
+  }
+
+  /**
+   * Compresses a compacted cell.
+   * @param kv A compacted cell in the uncompressed format.
+   * @return A compressed cell, or {@code kv} itself if it can't be
+   * compressed or if compressing it wouldn't make it any smaller.
+   */
+  static KeyValue compress(final KeyValue kv) {
+    final byte[] qual = kv.qualifier();
+    final byte[] value = kv.value();
+    final int n = qual.length / 2;
+    if (n < 2 || qual.length % 2 != 0 || value[value.length - 1] != 0) {
+      return kv;  // Not a compacted cell.
+    }
+    final BitWriter out = new BitWriter(value.length);
+    out.write(n, 16);
+    short prev_delta = 0;
+    int prev_interval = 0;
+    int prev_flags = -1;
+    long prev_integer = 0;
+    long prev_float = 0;
+    final XorState xor = new XorState();
+    int val_idx = 0;
+    for (int i = 0; i < n; i++) {
+      final short q = Bytes.getShort(qual, i * 2);
+      final short delta = (short) ((q & 0xFFFF) >>> Const.FLAG_BITS);
+      final int flags = q & Const.FLAGS_MASK;
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      if (val_idx + vlen >= value.length) {
+        return kv;  // Corrupted, leave it alone.
+      }
+      final long v = readValue(value, val_idx, vlen);
+      val_idx += vlen;
+
+      // Time.
+      if (i == 0) {
+        out.write(delta, 16 - Const.FLAG_BITS);
+      } else {
+        final int interval = delta - prev_delta;
+        writeDeltaOfDelta(out, interval - prev_interval);
+        prev_interval = interval;
+      }
+      prev_delta = delta;
+
+      // Flags.
+      if (flags == prev_flags) {
+        out.write(0, 1);
+      } else {
+        out.write(1, 1);
+        out.write(flags, Const.FLAG_BITS);
+        prev_flags = flags;
+      }
+
+      // Value.
+      if ((flags & Const.FLAG_FLOAT) == 0) {
+        writeVarint(out, zigzag(v - prev_integer));
+        prev_integer = v;
+      } else {
+        xor.write(out, v ^ prev_float);
+        prev_float = v;
+      }
+    }
+    if (val_idx != value.length - 1) {
+      return kv;  // Corrupted, leave it alone.
+    }
+    final byte[] compressed = out.toByteArray(1);
+    if (compressed.length + QUALIFIER_LENGTH >= value.length + qual.length) {
+      return kv;
+    }
+    compressed[compressed.length - 1] = FORMAT;
+    final byte[] new_qual = new byte[QUALIFIER_LENGTH];
+    System.arraycopy(qual, 0, new_qual, 0, 2);
+    System.arraycopy(qual, qual.length - 2, new_qual, 2, 2);
+    new_qual[QUALIFIER_LENGTH - 1] = FORMAT;
+    return new KeyValue(kv.key(), kv.family(), new_qual, compressed);
+  }
+
+  /**
+   * Decompresses a compressed cell.
+   * @param kv A cell for which {@link #isCompressed} returns {@code true}.
+   * @return The same compacted cell, in the uncompressed format.
+   * @throws IllegalDataException if the cell is corrupted.
+   */
+  static KeyValue decompress(final KeyValue kv) {
+    final byte[] value = kv.value();
+    final BitReader in = new BitReader(value, value.length - 1);
+    try {
+      final int n = (int) in.read(16);
+      final byte[] qual = new byte[n * 2];
+      byte[] values = new byte[n * 8 + 1];  // Values are on 8 bytes at most.
+      int val_idx = 0;
+      int delta = 0;
+      int interval = 0;
+      int flags = 0;
+      long prev_integer = 0;
+      long prev_float = 0;
+      final XorState xor = new XorState();
+      for (int i = 0; i < n; i++) {
+        if (i == 0) {
+          delta = (int) in.read(16 - Const.FLAG_BITS);
+        } else {
+          interval += readDeltaOfDelta(in);
+          delta += interval;
+        }
+        if (in.read(1) != 0) {
+          flags = (int) in.read(Const.FLAG_BITS);
+        }
+        final long v;
+        if ((flags & Const.FLAG_FLOAT) == 0) {
+          v = prev_integer + unzigzag(readVarint(in));
+          prev_integer = v;
+        } else {
+          v = prev_float ^ xor.read(in);
+          prev_float = v;
+        }
+        Bytes.setShort(qual, (short) (delta << Const.FLAG_BITS | flags), i * 2);
+        final int vlen = (flags & Const.LENGTH_MASK) + 1;
+        writeValue(values, val_idx, vlen, v);
+        val_idx += vlen;
+      }
+      if (!Bytes.equals(Arrays.copyOf(qual, 2),
+                        Arrays.copyOf(kv.qualifier(), 2))) {
+        throw new IllegalDataException("Corrupted compressed cell: first"
+          + " qualifier doesn't match in " + kv);
+      }
+      values = Arrays.copyOf(values, val_idx + 1);  // Trailing meta-data byte.
+      return new KeyValue(kv.key(), kv.family(), qual, values);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalDataException("Corrupted compressed cell: " + kv);
+    }
+  }
+
+  /** Reads a big-endian value on the given number of bytes.  */
+  private static long readValue(final byte[] buf, final int off,
+                                final int len) {
+    long v = 0;
+    for (int i = off; i < off + len; i++) {
+      v = (v << 8) | (buf[i] & 0xFF);
+    }
+    return v;
+  }
+
+  /** Writes the {@code len} least significant bytes of a value.  */
+  private static void writeValue(final byte[] buf, final int off,
+                                 final int len, long v) {
+    for (int i = off + len - 1; i >= off; i--) {
+      buf[i] = (byte) v;
+      v >>>= 8;
+    }
+  }
+
+  /**
+   * Writes a delta-of-delta with a variable-length prefix:
+   * '0' for 0, '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits,
+   * '1111' + 16 bits, each time zig-zag encoded.
+   */
+  private static void writeDeltaOfDelta(final BitWriter out, final int dod) {
+    final long z = zigzag(dod);
+    if (z == 0) {
+      out.write(0, 1);
+    } else if (z < (1 << 7)) {
+      out.write(0x2, 2);
+      out.write(z, 7);
+    } else if (z < (1 << 9)) {
+      out.write(0x6, 3);
+      out.write(z, 9);
+    } else if (z < (1 << 12)) {
+      out.write(0xE, 4);
+      out.write(z, 12);
+    } else {
+      out.write(0xF, 4);
+      out.write(z, 16);
+    }
+  }
+
+  private static int readDeltaOfDelta(final BitReader in) {
+    final long z;
+    if (in.read(1) == 0) {
+      return 0;
+    } else if (in.read(1) == 0) {
+      z = in.read(7);
+    } else if (in.read(1) == 0) {
+      z = in.read(9);
+    } else if (in.read(1) == 0) {
+      z = in.read(12);
+    } else {
+      z = in.read(16);
+    }
+    return (int) unzigzag(z);
+  }
+
+  /** Writes groups of 7 bits, each preceded by a continuation bit.  */
+  private static void writeVarint(final BitWriter out, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out.write(0x80 | (v & 0x7F), 8);
+      v >>>= 7;
+    }
+    out.write(v, 8);
+  }
+
+  private static long readVarint(final BitReader in) {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final long b = in.read(8);
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+    throw new IllegalDataException("Malformed varint in compressed cell");
+  }
+
+  private static long zigzag(final long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(final long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /**
+   * Gorilla's XOR encoding: '0' if the XOR is 0, otherwise '1' followed by
+   * '0' if its meaningful bits fit in the previous window, or by '1', the
+   * number of leading zeros (6 bits) and the number of meaningful bits
+   * minus one (6 bits).  Then come the meaningful bits.
+   */
+  private static final class XorState {
+    private int leading = -1;
+    private int trailing;
+
+    void write(final BitWriter out, final long xor) {
+      if (xor == 0) {
+        out.write(0, 1);
+        return;
+      }
+      out.write(1, 1);
+      final int lz = Long.numberOfLeadingZeros(xor);
+      final int tz = Long.numberOfTrailingZeros(xor);
+      if (leading >= 0 && lz >= leading && tz >= trailing) {
+        out.write(0, 1);
+      } else {
+        out.write(1, 1);
+        leading = lz;
+        trailing = tz;
+        out.write(lz, 6);
+        out.write(64 - lz - tz - 1, 6);
+      }
+      out.write(xor >>> trailing, 64 - leading - trailing);
+    }
+
+    long read(final BitReader in) {
+      if (in.read(1) == 0) {
+        return 0;
+      }
+      if (in.read(1) != 0) {
+        leading = (int) in.read(6);
+        trailing = 64 - leading - ((int) in.read(6) + 1);
+      } else if (leading < 0) {
+        throw new IllegalDataException("Compressed cell reuses a XOR window"
+                                       + " before defining one");
+      }
+      return in.read(64 - leading - trailing) << trailing;
+    }
+  }
+
+  /** Writes bits, most significant first.  */
+  private static final class BitWriter {
+    private byte[] buf;
+    private int bits;  // Number of bits written.
+
+    BitWriter(final int estimated_bytes) {
+      buf = new byte[Math.max(16, estimated_bytes)];
+    }
+
+    /** Writes the {@code nbits} least significant bits of {@code v}.  */
+    void write(final long v, int nbits) {
+      while (nbits > 0) {
+        final int idx = bits >>> 3;
+        if (idx == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        final int free = 8 - (bits & 7);
+        final int n = Math.min(free, nbits);
+        final int chunk = (int) (v >>> (nbits - n)) & ((1 << n) - 1);
+        buf[idx] |= chunk << (free - n);
+        bits += n;
+        nbits -= n;
+      }
+    }
+
+    /** Returns the bytes written, followed by {@code extra} 0 bytes.  */
+    byte[] toByteArray(final int extra) {
+      return Arrays.copyOf(buf, ((bits + 7) >>> 3) + extra);
+    }
+  }
+
+  /** Reads bits, most significant first.  */
+  private static final class BitReader {
+    private final byte[] buf;
+    private final int limit;  // In bits.
+    private int bits;  // Number of bits read.
+
+    BitReader(final byte[] buf, final int length) {
+      this.buf = buf;
+      this.limit = length * 8;
+    }
+
+    long read(int nbits) {
+      if (bits + nbits > limit) {
+        throw new ArrayIndexOutOfBoundsException(bits + nbits);
+      }
+      long v = 0;
+      while (nbits > 0) {
+        final int avail = 8 - (bits & 7);
+        final int n = Math.min(avail, nbits);
+        final int b = buf[bits >>> 3] & 0xFF;
+        v = (v << n) | ((b >>> (avail - n)) & ((1 << n) - 1));
+        bits += n;
+        nbits -= n;
+      }
+      return v;
+    }
+  }
+
+}
@@ -2,9 +2,11 @@ package net.opentsdb.core;
 
 import com.stumbleupon.async.Deferred;
 import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author rystsov
@@ -61,11 +63,23 @@ public class IncomingTimeShardedDataPoints implements WritableDataPointsLight {
 
 /**
  * Receives new data points and stores them in HBase.
+ * <p>
+ * When write-time compactions are enabled (see
+ * {@link TSDB#enable_write_compactions}), the data points of the current
+ * row are buffered in memory instead of being written one by one, and the
+ * row is written as a single compacted cell once we move on to the next
+ * row, or when {@link TSDB#flush} is called.  Since the row is written
+ * already compacted, it doesn't need to go through the
+ * {@link CompactionQueue}.  Data points older than the current row are
+ * written as individual cells, as usual.
  */
-final private static class IncomingDataPoints {
+static final class IncomingDataPoints {
   /** For how long to buffer edits when doing batch imports (in ms).  */
   private static final short DEFAULT_BATCH_IMPORT_BUFFER_INTERVAL = 5000;
 
+  /** Number of rows written already compacted.  */
+  static final AtomicLong write_compactions = new AtomicLong();
+
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
 
@@ -91,6 +105,13 @@ final private static class IncomingDataPoints {
   /** Number of data points in this row. */
   private short size;
 
+  /**
+   * Number of data points of this row already written to HBase, when
+   * write-time compactions are enabled.  The data points from this index
+   * on are buffered.
+   */
+  private short written;
+
   /** Are we doing a batch import? */
   private boolean batch_import;
 
@@ -111,8 +132,9 @@ final private static class IncomingDataPoints {
   }
 
   public Deferred<Object> addPoint(final long timestamp, final long value) {
-    final short flags = 0x7;  // An int stored on 8 bytes.
-    return addPointInternal(timestamp, Bytes.fromLong(value), flags);
+    final byte[] v = TSDB.encodeInteger(value);
+    final short flags = (short) (v.length - 1);  // Just the length.
+    return addPointInternal(timestamp, v, flags);
   }
 
   public Deferred<Object> addPoint(final long timestamp, final float value) {
@@ -164,7 +186,10 @@ final private static class IncomingDataPoints {
     // internal datastructures.
     row = Arrays.copyOf(row, row.length);
     Bytes.setInt(row, (int) base_time, tsdb.metrics.width());
-    tsdb.scheduleForCompaction(row, (int) base_time);
+    tsdb.indexRow(row, (int) base_time);
+    if (!TSDB.enable_write_compactions) {
+      tsdb.scheduleForCompaction(row, (int) base_time);
+    }
     return base_time;
   }
 
@@ -176,11 +201,13 @@ final private static class IncomingDataPoints {
    * point).
    * @return A deferred object that indicates the completion of the request.
    */
-  private Deferred<Object> addPointInternal(final long timestamp, final byte[] value,
-                                            final short flags) {
-    // This particular code path only expects integers on 8 bytes or floating
-    // point values on 4 bytes.
-    assert value.length == 8 || value.length == 4 : Bytes.pretty(value);
+  private synchronized Deferred<Object> addPointInternal(final long timestamp,
+                                                        final byte[] value,
+                                                        final short flags) {
+    // This particular code path only expects integers on 1, 2, 4 or 8 bytes
+    // or floating point values on 4 bytes.
+    assert (flags & Const.LENGTH_MASK) + 1 == value.length
+      : Bytes.pretty(value);
     if (row == null) {
       throw new IllegalStateException("setSeries() never called!");
     }
@@ -192,18 +219,25 @@ final private static class IncomingDataPoints {
     }
 
     long base_time;
+    Deferred<Object> previous_row = null;
     if (size > 0) {
       base_time = baseTime();
       final long last_ts = base_time + (delta(qualifiers[size - 1]));
-      if (timestamp <= last_ts) {
+      if (timestamp < base_time && TSDB.enable_write_compactions) {
+        return addLatePoint(timestamp, value, flags);
+      } else if (timestamp <= last_ts) {
         throw new IllegalArgumentException("New timestamp=" + timestamp
             + " is less than previous=" + last_ts
             + " when trying to add value=" + Arrays.toString(value)
             + " to " + this);
       } else if (timestamp - base_time >= Const.MAX_TIMESPAN) {
         // Need to start a new row as we've exceeded Const.MAX_TIMESPAN.
+        if (TSDB.enable_write_compactions) {
+          previous_row = writeBufferedRow();
+        }
         base_time = updateBaseTime(timestamp);
         size = 0;
+        written = 0;
         //LOG.info("Starting a new row @ " + this);
       }
     } else {
@@ -220,11 +254,19 @@ final private static class IncomingDataPoints {
     final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
                                      | flags);
     qualifiers[size] = qualifier;
-    values[size] = (value.length == 8
-                    ? Bytes.getLong(value)
+    values[size] = ((flags & Const.FLAG_FLOAT) == 0
+                    ? RowSeq.extractIntegerValue(value, 0, (byte) flags)
                     : Bytes.getInt(value) & 0x00000000FFFFFFFFL);
     size++;
 
+    if (TSDB.enable_write_compactions) {
+      if (size - written == 1) {  // First data point buffered.
+        tsdb.buffered_rows.add(this);
+      }
+      // Report errors writing the previous row to whoever made us write it.
+      return previous_row != null ? previous_row : Deferred.fromResult(null);
+    }
+
     final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY,
                                             Bytes.fromShort(qualifier),
                                             value);
@@ -249,7 +291,108 @@ final private static class IncomingDataPoints {
 
     // TODO(tsuna): Add an errback to handle some error cases here.
     point.setDurable(!batch_import);
-    return tsdb.client.put(point)/*.addBoth(cb)*/;
+    return tsdb.put(point)/*.addBoth(cb)*/;
+  }
+
+  /**
+   * Writes a data point older than the current row as an individual cell.
+   */
+  private Deferred<Object> addLatePoint(final long timestamp,
+                                        final byte[] value,
+                                        final short flags) {
+    final long base_time = timestamp - (timestamp % Const.MAX_TIMESPAN);
+    final byte[] key = Arrays.copyOf(row, row.length);
+    Bytes.setInt(key, (int) base_time, tsdb.metrics.width());
+    tsdb.indexRow(key, (int) base_time);
+    tsdb.scheduleForCompaction(key, (int) base_time);
+    final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
+                                     | flags);
+    final PutRequest point = new PutRequest(tsdb.table, key, TSDB.FAMILY,
+                                            Bytes.fromShort(qualifier),
+                                            value);
+    point.setDurable(!batch_import);
+    return tsdb.put(point);
+  }
+
+  /**
+   * Writes the data points buffered so far, even though the current row may
+   * receive more data points.  Since the row will then be made of several
+   * cells, it's scheduled for compaction.
+   * @return A deferred object that indicates the completion of the write,
+   * or {@code null} if there was nothing to write.
+   */
+  synchronized Deferred<Object> flushBufferedRow() {
+    tsdb.buffered_rows.remove(this);
+    if (written == size) {
+      return null;
+    }
+    tsdb.scheduleForCompaction(row, (int) baseTime());
+    return writeBufferedRow();
+  }
+
+  /**
+   * Writes the buffered data points of the current row as a single cell.
+   * @return A deferred object that indicates the completion of the write,
+   * or {@code null} if there was nothing to write.
+   */
+  private Deferred<Object> writeBufferedRow() {
+    tsdb.buffered_rows.remove(this);
+    final int n = size - written;
+    if (n == 0) {
+      return null;
+    }
+    byte[] qualifier;
+    byte[] value;
+    if (n == 1) {
+      qualifier = Bytes.fromShort(qualifiers[written]);
+      value = new byte[valueLength(written)];
+      encodeValue(written, value, 0);
+    } else {
+      // Same format as the cells written by the CompactionQueue: all the
+      // qualifiers, all the values, and a trailing 0 byte.
+      qualifier = new byte[n * 2];
+      int val_len = 1;
+      for (int i = written; i < size; i++) {
+        val_len += valueLength(i);
+      }
+      value = new byte[val_len];
+      int val_idx = 0;
+      for (int i = written; i < size; i++) {
+        Bytes.setShort(qualifier, qualifiers[i], (i - written) * 2);
+        val_idx += encodeValue(i, value, val_idx);
+      }
+      write_compactions.incrementAndGet();
+      if (CompressedCell.enabled) {
+        final KeyValue kv = CompressedCell.compress(
+          new KeyValue(row, TSDB.FAMILY, qualifier, value));
+        qualifier = kv.qualifier();
+        value = kv.value();
+      }
+    }
+    written = size;
+    final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY,
+                                            qualifier, value);
+    point.setDurable(!batch_import);
+    return tsdb.put(point);
+  }
+
+  /** Returns the number of bytes on which the i-th value is stored.  */
+  private int valueLength(final int i) {
+    return (qualifiers[i] & Const.LENGTH_MASK) + 1;
+  }
+
+  /**
+   * Encodes the i-th value in big-endian, on as many bytes as its flags say.
+   * @return The number of bytes written.
+   */
+  private int encodeValue(final int i, final byte[] buf, final int offset) {
+    final int len = valueLength(i);
+    long v = values[i];
+    for (int j = offset + len - 1; j >= offset; j--) {
+      buf[j] = (byte) v;
+      v >>>= 8;
+    }
+    return len;
   }
 
   private void grow() {
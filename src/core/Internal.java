@@ -15,6 +15,8 @@ package net.opentsdb.core;
 import java.util.ArrayList;
 import java.util.Map;
 
+import com.stumbleupon.async.Deferred;
+
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -105,6 +107,28 @@ public final class Internal {
     return tsdb.metrics.width();
   }
 
+  /** @see CompressedCell#isCompressed  */
+  public static boolean isCompressed(final KeyValue kv) {
+    return CompressedCell.isCompressed(kv);
+  }
+
+  /** @see CompressedCell#decompress  */
+  public static KeyValue decompress(final KeyValue kv) {
+    return CompressedCell.decompress(kv);
+  }
+
+  /** @see CompactionQueue#compactNow  */
+  public static Deferred<Object> compactNow(final TSDB tsdb,
+                                            final ArrayList<KeyValue> row,
+                                            final KeyValue[] stored) {
+    return tsdb.compactNow(row, stored);
+  }
+
+  /** Returns whether or not compactions are enabled.  */
+  public static boolean compactionsEnabled() {
+    return TSDB.enable_compactions;
+  }
+
   /** @see CompactionQueue#complexCompact  */
   public static KeyValue complexCompact(final KeyValue kv) {
     final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
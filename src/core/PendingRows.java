@@ -0,0 +1,519 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+
+/**
+ * Set of row keys waiting to be compacted, grouped by base time.
+ * <p>
+ * This replaces a sorted map of row keys, which costs a skip-list node, a
+ * map entry and a copy of the row key (with its object header) for every
+ * single row.  Here the rows are grouped in one bucket per base time, which
+ * is also the order in which the compaction thread consumes them.  Within a
+ * bucket, the row keys are packed one after the other in a few big byte
+ * arrays, without their timestamp since it's the same for the whole bucket.
+ * An open-addressing hash table of offsets into these arrays is used to
+ * de-duplicate rows, since the same row is added once per data point.
+ * <p>
+ * Each bucket is split in a few stripes with their own lock, so that the
+ * threads adding data points to the current hour don't all contend on the
+ * same lock.
+ * <p>
+ * This class is thread-safe.
+ */
+final class PendingRows {
+
+  /** Number of stripes per bucket.  Must be 16, see {@link #add}.  */
+  private static final int STRIPES = 16;
+
+  /** Initial size of the array of packed keys of a stripe, in bytes.  */
+  private static final int INITIAL_KEYS_SIZE = 256;
+
+  /** Initial size of the hash table of a stripe, in slots.  Power of 2.  */
+  private static final int INITIAL_TABLE_SIZE = 16;
+
+  /** Rough size of the objects of a bucket, other than the arrays.  */
+  private static final int BUCKET_OVERHEAD = 64 + STRIPES * (16 + 48);
+
+  /** On how many bytes do we encode metrics IDs.  */
+  private final short metric_width;
+
+  /** Maps a base time to the rows of that base time.  */
+  private final ConcurrentSkipListMap<Long, Bucket> buckets =
+    new ConcurrentSkipListMap<Long, Bucket>();
+
+  /**
+   * How many rows are currently in this set.
+   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity, and
+   * we'd have to go through every bucket anyway.
+   */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** Approximate number of bytes of memory used by this set.  */
+  private final AtomicLong memory = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param metric_width On how many bytes metric IDs are encoded.
+   */
+  PendingRows(final short metric_width) {
+    this.metric_width = metric_width;
+  }
+
+  /** Returns the number of rows in this set.  */
+  int size() {
+    return size.get();
+  }
+
+  /** Returns the approximate number of bytes of memory used by this set.  */
+  long memoryUsage() {
+    return memory.get();
+  }
+
+  /**
+   * Adds a row to this set.
+   * @param row The row key.  Will not be modified.
+   * @return {@code true} if the row wasn't already in this set.
+   * @throws IllegalArgumentException if the row key is too short or too
+   * long.
+   */
+  boolean add(final byte[] row) {
+    final int key_len = row.length - Const.TIMESTAMP_BYTES;
+    if (key_len < metric_width || key_len > 255) {
+      throw new IllegalArgumentException("Invalid row key length: "
+                                         + Arrays.toString(row));
+    }
+    final long base_time = Bytes.getUnsignedInt(row, metric_width);
+    final int hash = hash(row);
+    while (true) {
+      Bucket bucket = buckets.get(base_time);
+      if (bucket == null) {
+        bucket = new Bucket(base_time);
+        final Bucket prev = buckets.putIfAbsent(base_time, bucket);
+        if (prev != null) {
+          bucket = prev;
+        } else {
+          memory.addAndGet(BUCKET_OVERHEAD
+                           + STRIPES * (INITIAL_KEYS_SIZE
+                                        + INITIAL_TABLE_SIZE * 4));
+        }
+      }
+      // Use the high bits, the low ones are used by the hash table.
+      final Stripe stripe = bucket.stripes[hash >>> 28];
+      synchronized (stripe) {
+        if (bucket.dead) {
+          continue;  // The bucket got emptied and removed, create a new one.
+        }
+        if (!stripe.add(row, hash)) {
+          return false;
+        }
+        bucket.size.incrementAndGet();
+        size.incrementAndGet();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Removes rows from this set, oldest base time first.
+   * @param cut_off Only rows with a base time less than or equal to this
+   * UNIX timestamp (unsigned 32-bit integer) are removed.
+   * @param max Maximum number of rows to remove.
+   * @param rows The list to which to append the rows removed.
+   * @return The number of rows removed.
+   */
+  int poll(final long cut_off, final int max, final List<byte[]> rows) {
+    int polled = 0;
+    for (final Bucket bucket : buckets.headMap(cut_off, true).values()) {
+      if (polled >= max) {
+        break;
+      }
+      for (final Stripe stripe : bucket.stripes) {
+        synchronized (stripe) {
+          final int n = stripe.poll(bucket.base_time, max - polled, rows);
+          bucket.size.addAndGet(-n);
+          polled += n;
+        }
+        if (polled >= max) {
+          break;
+        }
+      }
+      if (retire(bucket, 0, false)) {
+        buckets.remove(bucket.base_time, bucket);
+      }
+    }
+    size.addAndGet(-polled);
+    return polled;
+  }
+
+  /**
+   * Returns the base time of the oldest rows in this set.
+   * @return A UNIX timestamp in seconds, or -1 if this set is empty.
+   */
+  long oldestBaseTime() {
+    for (final Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+      if (entry.getValue().size.get() > 0) {
+        return entry.getKey();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Removes all the rows from this set.
+   * @return The number of rows removed.
+   */
+  int clear() {
+    int removed = 0;
+    for (final Bucket bucket : buckets.values()) {
+      retire(bucket, 0, true);
+      buckets.remove(bucket.base_time, bucket);
+      removed += bucket.size.get();
+    }
+    size.addAndGet(-removed);
+    return removed;
+  }
+
+  /**
+   * Writes all the rows of this set to the given stream.
+   * <p>
+   * The rows are written in blocks, each made of the base time (as a
+   * {@code long}), the number of bytes of packed keys (as an {@code int})
+   * and the packed keys, in the same format as in memory.  A base time of
+   * -1 marks the end.  Rows added concurrently may or may not be written.
+   * @param out The stream to write to.
+   * @return The number of rows written.
+   * @throws IOException if the stream couldn't be written to.
+   */
+  int writeTo(final DataOutputStream out) throws IOException {
+    int written = 0;
+    for (final Bucket bucket : buckets.values()) {
+      for (final Stripe stripe : bucket.stripes) {
+        final byte[] packed;
+        final int nkeys;
+        synchronized (stripe) {  // Copy, to not do I/O with the lock held.
+          packed = Arrays.copyOfRange(stripe.keys, stripe.start, stripe.end);
+          nkeys = stripe.countKeys();
+        }
+        if (nkeys == 0) {
+          continue;
+        }
+        out.writeLong(bucket.base_time);
+        out.writeInt(packed.length);
+        out.write(packed);
+        written += nkeys;
+      }
+    }
+    out.writeLong(-1);
+    return written;
+  }
+
+  /**
+   * Adds to this set all the rows read from the given stream.
+   * @param in A stream in the format written by {@link #writeTo}.
+   * @return The number of rows read.
+   * @throws IOException if the stream couldn't be read or is corrupted.
+   */
+  int readFrom(final DataInputStream in) throws IOException {
+    int read = 0;
+    long base_time;
+    while ((base_time = in.readLong()) != -1) {
+      final int len = in.readInt();
+      if (base_time < 0 || base_time > 0xFFFFFFFFL || len < 0) {
+        throw new IOException("Corrupted block: base_time=" + base_time
+                              + ", length=" + len);
+      }
+      final byte[] packed = new byte[len];
+      in.readFully(packed);
+      int off = 0;
+      while (off < len) {
+        final int key_len = packed[off] & 0xFF;
+        if (key_len < metric_width || off + 1 + key_len > len) {
+          throw new IOException("Corrupted key of length " + key_len
+                                + " at offset " + off + " in a block of "
+                                + len + " bytes");
+        }
+        add(unpack(packed, off, base_time));
+        off += 1 + key_len;
+        read++;
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Marks a bucket as dead, if it's empty (or if we're told to).
+   * <p>
+   * All the stripes of the bucket must be locked to make sure nobody is
+   * adding a row to it while we do this, so this function recurses to
+   * acquire the locks one after the other.
+   * @param bucket The bucket to retire.
+   * @param i The index of the next stripe to lock.
+   * @param force Whether to retire the bucket even if it's not empty.
+   * @return {@code true} if the bucket is now dead.
+   */
+  private boolean retire(final Bucket bucket, final int i,
+                         final boolean force) {
+    if (i == STRIPES) {
+      if (bucket.dead || (!force && bucket.size.get() > 0)) {
+        return false;
+      }
+      bucket.dead = true;
+      long freed = BUCKET_OVERHEAD;
+      for (final Stripe stripe : bucket.stripes) {
+        freed += stripe.memoryUsage();
+      }
+      memory.addAndGet(-freed);
+      return true;
+    }
+    synchronized (bucket.stripes[i]) {
+      return retire(bucket, i + 1, force);
+    }
+  }
+
+  /**
+   * Re-creates a row key from a packed key.
+   * @param packed The array of packed keys.
+   * @param off The offset of the key in {@code packed}.
+   * @param base_time The base time of the row.
+   */
+  private byte[] unpack(final byte[] packed, final int off,
+                        final long base_time) {
+    final int key_len = packed[off] & 0xFF;
+    final byte[] row = new byte[key_len + Const.TIMESTAMP_BYTES];
+    System.arraycopy(packed, off + 1, row, 0, metric_width);
+    Bytes.setInt(row, (int) base_time, metric_width);
+    System.arraycopy(packed, off + 1 + metric_width,
+                     row, metric_width + Const.TIMESTAMP_BYTES,
+                     key_len - metric_width);
+    return row;
+  }
+
+  /** Hashes a row key, without its timestamp.  */
+  private int hash(final byte[] row) {
+    int h = 1;
+    for (int i = 0; i < row.length; i++) {
+      if (i == metric_width) {
+        i += Const.TIMESTAMP_BYTES - 1;
+        continue;
+      }
+      h = 31 * h + row[i];
+    }
+    // Mix the bits so that linear probing works well even though the IDs
+    // at the end of the keys tend to be sequential.
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /** All the rows of a given base time.  */
+  private final class Bucket {
+
+    final long base_time;
+    final Stripe[] stripes = new Stripe[STRIPES];
+    /** Number of rows in this bucket.  */
+    final AtomicInteger size = new AtomicInteger();
+    /**
+     * Whether this bucket has been removed from the map.
+     * Protected by all the stripe locks.
+     */
+    boolean dead;
+
+    Bucket(final long base_time) {
+      this.base_time = base_time;
+      for (int i = 0; i < STRIPES; i++) {
+        stripes[i] = new Stripe();
+      }
+    }
+
+  }
+
+  /**
+   * Part of the rows of a bucket.
+   * <p>
+   * Keys are appended to {@code keys} as they're added, each one prefixed
+   * by its length on one byte.  Polling consumes them in the same order,
+   * so the keys in the range {@code [start, end)} are those still pending.
+   * The hash table may still point to keys before {@code start}, these are
+   * ignored and get cleaned up the next time the table is rebuilt.
+   * <p>
+   * Not thread-safe, callers must synchronize on the instance.
+   */
+  private final class Stripe {
+
+    byte[] keys = new byte[INITIAL_KEYS_SIZE];
+    /** Offset of the first key not polled yet.  */
+    int start;
+    /** Offset at which the next key will be appended.  */
+    int end;
+    /**
+     * Open-addressing hash table with linear probing.  Each slot contains
+     * the offset of a key in {@code keys} plus one, or 0 if it's empty.
+     */
+    int[] table = new int[INITIAL_TABLE_SIZE];
+    /** Number of slots used in the table (including stale ones).  */
+    int used;
+
+    long memoryUsage() {
+      return keys.length + table.length * 4;
+    }
+
+    /**
+     * Adds a row to this stripe.
+     * @return {@code true} if the row wasn't already there.
+     */
+    boolean add(final byte[] row, final int hash) {
+      final int key_len = row.length - Const.TIMESTAMP_BYTES;
+      if (end + 1 + key_len > keys.length) {
+        grow(1 + key_len);
+      }
+      final int mask = table.length - 1;
+      int idx = hash & mask;
+      int stale = -1;  // Index of a slot pointing to a polled key.
+      while (table[idx] != 0) {
+        final int off = table[idx] - 1;
+        if (equals(off, row)) {
+          if (off >= start) {
+            return false;  // Already pending.
+          }
+          stale = idx;  // Polled already, so add it again.
+          break;
+        }
+        idx = (idx + 1) & mask;
+      }
+      keys[end] = (byte) key_len;
+      System.arraycopy(row, 0, keys, end + 1, metric_width);
+      System.arraycopy(row, metric_width + Const.TIMESTAMP_BYTES,
+                       keys, end + 1 + metric_width, key_len - metric_width);
+      if (stale >= 0) {
+        table[stale] = end + 1;
+      } else {
+        table[idx] = end + 1;
+        used++;
+      }
+      end += 1 + key_len;
+      if (used * 4 > table.length * 3) {
+        rehash(table.length * 2);
+      }
+      return true;
+    }
+
+    /**
+     * Removes up to {@code max} rows from this stripe.
+     * @return The number of rows removed.
+     */
+    int poll(final long base_time, final int max, final List<byte[]> rows) {
+      int n = 0;
+      while (start < end && n < max) {
+        rows.add(unpack(keys, start, base_time));
+        start += 1 + (keys[start] & 0xFF);
+        n++;
+      }
+      return n;
+    }
+
+    /** Compares the key at the given offset with a row key.  */
+    private boolean equals(final int off, final byte[] row) {
+      final int key_len = keys[off] & 0xFF;
+      if (key_len != row.length - Const.TIMESTAMP_BYTES) {
+        return false;
+      }
+      for (int i = 0; i < key_len; i++) {
+        final int j = i < metric_width ? i : i + Const.TIMESTAMP_BYTES;
+        if (keys[off + 1 + i] != row[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Makes room for {@code needed} more bytes of keys.
+     * The keys already polled are discarded in the process.
+     */
+    private void grow(final int needed) {
+      final int pending = end - start;
+      // Grow by 50% only, since this is where most of the memory goes.
+      final int newsize = Math.max(keys.length, pending + needed) * 3 / 2;
+      final byte[] newkeys = new byte[newsize];
+      System.arraycopy(keys, start, newkeys, 0, pending);
+      memory.addAndGet(newsize - keys.length);
+      keys = newkeys;
+      end = pending;
+      if (start > 0) {  // The offsets have changed.
+        start = 0;
+        rehash(INITIAL_TABLE_SIZE);
+      }
+    }
+
+    /** Rebuilds the hash table, dropping the stale entries.  */
+    private void rehash(int newsize) {
+      final int nkeys = countKeys();
+      while (nkeys * 2 > newsize) {
+        newsize *= 2;
+      }
+      memory.addAndGet((newsize - table.length) * 4);
+      table = new int[newsize];
+      used = 0;
+      final int mask = newsize - 1;
+      for (int off = start; off < end; off += 1 + (keys[off] & 0xFF)) {
+        int idx = hashKey(off) & mask;
+        while (table[idx] != 0) {
+          idx = (idx + 1) & mask;
+        }
+        table[idx] = off + 1;
+        used++;
+      }
+    }
+
+    /** Returns the number of pending keys in this stripe.  */
+    private int countKeys() {
+      int n = 0;
+      for (int off = start; off < end; off += 1 + (keys[off] & 0xFF)) {
+        n++;
+      }
+      return n;
+    }
+
+    /** Same as {@link PendingRows#hash} but for a packed key.  */
+    private int hashKey(final int off) {
+      final int key_len = keys[off] & 0xFF;
+      int h = 1;
+      for (int i = 0; i < key_len; i++) {
+        h = 31 * h + keys[off + 1 + i];
+      }
+      h ^= h >>> 16;
+      h *= 0x85EBCA6B;
+      h ^= h >>> 13;
+      h *= 0xC2B2AE35;
+      h ^= h >>> 16;
+      return h;
+    }
+
+  }
+
+}
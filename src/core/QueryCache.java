@@ -0,0 +1,305 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Size-bounded cache of the rows read by queries.
+ * <p>
+ * Aggregation is done lazily when the results of a query are iterated
+ * over, so what's worth caching is the data read from HBase: the compacted
+ * rows of every series matching a query.  Rows are cached per normalized
+ * query (metric, tags and group-bys, regardless of the time range and of
+ * the aggregation), along with the range of base times they cover.
+ * <p>
+ * Only the rows that are unlikely to change (older than the previous hour)
+ * are cached, so a query that ends "now" can reuse the cached rows and only
+ * scan those that follow.  A query that starts before the cached rows
+ * doesn't use the cache.  Old rows can still change though, e.g. when the
+ * {@link WriteSpool} replays data points after an HBase outage, or when
+ * data is backfilled.  So every data point written through this TSD to a
+ * row that may be cached invalidates the entries of its metric, and
+ * entries expire {@link #TTL} seconds after their oldest rows were read,
+ * to eventually pick up the data written by other processes.
+ * <p>
+ * The cached rows are never modified, spans are built out of them for
+ * every query.
+ * <p>
+ * This class is thread-safe.
+ */
+final class QueryCache {
+
+  /** Maximum size of the cache in bytes, 0 disables it.  */
+  static final long MAX_BYTES =
+    Long.getLong("tsd.query.cache_size", 64 * 1024 * 1024);
+
+  /** How long rows can stay in the cache, in seconds.  */
+  static final long TTL = Long.getLong("tsd.query.cache_ttl", 3600);
+
+  /** The actual cache.  */
+  private final Cache<String, Entry> entries;
+
+  /** Total size of the entries currently in the cache.  */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * When data points were last written to rows that may be cached, in
+   * milliseconds, by metric (see {@link #metricKey}).
+   */
+  private final ConcurrentHashMap<String, Long> late_writes =
+    new ConcurrentHashMap<String, Long>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong partial_hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_bytes The maximum size of the cache, in bytes.
+   */
+  QueryCache(final long max_bytes) {
+    entries = CacheBuilder.newBuilder()
+      // A single segment, so that the whole cache is bounded and evicted
+      // in LRU order, rather than each segment on its own.  Lookups are
+      // done once per query, so there's little contention.
+      .concurrencyLevel(1)
+      .maximumWeight(max_bytes)
+      .expireAfterWrite(TTL, TimeUnit.SECONDS)
+      .weigher(new Weigher<String, Entry>() {
+        public int weigh(final String key, final Entry entry) {
+          return (int) Math.min(Integer.MAX_VALUE, entry.bytes);
+        }
+      })
+      .removalListener(new RemovalListener<String, Entry>() {
+        public void onRemoval(final RemovalNotification<String, Entry> n) {
+          bytes.addAndGet(-n.getValue().bytes);
+        }
+      })
+      .recordStats()
+      .<String, Entry>build();
+  }
+
+  /**
+   * Returns the key under which the rows of a query are cached.
+   * @param query The query.
+   */
+  static String key(final TsdbQueryDto query) {
+    final StringBuilder buf = new StringBuilder(64);
+    buf.append(metricKey(query.metric));
+    for (final byte[] tag : query.tags) {
+      buf.append(Arrays.toString(tag));
+    }
+    if (query.group_bys != null) {
+      buf.append('|');
+      for (final byte[] name : query.group_bys) {
+        buf.append(Arrays.toString(name));
+        final byte[][] values = query.group_by_values == null
+          ? null : query.group_by_values.get(name);
+        if (values != null) {
+          final ArrayList<String> sorted = new ArrayList<String>(values.length);
+          for (final byte[] value : values) {
+            sorted.add(Arrays.toString(value));
+          }
+          Collections.sort(sorted);
+          buf.append(sorted);
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  /** Returns how a metric ID appears in the keys of the cache.  */
+  private static String metricKey(final byte[] metric) {
+    return Arrays.toString(metric);
+  }
+
+  /**
+   * Returns the base time up to which (exclusive) rows can be cached: rows
+   * older than the previous hour are unlikely to change.
+   * @param now The current UNIX timestamp, in seconds.
+   */
+  static long cacheableEnd(final long now) {
+    return now - now % Const.MAX_TIMESPAN - Const.MAX_TIMESPAN;
+  }
+
+  /**
+   * Returns the rows cached for a query.
+   * @param key The key of the query, see {@link #key}.
+   * @param metric The metric of the query.
+   * @param start The first base time needed by the query.
+   * @return The entry, or {@code null} if there's nothing cached, if the
+   * cached rows start after {@code start}, or if they may be stale.
+   */
+  Entry get(final String key, final byte[] metric, final long start) {
+    Entry entry = entries.getIfPresent(key);
+    if (entry != null && isStale(entry, metric)) {
+      entries.invalidate(key);
+      entry = null;
+    }
+    if (entry == null || entry.start > start) {
+      misses.incrementAndGet();
+      return null;
+    }
+    return entry;
+  }
+
+  /** Returns whether the rows of an entry may have changed.  */
+  private boolean isStale(final Entry entry, final byte[] metric) {
+    if (System.currentTimeMillis() - entry.since > TTL * 1000) {
+      return true;
+    }
+    final Long late = late_writes.get(metricKey(metric));
+    return late != null && late >= entry.since;
+  }
+
+  /**
+   * Invalidates the entries of the metric of a data point once it's been
+   * written, if its row may be cached.  Every data point written must go
+   * through here.
+   * @param row The row key of the data point.
+   * @param metric_width The width of metric IDs.
+   * @param write The deferred result of the write.
+   * @return The deferred result of the write.
+   */
+  Deferred<Object> written(final byte[] row, final short metric_width,
+                           final Deferred<Object> write) {
+    final long base_time = Bytes.getUnsignedInt(row, metric_width);
+    if (base_time >= cacheableEnd(System.currentTimeMillis() / 1000)) {
+      return write;  // Nothing this recent is cached.
+    }
+    final String metric = metricKey(Arrays.copyOf(row, metric_width));
+    // Only record the write once it's done: rows read before then may not
+    // have the data point, so they mustn't be considered fresh.
+    final class InvalidateCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        late_writes.put(metric, System.currentTimeMillis());
+        invalidations.incrementAndGet();
+        return arg;
+      }
+      public String toString() {
+        return "invalidate cached rows of " + metric;
+      }
+    }
+    return write.addBoth(new InvalidateCB());
+  }
+
+  /**
+   * Records that an entry was used.
+   * @param partial Whether or not rows still had to be read from HBase.
+   */
+  void recordHit(final boolean partial) {
+    (partial ? partial_hits : hits).incrementAndGet();
+  }
+
+  /**
+   * Caches the rows of a query.
+   * @param key The key of the query, see {@link #key}.
+   * @param start The first base time covered by the rows.
+   * @param end The base time up to which (exclusive) rows are cached.
+   * @param rows All the rows read for the query, in time order for each
+   * series.  Only those before {@code end} are cached.
+   * @param metric_width The width of metric IDs.
+   * @param since When the oldest of the rows were read, in milliseconds.
+   */
+  void put(final String key, final long start, final long end,
+           final List<KeyValue> rows, final short metric_width,
+           final long since) {
+    final ArrayList<KeyValue> cached = new ArrayList<KeyValue>(rows.size());
+    long size = 0;
+    for (final KeyValue row : rows) {
+      if (Bytes.getUnsignedInt(row.key(), metric_width) < end) {
+        cached.add(row);
+        size += TsdbQueryLoader.rowBytes(row);
+      }
+    }
+    cached.trimToSize();
+    final Entry entry = new Entry(start, end, cached, size, since);
+    bytes.addAndGet(size);
+    entries.put(key, entry);
+  }
+
+  /**
+   * Collects the stats of this cache.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.cache.lookups", hits, "type=hit");
+    collector.record("query.cache.lookups", partial_hits, "type=partial");
+    collector.record("query.cache.lookups", misses, "type=miss");
+    collector.record("query.cache.invalidations", invalidations);
+    collector.record("query.cache.evictions", entries.stats().evictionCount());
+    collector.record("query.cache.entries", entries.size());
+    collector.record("query.cache.bytes", bytes.get());
+  }
+
+  /** The rows cached for a query.  */
+  static final class Entry {
+    /** The first base time covered.  */
+    final long start;
+    /** The base time up to which (exclusive) all the rows are cached.  */
+    final long end;
+    /** The rows, never modified.  */
+    private final ArrayList<KeyValue> rows;
+    /** Estimated size of the rows, in bytes.  */
+    final long bytes;
+    /** When the oldest of the rows were read, in milliseconds.  */
+    final long since;
+
+    Entry(final long start, final long end, final ArrayList<KeyValue> rows,
+          final long bytes, final long since) {
+      this.start = start;
+      this.end = end;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.since = since;
+    }
+
+    /**
+     * Returns a copy of the cached rows, starting from the given time.
+     * @param start The first base time needed.
+     * @param metric_width The width of metric IDs.
+     */
+    ArrayList<KeyValue> rowsFrom(final long start, final short metric_width) {
+      final ArrayList<KeyValue> result = new ArrayList<KeyValue>(rows.size());
+      for (final KeyValue row : rows) {
+        if (Bytes.getUnsignedInt(row.key(), metric_width) >= start) {
+          result.add(row);
+        }
+      }
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded cache of resolved row key templates.
+ * <p>
+ * Resolving a row key costs one UID lookup for the metric and two for each
+ * tag, plus the validation of every string.  Since the same series are
+ * written over and over again, we remember the template (the row key with
+ * a zeroed-out timestamp) built for each (metric, tags) pair, so that in
+ * the steady state writing a data point only costs one hash lookup.
+ * <p>
+ * The metric used as a key is the one obtained <em>after</em> the federated
+ * remapping, so changes to the index are naturally picked up.  The tags are
+ * compared as a {@link Map}, which makes their order irrelevant.
+ * <p>
+ * This class is thread-safe.
+ */
+final class RowKeyCache {
+
+  /** Maximum number of series to remember, 0 disables the cache.  */
+  static final int MAX_SIZE;
+  static {
+    final String size = System.getProperty("tsd.core.row_key_cache_size");
+    MAX_SIZE = size == null ? 300000 : Integer.parseInt(size);
+  }
+
+  private final TSDB tsdb;
+
+  /** The actual cache, {@code null} when disabled.  */
+  private final Cache<SeriesKey, RowKeyTemplate> templates;
+
+  RowKeyCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    templates = MAX_SIZE <= 0 ? null
+      : CacheBuilder.newBuilder()
+        .maximumSize(MAX_SIZE)
+        .recordStats()
+        .<SeriesKey, RowKeyTemplate>build();
+  }
+
+  /**
+   * Returns the row key template of the given series.  The metric and the
+   * tags are validated the first time the series is seen.
+   * @param metric The name of the metric (after the federated remapping).
+   * @param tags The tags of the series.
+   * @return The template, shared by all the callers: they must copy its key
+   * before modifying it.
+   * @throws IllegalArgumentException if the metric or the tags are invalid.
+   * @throws net.opentsdb.uid.NoSuchUniqueName if the metric doesn't exist
+   * and the TSD isn't allowed to create it.
+   */
+  RowKeyTemplate rowKeyTemplate(final String metric,
+                                final Map<String, String> tags) {
+    if (templates == null) {
+      RowKey.checkMetricAndTags(metric, tags);
+      return new RowKeyTemplate(RowKey.rowKeyTemplate(tsdb, metric, tags));
+    }
+    RowKeyTemplate template =
+      templates.getIfPresent(new SeriesKey(metric, tags));
+    if (template == null) {
+      RowKey.checkMetricAndTags(metric, tags);
+      template =
+        new RowKeyTemplate(RowKey.rowKeyTemplate(tsdb, metric, tags));
+      // Copy the tags as the caller is free to reuse its map.
+      templates.put(new SeriesKey(metric, new HashMap<String, String>(tags)),
+                    template);
+    }
+    return template;
+  }
+
+  /**
+   * Collects the stats of this cache.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    if (templates == null) {
+      return;
+    }
+    final CacheStats stats = templates.stats();
+    collector.record("rowkey.cache-hit", stats.hitCount());
+    collector.record("rowkey.cache-miss", stats.missCount());
+    collector.record("rowkey.cache-evictions", stats.evictionCount());
+    collector.record("rowkey.cache-size", templates.size());
+  }
+
+  /** A series as seen by the put path: a metric name and a set of tags.  */
+  private static final class SeriesKey {
+    private final String metric;
+    private final Map<String, String> tags;
+
+    SeriesKey(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    @Override
+    public int hashCode() {
+      // Map.hashCode() is the sum of the hashes of its entries, so it
+      // doesn't depend on the order in which the tags were given.
+      return metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      } else if (!(other instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey key = (SeriesKey) other;
+      return metric.equals(key.metric) && tags.equals(key.tags);
+    }
+  }
+
+}
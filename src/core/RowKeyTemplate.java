@@ -0,0 +1,38 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * The row key of a series, resolved once and for all.
+ * <p>
+ * Instances are obtained from {@link TSDB#rowKeyTemplate} and shared by
+ * all the data points written to the series, which lets us do per-row
+ * work (like recording the series in the {@link SeriesIndex}) once per
+ * row instead of once per data point.
+ */
+public final class RowKeyTemplate {
+
+  /** The row key, with the timestamp left blank.  Never modified.  */
+  final byte[] key;
+
+  /**
+   * The last base time at which the series was recorded in the
+   * {@link SeriesIndex}, 0 if it never was.
+   */
+  volatile int indexed_base_time;
+
+  RowKeyTemplate(final byte[] key) {
+    this.key = key;
+  }
+
+}
@@ -64,6 +64,8 @@ final class RowSeq implements DataPoints {
 
   public void substituteMetric(byte[] metric) {
     if (tsdb.metrics.width()!=metric.length) throw new RuntimeException();
+    // Don't modify the key in place, it may be shared with a cached row.
+    key = Arrays.copyOf(key, key.length);
     System.arraycopy(metric, 0, key, 0, metric.length);
   }
 
@@ -72,10 +74,13 @@ final class RowSeq implements DataPoints {
    * @param row The compacted HBase row to set.
    * @throws IllegalStateException if this method was already called.
    */
-  void setRow(final KeyValue row) {
+  void setRow(KeyValue row) {
     if (this.key != null) {
       throw new IllegalStateException("setRow was already called on " + this);
     }
+    if (CompressedCell.isCompressed(row)) {
+      row = CompressedCell.decompress(row);
+    }
 
     this.key = row.key();
     this.qualifiers = row.qualifier();
@@ -94,10 +99,13 @@ final class RowSeq implements DataPoints {
    * aren't close enough to those in this instance time-wise to be all merged
    * together.
    */
-  void addRow(final KeyValue row) {
+  void addRow(KeyValue row) {
     if (this.key == null) {
       throw new IllegalStateException("setRow was never called on " + this);
     }
+    if (CompressedCell.isCompressed(row)) {
+      row = CompressedCell.decompress(row);
+    }
 
     final byte[] key = row.key();
     final long base_time = Bytes.getUnsignedInt(key, tsdb.metrics.width());
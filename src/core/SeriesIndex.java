@@ -0,0 +1,531 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * In-memory inverted index of the series of every metric.
+ * <p>
+ * For each metric, we remember every series (the tags of its row keys)
+ * along with the last base time we saw it at, and for every tag (name and
+ * value) the sorted list of the series that have it.  This allows to find
+ * the exact series matching a query without scanning the whole metric.
+ * <p>
+ * The index is bootstrapped by scanning the last {@link #BOOTSTRAP_HOURS}
+ * of the data table, and then only learns about series from the data
+ * points written through this TSD, once per row.  So it can only answer
+ * queries that start after the beginning of the bootstrap, since older
+ * series might be missing, and only if every data point is written
+ * through this TSD: series written by other TSDs or by other tools (e.g.
+ * {@code tsdb import}) after the bootstrap are unknown, and the series
+ * they keep writing to look inactive.  Enabling the index is a promise
+ * that this TSD is the only writer.  If the index grows beyond
+ * {@link #MAX_SERIES}, it stops answering queries altogether.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SeriesIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SeriesIndex.class);
+
+  /** Maximum number of series to index, 0 (the default) disables it.  */
+  static final int MAX_SERIES =
+    Integer.getInteger("tsd.core.series_index.max_series", 0);
+
+  /** How far back to scan the data table when the TSD starts, in hours.  */
+  static final int BOOTSTRAP_HOURS =
+    Integer.getInteger("tsd.core.series_index.bootstrap_hours", 24);
+
+  /** Rough size of the objects of a series, other than its tags.  */
+  private static final int SERIES_OVERHEAD = 16 + 24 + 16 + 48 + 8;
+
+  private final TSDB tsdb;
+  /** Maximum number of series to index.  */
+  private final int max_series;
+  private final short metric_width;
+  private final short tag_width;
+
+  /** Maps a metric ID to the series of this metric.  */
+  private final ConcurrentHashMap<Long, MetricSeries> metrics =
+    new ConcurrentHashMap<Long, MetricSeries>();
+
+  /** Number of series indexed.  */
+  private final AtomicInteger nseries = new AtomicInteger();
+
+  /** Size of the tags of all the series and of the posting lists.  */
+  private final AtomicLong data_bytes = new AtomicLong();
+
+  /**
+   * UNIX timestamp from which we know about every series, or
+   * {@link Long#MAX_VALUE} until the bootstrap is done.
+   */
+  private volatile long complete_since = Long.MAX_VALUE;
+
+  /** Set once {@link #max_series} has been exceeded.  */
+  private volatile boolean overflowed;
+
+  /** How long the bootstrap took, in ms (-1 until it's done).  */
+  private volatile long bootstrap_time = -1;
+
+  /** Number of lookups answered, and of lookups we couldn't answer.  */
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong lookups_missed = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param max_series The maximum number of series to index.
+   */
+  SeriesIndex(final TSDB tsdb, final int max_series) {
+    this.tsdb = tsdb;
+    this.max_series = max_series;
+    metric_width = tsdb.metrics.width();
+    tag_width = (short) (tsdb.tag_names.width() + tsdb.tag_values.width());
+    if (tag_width > 8) {
+      throw new IllegalStateException("Tags are too wide to be indexed: "
+                                      + tag_width + " bytes");
+    }
+  }
+
+  /** Starts the thread that scans the data table to fill the index.  */
+  void startBootstrap() {
+    final Bootstrap bootstrap = new Bootstrap();
+    bootstrap.setDaemon(true);
+    bootstrap.start();
+  }
+
+  /**
+   * Records that data points are written to the given row.  This is called
+   * once per row rather than for every data point.
+   * @param row The row key.
+   * @param base_time The base time of the row.
+   */
+  void add(final byte[] row, final int base_time) {
+    if (overflowed) {
+      return;
+    }
+    final Long metric = metricId(row, 0);
+    MetricSeries series = metrics.get(metric);
+    if (series == null) {
+      series = new MetricSeries();
+      final MetricSeries existing = metrics.putIfAbsent(metric, series);
+      if (existing != null) {
+        series = existing;
+      }
+    }
+    series.add(row, base_time);
+  }
+
+  /**
+   * Finds the series that match a query.
+   * @param query The query.
+   * @return The row keys of all the matching series, with a zeroed-out
+   * timestamp, or {@code null} if the index can't answer this query,
+   * including when it doesn't know about the metric at all.
+   */
+  List<byte[]> findSeries(final TsdbQueryDto query) {
+    final long start_time = query.getScanStartTime();
+    if (overflowed || start_time < complete_since) {
+      lookups_missed.incrementAndGet();
+      return null;
+    }
+    final MetricSeries series = metrics.get(metricId(query.metric, 0));
+    if (series == null) {  // Don't claim there's no data, let's scan.
+      lookups_missed.incrementAndGet();
+      return null;
+    }
+    lookups.incrementAndGet();
+    return series.find(query, start_time);
+  }
+
+  /** Returns the number of series indexed.  */
+  int size() {
+    return nseries.get();
+  }
+
+  /** Returns a rough estimate of the memory used by the index, in bytes.  */
+  long memoryUsage() {
+    return data_bytes.get() + (long) nseries.get() * SERIES_OVERHEAD
+      + metrics.size() * 256L;
+  }
+
+  /**
+   * Collects the stats of the index.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("index.series", nseries.get());
+    collector.record("index.memory", memoryUsage());
+    collector.record("index.bootstrap_time", bootstrap_time);
+    collector.record("index.lookups", lookups, "type=answered");
+    collector.record("index.lookups", lookups_missed, "type=missed");
+    collector.record("index.overflowed", overflowed ? 1 : 0);
+  }
+
+  private Long metricId(final byte[] key, final int offset) {
+    long id = 0;
+    for (int i = 0; i < metric_width; i++) {
+      id = (id << 8) | (key[offset + i] & 0xFF);
+    }
+    return id;
+  }
+
+  /** Returns a tag (name ID and value ID) as a number.  */
+  private long tagId(final byte[] key, final int offset) {
+    long id = 0;
+    for (int i = 0; i < tag_width; i++) {
+      id = (id << 8) | (key[offset + i] & 0xFF);
+    }
+    return id;
+  }
+
+  /** Returns a tag name ID as a number.  */
+  private static long nameId(final byte[] key) {
+    long id = 0;
+    for (final byte b : key) {
+      id = (id << 8) | (b & 0xFF);
+    }
+    return id;
+  }
+
+  /** The series of a metric, and the posting lists of their tags.  */
+  private final class MetricSeries {
+
+    /** Maps the tags of a series to the series.  */
+    private final ConcurrentHashMap<SeriesTags, Series> series =
+      new ConcurrentHashMap<SeriesTags, Series>();
+
+    /** The series, by ordinal.  Guarded by {@code this}.  */
+    private final ArrayList<Series> ordinals = new ArrayList<Series>();
+
+    /** Series that have a given tag.  Guarded by {@code this}.  */
+    private final HashMap<Long, IntList> by_tag = new HashMap<Long, IntList>();
+
+    /** Series that have a given tag name.  Guarded by {@code this}.  */
+    private final HashMap<Long, IntList> by_name =
+      new HashMap<Long, IntList>();
+
+    void add(final byte[] row, final int base_time) {
+      final int tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+      final Series existing =
+        series.get(new SeriesTags(row, tags_offset,
+                                  row.length - tags_offset));
+      if (existing != null) {
+        if (base_time > existing.last_seen) {
+          existing.last_seen = base_time;
+        }
+        return;
+      }
+      synchronized (this) {
+        final SeriesTags tags =
+          new SeriesTags(Arrays.copyOfRange(row, tags_offset, row.length),
+                         0, row.length - tags_offset);
+        if (series.containsKey(tags)) {  // Lost a race.
+          return;
+        }
+        if (nseries.incrementAndGet() > max_series) {
+          LOG.warn("More than " + max_series + " series, the index is"
+                   + " disabled, see tsd.core.series_index.max_series");
+          overflowed = true;
+          return;
+        }
+        final int ordinal = ordinals.size();
+        final Series s = new Series(tags, base_time);
+        ordinals.add(s);
+        long bytes = tags.length;
+        final short name_width = tsdb.tag_names.width();
+        long last_name = -1;
+        for (int i = 0; i < tags.length; i += tag_width) {
+          final long tag = tagId(tags.key, i);
+          bytes += addPosting(by_tag, tag, ordinal);
+          final long name = tag >>> (8 * (tag_width - name_width));
+          if (name != last_name) {
+            bytes += addPosting(by_name, name, ordinal);
+            last_name = name;
+          }
+        }
+        data_bytes.addAndGet(bytes);
+        series.put(tags, s);
+      }
+    }
+
+    /** Returns the number of bytes used by the new entry.  */
+    private int addPosting(final HashMap<Long, IntList> postings,
+                           final long key, final int ordinal) {
+      IntList list = postings.get(key);
+      if (list == null) {
+        list = new IntList();
+        postings.put(key, list);
+        return list.add(ordinal) + 64;  // Rough size of the map entry.
+      }
+      return list.add(ordinal);
+    }
+
+    synchronized List<byte[]> find(final TsdbQueryDto query,
+                                   final long start_time) {
+      final ArrayList<int[]> lists = new ArrayList<int[]>();
+      for (final byte[] tag : query.tags) {
+        final IntList list = by_tag.get(tagId(tag, 0));
+        if (list == null) {
+          return new ArrayList<byte[]>(0);
+        }
+        lists.add(list.toArray());
+      }
+      if (query.group_bys != null) {
+        final short value_width = tsdb.tag_values.width();
+        for (final byte[] name : query.group_bys) {
+          final byte[][] values = query.group_by_values == null
+            ? null : query.group_by_values.get(name);
+          int[] list;
+          if (values == null) {
+            final IntList l = by_name.get(nameId(name));
+            list = l == null ? null : l.toArray();
+          } else {
+            list = new int[0];
+            for (final byte[] value : values) {
+              final IntList l = by_tag.get(nameId(name) << (8 * value_width)
+                                           | nameId(value));
+              if (l != null) {
+                list = union(list, l.toArray());
+              }
+            }
+          }
+          if (list == null || list.length == 0) {
+            return new ArrayList<byte[]>(0);
+          }
+          lists.add(list);
+        }
+      }
+
+      int[] matches = null;
+      for (final int[] list : lists) {
+        matches = matches == null ? list : intersect(matches, list);
+      }
+      final ArrayList<byte[]> result = new ArrayList<byte[]>(
+        matches == null ? ordinals.size() : matches.length);
+      final int n = matches == null ? ordinals.size() : matches.length;
+      for (int i = 0; i < n; i++) {
+        final Series s = ordinals.get(matches == null ? i : matches[i]);
+        if (s.last_seen >= start_time) {
+          result.add(s.rowKey(query.metric));
+        }
+      }
+      return result;
+    }
+
+  }
+
+  /** Intersects two sorted lists of ordinals.  */
+  private static int[] intersect(final int[] a, final int[] b) {
+    final int[] result = new int[Math.min(a.length, b.length)];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[n++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /** Merges two sorted lists of ordinals.  */
+  private static int[] union(final int[] a, final int[] b) {
+    final int[] result = new int[a.length + b.length];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        result[n++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        result[n++] = b[j++];
+      } else {
+        result[n++] = a[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /** A series of a metric.  */
+  private final class Series {
+    final SeriesTags tags;
+    /** The last base time at which we saw a data point.  */
+    volatile int last_seen;
+
+    Series(final SeriesTags tags, final int last_seen) {
+      this.tags = tags;
+      this.last_seen = last_seen;
+    }
+
+    /** Returns the row key of this series, without timestamp.  */
+    byte[] rowKey(final byte[] metric) {
+      final byte[] key =
+        new byte[metric_width + Const.TIMESTAMP_BYTES + tags.length];
+      System.arraycopy(metric, 0, key, 0, metric_width);
+      System.arraycopy(tags.key, tags.offset, key,
+                       metric_width + Const.TIMESTAMP_BYTES, tags.length);
+      return key;
+    }
+  }
+
+  /** The tags of a row key, possibly pointing in the middle of it.  */
+  private static final class SeriesTags {
+    final byte[] key;
+    final int offset;
+    final int length;
+    private final int hash;
+
+    SeriesTags(final byte[] key, final int offset, final int length) {
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+      int h = 1;
+      for (int i = offset; i < offset + length; i++) {
+        h = 31 * h + key[i];
+      }
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      } else if (!(other instanceof SeriesTags)) {
+        return false;
+      }
+      final SeriesTags tags = (SeriesTags) other;
+      if (hash != tags.hash || length != tags.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key[offset + i] != tags.key[tags.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** A growable list of ints, sorted since ordinals are increasing.  */
+  private static final class IntList {
+    private int[] values = new int[2];
+    private int size;
+
+    /** Returns the number of bytes allocated to add this value.  */
+    int add(final int value) {
+      int bytes = 0;
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+        bytes = size * 4;
+      }
+      values[size++] = value;
+      return bytes;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+  /**
+   * Thread that fills the index with the series written in the last
+   * {@link #BOOTSTRAP_HOURS}.
+   * <p>
+   * Every metric is scanned separately.  Once done, the index can answer
+   * queries that start after the beginning of the scanned time range.
+   */
+  private final class Bootstrap extends Thread {
+    public Bootstrap() {
+      super("SeriesIndexBootstrap");
+    }
+
+    public void run() {
+      final long start = System.currentTimeMillis();
+      long start_time = start / 1000 - BOOTSTRAP_HOURS * 3600L;
+      start_time -= start_time % Const.MAX_TIMESPAN;
+      try {
+        final long maxid = tsdb.metrics.maxAssignedId();
+        LOG.info("Indexing the series of the last " + BOOTSTRAP_HOURS
+                 + " hours of " + maxid + " metrics");
+        long nrows = 0;
+        for (long id = 1; id <= maxid && !overflowed; id++) {
+          nrows += scan(id, start_time);
+        }
+        bootstrap_time = System.currentTimeMillis() - start;
+        complete_since = start_time;
+        LOG.info("Indexed " + nseries.get() + " series from " + nrows
+                 + " rows in " + bootstrap_time + "ms, using about "
+                 + (memoryUsage() >> 10) + "KB");
+      } catch (Exception e) {
+        LOG.error("Failed to bootstrap the series index, it will not be"
+                  + " used", e);
+      }
+    }
+
+    /**
+     * Adds to the index the series of a metric.
+     * @param id The ID of the metric.
+     * @param start_time The UNIX timestamp from which to scan.
+     * @return The number of rows scanned.
+     */
+    private long scan(final long id, final long start_time) throws Exception {
+      final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+      for (int i = 0; i < metric_width; i++) {
+        start_row[metric_width - 1 - i] = (byte) (id >>> (i * 8));
+      }
+      final byte[] end_row = Arrays.copyOf(start_row, start_row.length);
+      Bytes.setInt(start_row, (int) start_time, metric_width);
+      Bytes.setInt(end_row, -1, metric_width);  // The end of this metric.
+      final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+      scanner.setStartKey(start_row);
+      scanner.setStopKey(end_row);
+      scanner.setFamily(TSDB.FAMILY);
+      scanner.setMaxNumRows(1024);
+      long nrows = 0;
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          final byte[] key = row.get(0).key();
+          add(key, Bytes.getInt(key, metric_width));
+          nrows++;
+        }
+      }
+      return nrows;
+    }
+  }
+
+}
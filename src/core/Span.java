@@ -90,7 +90,10 @@ final class Span implements DataPoints {
    * @throws IllegalArgumentException if the argument represents a row for
    * data points that are older than those already added to this span.
    */
-  void addRow(final KeyValue row) {
+  void addRow(KeyValue row) {
+    if (CompressedCell.isCompressed(row)) {
+      row = CompressedCell.decompress(row);
+    }
     long last_ts = 0;
     if (rows.size() != 0) {
       // Verify that we have the same metric id and tags.
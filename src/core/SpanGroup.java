@@ -42,6 +42,9 @@ import java.util.NoSuchElementException;
  * sampling interval a downsampling function (in the form of an
  * {@link Aggregator}) are given.  This is done by using a special
  * iterator when using the {@link Span.DownsamplingIterator}.
+ * <p>
+ * Once all the spans have been added, a group can be read by multiple
+ * threads at the same time, as identical concurrent queries share it.
  */
 final class SpanGroup implements DataPoints {
 
@@ -176,14 +179,14 @@ final class SpanGroup implements DataPoints {
     return spans.isEmpty() ? "" : spans.get(0).metricName();
   }
 
-  public Map<String, String> getTags() {
+  public synchronized Map<String, String> getTags() {
     if (tags == null) {
       computeTags();
     }
     return tags;
   }
 
-  public List<String> getAggregatedTags() {
+  public synchronized List<String> getAggregatedTags() {
     if (tags == null) {
       computeTags();
     }
@@ -366,6 +369,13 @@ final class SpanGroup implements DataPoints {
    * "current" to compute the rate.  Once a value has been used, instead of
    * throwing it away like we do when rates aren't involved, we "migrate" it
    * to the 3rd part of the array ("prev") so we can use it for the next rate.
+   * <p>
+   * To find quickly which Span(s) to move forward next, the indexes of the
+   * Spans are kept in a binary min-heap ordered by their "next" timestamp.
+   * Moving forward the Spans that have the smallest timestamp costs
+   * {@code O(log k)} for a group of k Spans when only one of them has a
+   * data point at that time, and {@code O(k)} when all of them do, instead
+   * of always scanning all the k Spans.
    */
   private final class SGIterator
     implements SeekableView, DataPoint,
@@ -431,12 +441,47 @@ final class SpanGroup implements DataPoints {
     /** The index in {@link #values} of the current value being aggregated. */
     private int pos;
 
+    /**
+     * Binary min-heap of the indexes in {@link #iterators} of all the Spans,
+     * ordered by the timestamp of their "next" data point.  Spans that
+     * reached their end stay in the heap: their "next" timestamp is
+     * {@code TIME_MASK}, so they just sink to the bottom.
+     */
+    private final int[] heap;
+
+    /**
+     * The "next" timestamp of each Span in {@link #heap}, at the same
+     * position, so that walking the heap doesn't jump around in
+     * {@link #timestamps}.
+     */
+    private final long[] heap_ts;
+
+    /** Positions in {@link #heap} of the Spans being moved forward. */
+    private final int[] positions;
+
+    /**
+     * The indexes in {@link #iterators} of the Spans that were moved
+     * forward by the last call to {@link #next}.  Only the first
+     * {@link #nmoved} entries are used.
+     */
+    private final int[] moved;
+
+    /** Number of Spans in {@link #moved}. */
+    private int nmoved;
+
+    /** Number of timestamps that have the {@code FLAG_FLOAT} set. */
+    private int nfloats;
+
     /** Creates a new iterator for this {@link SpanGroup}. */
     SGIterator() {
       final int size = spans.size();
       iterators = new SeekableView[size];
       timestamps = new long[size * (rate ? 3 : 2)];
       values = new long[size * (rate ? 3 : 2)];
+      heap = new int[size];
+      heap_ts = new long[size];
+      positions = new int[size];
+      moved = new int[size];
       // Initialize every Iterator, fetch their first values that fall
       // within our time range.
       for (int i = 0; i < size; i++) {
@@ -472,6 +517,15 @@ final class SpanGroup implements DataPoints {
           }
         }
       }
+      for (int i = 0; i < size; i++) {
+        heap[i] = i;
+        heap_ts[i] = nextTimestamp(i);
+        // The first call to next() must check every Span for its end.
+        moved[nmoved++] = i;
+      }
+      for (int n = size / 2 - 1; n >= 0; n--) {
+        siftDown(n);
+      }
     }
 
     /**
@@ -480,7 +534,7 @@ final class SpanGroup implements DataPoints {
      */
     private void endReached(final int i) {
       //LOG.debug("No more DP for #" + i);
-      timestamps[iterators.length + i] = TIME_MASK;
+      setTimestamp(iterators.length + i, TIME_MASK);
       iterators[i] = null;  // We won't use it anymore, so free() it.
     }
 
@@ -490,17 +544,100 @@ final class SpanGroup implements DataPoints {
      * @param dp The last data point returned by that iterator.
      */
     private void putDataPoint(final int i, final DataPoint dp) {
-      timestamps[i] = dp.timestamp();
       if (dp.isInteger()) {
         //LOG.debug("Putting #" + i + " (long) " + dp.longValue()
         //          + " @ time " + dp.timestamp());
         values[i] = dp.longValue();
+        setTimestamp(i, dp.timestamp());
       } else {
         //LOG.debug("Putting #" + i + " (double) " + dp.doubleValue()
         //          + " @ time " + dp.timestamp());
         values[i] = Double.doubleToRawLongBits(dp.doubleValue());
-        timestamps[i] |= FLAG_FLOAT;
+        setTimestamp(i, dp.timestamp() | FLAG_FLOAT);
+      }
+    }
+
+    /**
+     * Changes a timestamp in {@link #timestamps}.
+     * All the changes must go through this method, so that we keep track
+     * of how many values are floating point values.
+     */
+    private void setTimestamp(final int i, final long timestamp) {
+      if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
+        nfloats--;
+      }
+      if ((timestamp & FLAG_FLOAT) == FLAG_FLOAT) {
+        nfloats++;
+      }
+      timestamps[i] = timestamp;
+    }
+
+    /** Returns the timestamp of the "next" data point of a Span.  */
+    private long nextTimestamp(final int i) {
+      return timestamps[iterators.length + i] & TIME_MASK;
+    }
+
+    // --------- //
+    // Span heap //
+    // --------- //
+
+    /**
+     * Moves down the Span at position {@code n} in the heap until it's not
+     * after any of its children.  Its children must be valid heaps.
+     */
+    private void siftDown(int n) {
+      final int span = heap[n];
+      final long timestamp = heap_ts[n];
+      final int size = heap.length;
+      while (true) {
+        int child = 2 * n + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && heap_ts[child + 1] < heap_ts[child]) {
+          child++;
+        }
+        if (heap_ts[child] >= timestamp) {
+          break;
+        }
+        heap[n] = heap[child];
+        heap_ts[n] = heap_ts[child];
+        n = child;
       }
+      heap[n] = span;
+      heap_ts[n] = timestamp;
+    }
+
+    /**
+     * Finds all the Spans that have the smallest "next" timestamp.
+     * They form a subtree at the top of the heap, which we walk
+     * breadth-first so that their positions are in increasing order.
+     * Their indexes are put in {@link #moved} and their positions in the
+     * heap in {@link #positions}, and {@link #current} is set to the
+     * smallest of their indexes.
+     * @return The number of Spans found.
+     */
+    private int findNextSpans() {
+      final int size = heap.length;
+      final long min_ts = heap_ts[0];
+      positions[0] = 0;
+      int npositions = 1;
+      current = Integer.MAX_VALUE;
+      for (int j = 0; j < npositions; j++) {
+        final int i = heap[positions[j]];
+        moved[nmoved++] = i;
+        if (i < current) {
+          current = i;
+        }
+        final int child = 2 * positions[j] + 1;
+        if (child < size && heap_ts[child] == min_ts) {
+          positions[npositions++] = child;
+        }
+        if (child + 1 < size && heap_ts[child + 1] == min_ts) {
+          positions[npositions++] = child + 1;
+        }
+      }
+      return npositions;
     }
 
     // ------------------ //
@@ -508,69 +645,45 @@ final class SpanGroup implements DataPoints {
     // ------------------ //
 
     public boolean hasNext() {
-      final int size = iterators.length;
-      for (int i = 0; i < size; i++) {
-        // As long as any of the iterators has a data point with a timestamp
-        // that falls within our interval, we know we have at least one next.
-        if ((timestamps[size + i] & TIME_MASK) <= end_time) {
-          //LOG.debug("hasNext #" + (size + i));
-          return true;
-        }
-      }
-      //LOG.debug("No hasNext (return false)");
-      return false;
+      // As long as any of the iterators has a data point with a timestamp
+      // that falls within our interval, we know we have at least one next.
+      return heap.length > 0 && heap_ts[0] <= end_time;
     }
 
     public DataPoint next() {
       final int size = iterators.length;
-      long min_ts = Long.MAX_VALUE;
 
       // In case we reached the end of one or more Spans, we need to make sure
-      // we mark them as such by zeroing their current timestamp.  There may
-      // be multiple Spans that reached their end at once, so check them all.
-      for (int i = current; i < size; i++) {
+      // we mark them as such by zeroing their current timestamp.  Only the
+      // Spans we moved last time can have just reached their end.
+      for (int j = 0; j < nmoved; j++) {
+        final int i = moved[j];
         if (timestamps[i + size] == TIME_MASK) {
-          //LOG.debug("Expiring last DP for #" + current);
-          timestamps[i] = 0;
+          //LOG.debug("Expiring last DP for #" + i);
+          setTimestamp(i, 0);
         }
       }
+      nmoved = 0;
 
       // Now we need to find which Span we'll consume next.  We'll pick the
       // one that has the data point with the smallest timestamp since we want to
       // return them in chronological order.
-      current = -1;
-      // If there's more than one Span with the same smallest timestamp, we'll
-      // set this to true so we can fetch the next data point in all of them at
-      // the same time.
-      boolean multiple = false;
-      for (int i = 0; i < size; i++) {
-        final long timestamp = timestamps[size + i] & TIME_MASK;
-        if (timestamp <= end_time) {
-          if (timestamp < min_ts) {
-            min_ts = timestamp;
-            current = i;
-            // We just found a new minimum so right now we can't possibly have
-            // multiple Spans with the same minimum.
-            multiple = false;
-          } else if (timestamp == min_ts) {
-            multiple = true;
-          }
-        }
-      }
-      if (current < 0) {
+      if (!hasNext()) {
+        current = -1;
         throw new NoSuchElementException("no more elements");
       }
-      moveToNext(current);
-      if (multiple) {
-        //LOG.debug("Moving multiple DPs at time " + min_ts);
-        // We know we saw at least one other data point with the same minimum
-        // timestamp after `current', so let's move those ones too.
-        for (int i = current + 1; i < size; i++) {
-          final long timestamp = timestamps[size + i] & TIME_MASK;
-          if (timestamp == min_ts) {
-            moveToNext(i);
-          }
-        }
+      // If there's more than one Span with the same smallest timestamp, we
+      // fetch the next data point in all of them at the same time.
+      final int npositions = findNextSpans();
+      for (int j = 0; j < nmoved; j++) {
+        moveToNext(moved[j]);
+      }
+      // Restore the heap, bottom-up so that the children of each Span we
+      // moved down are already valid heaps.
+      for (int j = npositions - 1; j >= 0; j--) {
+        final int n = positions[j];
+        heap_ts[n] = nextTimestamp(heap[n]);
+        siftDown(n);
       }
 
       return this;
@@ -584,7 +697,7 @@ final class SpanGroup implements DataPoints {
       final int size = iterators.length;
       final int next = iterators.length + i;
       if (rate) {  // move "current" in "prev".
-        timestamps[next + size] = timestamps[i];
+        setTimestamp(next + size, timestamps[i]);
         values[next + size] = values[i];
         //LOG.debug("Saving #" + i + " -> #" + (next + size)
         //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -592,7 +705,7 @@ final class SpanGroup implements DataPoints {
         //             : " long " + values[i])
         //          + " @ time " + (timestamps[i] & TIME_MASK));
       }
-      timestamps[i] = timestamps[next];
+      setTimestamp(i, timestamps[next]);
       values[i] = values[next];
       //LOG.debug("Moving #" + next + " -> #" + i
       //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -636,12 +749,7 @@ final class SpanGroup implements DataPoints {
       }
       // If at least one of the values we're going to aggregate or interpolate
       // with is a float, we have to convert everything to a float.
-      for (int i = timestamps.length - 1; i >= 0; i--) {
-        if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
-          return false;
-        }
-      }
-      return true;
+      return nfloats == 0;
     }
 
     public long longValue() {
@@ -12,10 +12,15 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -72,6 +77,14 @@ public final class TSDB {
     enable_compactions = !"false".equals(compactions);
   }
 
+  /**
+   * Whether the series written through {@link #newDataPoints} are buffered
+   * in memory and written one compacted row at a time.  Disabled unless
+   * {@code tsd.feature.write_compactions} is set to "true".
+   */
+  static final boolean enable_write_compactions =
+    "true".equals(System.getProperty("tsd.feature.write_compactions"));
+
   /** Client for the HBase cluster to use.  */
   final HBaseClient client;
 
@@ -93,6 +106,18 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
   private final FederatedMetricEngine federatedMetrics;
+  /** Rows with data points buffered, see {@link #enable_write_compactions}. */
+  final Set<IncomingTimeShardedDataPoints.IncomingDataPoints> buffered_rows =
+    Collections.newSetFromMap(new ConcurrentHashMap<
+      IncomingTimeShardedDataPoints.IncomingDataPoints, Boolean>());
+  /** Row key templates of the series recently written to.  */
+  private final RowKeyCache rowkeys;
+  /** Rows read by recent queries, {@code null} if disabled.  */
+  final QueryCache query_cache;
+  /** Index of the series of every metric, {@code null} if disabled.  */
+  final SeriesIndex series_index;
+  /** Where data points go while HBase is unavailable, if enabled.  */
+  private final WriteSpool spool;
   private final byte[] uidtable;
 
   /**
@@ -117,9 +142,30 @@ public final class TSDB {
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL,
                               TAG_VALUE_WIDTH);
     compactionq = new CompactionQueue(this);
+    rowkeys = new RowKeyCache(this);
+    query_cache = QueryCache.MAX_BYTES > 0
+      ? new QueryCache(QueryCache.MAX_BYTES) : null;
+    if (SeriesIndex.MAX_SERIES > 0) {
+      series_index = new SeriesIndex(this, SeriesIndex.MAX_SERIES);
+      series_index.startBootstrap();
+    } else {
+      series_index = null;
+    }
+    if (WriteSpool.DIR == null) {
+      spool = null;
+    } else {
+      try {
+        spool = new WriteSpool(this, new File(WriteSpool.DIR));
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to open the spool in "
+                                        + WriteSpool.DIR, e);
+      }
+      spool.start();
+    }
 
     final byte[] indextable = index_table.getBytes();
     federatedMetrics = new FederatedMetricEngine(new HBaseIndex.Loader(asIdResolver(), client, indextable), this.asIdResolver(), cacheTimeoutMs);
+    federatedMetrics.startBackgroundRefresh();
   }
 
   public List<TsdbQueryDto> splitIfFederated(TsdbQueryDto query) {
@@ -171,6 +217,7 @@ public final class TSDB {
     collectUidStats(metrics, collector);
     collectUidStats(tag_names, collector);
     collectUidStats(tag_values, collector);
+    rowkeys.collectStats(collector);
 
     {
       final Runtime runtime = Runtime.getRuntime();
@@ -188,6 +235,8 @@ public final class TSDB {
     collector.addExtraTag("class", "TsdbQuery");
     try {
       collector.record("hbase.latency", TSDB.scanlatency, "method=scan");
+      TsdbQueryAggregator.collectStats(collector);
+      TsdbQueryLoader.collectStats(collector);
     } finally {
       collector.clearExtraTag("class");
     }
@@ -213,6 +262,22 @@ public final class TSDB {
                      stats.numRpcDelayedDueToNSRE());
 
     compactionq.collectStats(collector);
+    if (enable_write_compactions) {
+      collector.record("compaction.count",
+        IncomingTimeShardedDataPoints.IncomingDataPoints.write_compactions,
+        "type=write");
+      collector.record("compaction.buffered_rows", buffered_rows.size());
+    }
+    federatedMetrics.collectStats(collector);
+    if (series_index != null) {
+      series_index.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
   }
 
   /** Returns a latency histogram for Put RPCs used to store data points. */
@@ -276,9 +341,30 @@ public final class TSDB {
                                    final long timestamp,
                                    final long value,
                                    final Map<String, String> tags) {
-    final short flags = 0x7;  // An int stored on 8 bytes.
-    return addPointInternal(metric, timestamp, Bytes.fromLong(value),
-                            tags, flags);
+    final byte[] v = encodeInteger(value);
+    final short flags = (short) (v.length - 1);  // Just the length.
+    return addPointInternal(metric, timestamp, v, tags, flags);
+  }
+
+  /**
+   * Encodes an integer value on as few bytes as possible.
+   * <p>
+   * Readers have always understood integers on 1, 2, 4 or 8 bytes, but
+   * single-byte values are read as unsigned, so only values in the range
+   * [0, 127] are stored on 1 byte.  The length of the array returned, minus
+   * one, gives the flags of the data point.
+   * @param value The value to encode.
+   * @return The big-endian encoding of the value on 1, 2, 4 or 8 bytes.
+   */
+  static byte[] encodeInteger(final long value) {
+    if (0 <= value && value <= Byte.MAX_VALUE) {
+      return new byte[] { (byte) value };
+    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+      return Bytes.fromShort((short) value);
+    } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+      return Bytes.fromInt((int) value);
+    }
+    return Bytes.fromLong(value);
   }
 
   /**
@@ -331,18 +417,105 @@ public final class TSDB {
     }
 
     metric = tryMapMetricToSubMetric(metric, timestamp*1000, tags);
-    RowKey.checkMetricAndTags(metric, tags);
-    final byte[] row = RowKey.rowKeyTemplate(this, metric, tags);
+    return addPointToRow(rowkeys.rowKeyTemplate(metric, tags), timestamp,
+                         value, flags);
+  }
+
+  /**
+   * Resolves the row key of a series, so that many data points can then be
+   * added to it with {@link #addPoint(RowKeyTemplate, long, long)} or
+   * {@link #addPoint(RowKeyTemplate, long, float)}, without looking up the
+   * metric and the tags every time.
+   * @param metric A non-empty string, already mapped to its sub-metric (see
+   * {@link #tryMapMetricToSubMetric}).
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return The row key of the series.
+   * @throws IllegalArgumentException if the metric name or the tags are
+   * invalid.
+   * @throws net.opentsdb.uid.NoSuchUniqueName if the metric doesn't exist
+   * and the TSD isn't allowed to create it.
+   */
+  public RowKeyTemplate rowKeyTemplate(final String metric,
+                                       final Map<String, String> tags) {
+    return rowkeys.rowKeyTemplate(metric, tags);
+  }
+
+  /**
+   * Adds a single integer value data point to a series already resolved.
+   * @param template The row key of the series, see {@link #rowKeyTemplate}.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp is invalid.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   */
+  public Deferred<Object> addPoint(final RowKeyTemplate template,
+                                   final long timestamp,
+                                   final long value) {
+    checkTimestamp(timestamp, template);
+    final byte[] v = encodeInteger(value);
+    return addPointToRow(template, timestamp, v, (short) (v.length - 1));
+  }
+
+  /**
+   * Adds a single floating-point value data point to a series already
+   * resolved.
+   * @param template The row key of the series, see {@link #rowKeyTemplate}.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp is invalid, or if the
+   * value is NaN or infinite.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   */
+  public Deferred<Object> addPoint(final RowKeyTemplate template,
+                                   final long timestamp,
+                                   final float value) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " timestamp=" + timestamp);
+    }
+    checkTimestamp(timestamp, template);
+    return addPointToRow(template, timestamp,
+                         Bytes.fromInt(Float.floatToRawIntBits(value)),
+                         (short) (Const.FLAG_FLOAT | 0x3));
+  }
+
+  private static void checkTimestamp(final long timestamp,
+                                     final RowKeyTemplate template) {
+    if ((timestamp & 0xFFFFFFFF00000000L) != 0) {
+      throw new IllegalArgumentException((timestamp < 0 ? "negative " : "bad")
+          + " timestamp=" + timestamp
+          + " when trying to add a value to row="
+          + Arrays.toString(template.key));
+    }
+  }
+
+  /** Writes a data point to the given series.  */
+  private Deferred<Object> addPointToRow(final RowKeyTemplate template,
+                                         final long timestamp,
+                                         final byte[] value,
+                                         final short flags) {
+    final byte[] row = template.key.clone();
     final long base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     Bytes.setInt(row, (int) base_time, metrics.width());
     scheduleForCompaction(row, (int) base_time);
+    // Only record the series in the index once per row, not for every
+    // data point.
+    if (series_index != null
+        && template.indexed_base_time != (int) base_time) {
+      template.indexed_base_time = (int) base_time;
+      series_index.add(row, (int) base_time);
+    }
     final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
                                      | flags);
     final PutRequest point = new PutRequest(table, row, FAMILY,
                                             Bytes.fromShort(qualifier), value);
     // TODO(tsuna): Add a callback to time the latency of HBase and store the
     // timing in a moving Histogram (once we have a class for this).
-    return client.put(point);
+    return put(point);
   }
 
   /**
@@ -358,9 +531,18 @@ public final class TSDB {
    * recoverable by retrying, some are not.
    */
   public Deferred<Object> flush() throws HBaseException {
+    flushBufferedRows();
     return client.flush();
   }
 
+  /** Writes all the data points buffered by write-time compactions.  */
+  private void flushBufferedRows() {
+    for (final IncomingTimeShardedDataPoints.IncomingDataPoints row
+         : buffered_rows) {
+      row.flushBufferedRow();
+    }
+  }
+
   /**
    * Gracefully shuts down this instance.
    * <p>
@@ -376,8 +558,14 @@ public final class TSDB {
    * recoverable by retrying, some are not.
    */
   public Deferred<Object> shutdown() {
+    federatedMetrics.shutdown();
+    flushBufferedRows();
+    if (spool != null) {
+      spool.shutdown();
+    }
     final class HClientShutdown implements Callback<Object, ArrayList<Object>> {
       public Object call(final ArrayList<Object> args) {
+        compactionq.checkpoint();
         return client.shutdown();
       }
       public String toString() {
@@ -397,13 +585,15 @@ public final class TSDB {
         } else {
           LOG.error("Failed to flush the compaction queue", e);
         }
+        compactionq.checkpoint();
         return client.shutdown();
       }
       public String toString() {
         return "shutdown HBase client after error";
       }
     }
-    // First flush the compaction queue, then shutdown the HBase client.
+    // First flush the compaction queue, then checkpoint whatever is left in
+    // it and shutdown the HBase client.
     return enable_compactions
       ? compactionq.flush().addCallbacks(new HClientShutdown(),
                                          new ShutdownErrback())
@@ -457,6 +647,12 @@ public final class TSDB {
     return compactionq.compact(row);
   }
 
+  /** @see CompactionQueue#compactNow  */
+  final Deferred<Object> compactNow(final ArrayList<KeyValue> row,
+                                    final KeyValue[] stored) {
+    return compactionq.compactNow(row, stored);
+  }
+
   /**
    * Schedules the given row key for later re-compaction.
    * Once this row key has become "old enough", we'll read back all the data
@@ -471,6 +667,17 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Records that data points are written to the given row, once per row.
+   * @param row The row key.  Will not be modified.
+   * @param base_time The 32-bit unsigned UNIX timestamp.
+   */
+  final void indexRow(final byte[] row, final int base_time) {
+    if (series_index != null) {
+      series_index.add(row, base_time);
+    }
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
@@ -487,6 +694,19 @@ public final class TSDB {
     return client.put(new PutRequest(table, key, FAMILY, qualifier, value));
   }
 
+  /**
+   * Writes a data point, through the spool if it's enabled.
+   * All the data points must be written through here, so that the
+   * {@link QueryCache} doesn't keep serving rows they've changed.
+   * @param point The data point to write.
+   */
+  final Deferred<Object> put(final PutRequest point) {
+    final Deferred<Object> d = spool == null
+      ? client.put(point) : spool.put(point);
+    return query_cache == null
+      ? d : query_cache.written(point.key(), metrics.width(), d);
+  }
+
   /** Deletes the given cells from the data table. */
   final Deferred<Object> delete(final byte[] key, final byte[][] qualifiers) {
     return client.delete(new DeleteRequest(table, key, FAMILY, qualifiers));
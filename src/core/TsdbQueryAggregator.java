@@ -12,11 +12,19 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
 import org.hbase.async.HBaseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hbase.async.Bytes.ByteMap;
 
@@ -28,6 +36,33 @@ public final class TsdbQueryAggregator {
     private static final Logger LOG = LoggerFactory.getLogger(TsdbQueryAggregator.class);
     private static final byte[] empty = new byte[0];
 
+    /**
+     * How many sub-queries of a federated query can be in flight at the
+     * same time, for each query.
+     */
+    private static final int MAX_FANOUT =
+            Math.max(1, Integer.getInteger("tsd.query.max_subqueries_inflight", 8));
+
+    /** Number of sub-queries issued. */
+    private static final AtomicLong subqueries_count = new AtomicLong();
+    /** Number of sub-queries that failed. */
+    private static final AtomicLong subquery_errors = new AtomicLong();
+    /** Latency (in ms) of each sub-query, from issue to completion. */
+    private static final Histogram subquerylatency =
+            new Histogram(16000, (short) 2, 100);
+
+    /**
+     * Whether or not identical concurrent queries share the same execution.
+     */
+    private static final boolean COALESCE =
+            Boolean.parseBoolean(System.getProperty("tsd.query.coalesce", "true"));
+
+    /** Queries currently executing, by {@link #coalescingKey}. */
+    private static final ConcurrentHashMap<String, InFlight> inflight =
+            new ConcurrentHashMap<String, InFlight>();
+    /** Number of queries answered by an identical query already in flight. */
+    private static final AtomicLong coalesced_count = new AtomicLong();
+
     /**
      * The TSDB we belong to.
      */
@@ -43,7 +78,120 @@ public final class TsdbQueryAggregator {
     }
 
     public static DataPoints[] execute(TSDB tsdb, TsdbQueryDto query) {
-        return new TsdbQueryAggregator(tsdb).run(query);
+        try {
+            return executeAsync(tsdb, query).joinUninterruptibly();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Should never be here", e);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #execute}: no thread is blocked while
+     * the data is being fetched from HBase.
+     * The callbacks run on HBase I/O threads, so callers shouldn't do any
+     * blocking work (like resolving UIDs) directly in their own callbacks.
+     *
+     * @return A deferred array of results, which fails if the query failed.
+     * @throws org.hbase.async.HBaseException if the query couldn't be issued.
+     */
+    public static Deferred<DataPoints[]> executeAsync(TSDB tsdb, TsdbQueryDto query) {
+        if (!COALESCE) {
+            return new TsdbQueryAggregator(tsdb).run(query);
+        }
+        final String key = coalescingKey(query);
+        final InFlight running = inflight.get(key);
+        if (running != null) {
+            final Deferred<DataPoints[]> d = running.join();
+            if (d != null) {
+                coalesced_count.incrementAndGet();
+                LOG.debug("Coalescing with a query in flight: " + query);
+                return d;
+            }
+            // It just completed, don't use a result that may be stale.
+        }
+        final InFlight mine = new InFlight();
+        final Deferred<DataPoints[]> result = mine.join();
+        final boolean leader = inflight.putIfAbsent(key, mine) == null;
+        final Deferred<DataPoints[]> d;
+        try {
+            d = new TsdbQueryAggregator(tsdb).run(query);
+        } catch (RuntimeException e) {
+            if (leader) {
+                inflight.remove(key, mine);
+            }
+            mine.complete(e);
+            throw e;
+        }
+        final class DoneCB implements Callback<Object, Object> {
+            public Object call(final Object arg) {
+                if (leader) {
+                    inflight.remove(key, mine);
+                }
+                mine.complete(arg);
+                return null;
+            }
+        }
+        final DoneCB done = new DoneCB();
+        d.addCallbacks(new Callback<Object, DataPoints[]>() {
+                           public Object call(final DataPoints[] results) {
+                               return done.call(results);
+                           }
+                       },
+                       new Callback<Object, Exception>() {
+                           public Object call(final Exception e) {
+                               return done.call(e);
+                           }
+                       });
+        return result;
+    }
+
+    /**
+     * Returns a key that is the same for queries that return the same
+     * results, whichever way they were written.
+     */
+    static String coalescingKey(final TsdbQueryDto query) {
+        return QueryCache.key(query) + ' ' + query.start_time + '-' + query.end_time
+                + ' ' + query.aggregator + (query.rate ? " rate " : " ")
+                + query.sample_interval + '-' + query.downsampler;
+    }
+
+    /**
+     * A query being executed, and the callers waiting for its results.
+     * Each caller gets its own {@link Deferred}, as a {@link Deferred} can
+     * only have one callback chain.
+     */
+    static final class InFlight {
+        /** The callers to call back, {@code null} once completed. */
+        private ArrayList<Deferred<DataPoints[]>> waiters =
+                new ArrayList<Deferred<DataPoints[]>>(1);
+
+        /**
+         * Returns a deferred for the results of this query, or {@code null}
+         * if the query has already completed.
+         */
+        synchronized Deferred<DataPoints[]> join() {
+            if (waiters == null) {
+                return null;
+            }
+            final Deferred<DataPoints[]> d = new Deferred<DataPoints[]>();
+            waiters.add(d);
+            return d;
+        }
+
+        /** Calls back every caller with the results, or an exception. */
+        void complete(final Object arg) {
+            final ArrayList<Deferred<DataPoints[]>> callers;
+            synchronized (this) {
+                callers = waiters;
+                waiters = null;
+            }
+            for (final Deferred<DataPoints[]> d : callers) {
+                // Each caller gets its own array, the SpanGroups are shared.
+                d.callback(arg instanceof DataPoints[] ? ((DataPoints[]) arg).clone() : arg);
+            }
+        }
     }
 
     // Maps group value IDs to the SpanGroup for those values.  Say we've
@@ -59,19 +207,189 @@ public final class TsdbQueryAggregator {
     //   - one for the LOL-WTF combination: [0, 0, 1, 0, 0, 3].
     final ByteMap<SpanGroup> groups = new ByteMap<SpanGroup>();
 
-    private DataPoints[] run(TsdbQueryDto query) throws HBaseException {
-        TsdbQueryLoader loader = new TsdbQueryLoader(tsdb);
-        List<TsdbQueryDto> splitted = tsdb.splitIfFederated(query);
-        int hbase_time = 0;
-        for (TsdbQueryDto subQuery : splitted) {
-            TsdbQueryLoader.Response response = loader.findSpans(subQuery);
-            groupByAndAggregate(query, subQuery, response.data);
-            hbase_time += response.hbaseTs;
-        }
-        TSDB.scanlatency.add(hbase_time);
-        return groups.values().toArray(new SpanGroup[groups.size()]);
+    private Deferred<DataPoints[]> run(TsdbQueryDto query) throws HBaseException {
+        final List<TsdbQueryDto> splitted = tsdb.splitIfFederated(query);
+        final Fanout fanout = new Fanout(query, splitted);
+        final class ResultCB implements Callback<DataPoints[], Object> {
+            public DataPoints[] call(final Object unused) {
+                synchronized (TSDB.scanlatency) {
+                    TSDB.scanlatency.add((int) fanout.hbase_time.get());
+                }
+                synchronized (TsdbQueryAggregator.this) {
+                    return groups.values().toArray(new SpanGroup[groups.size()]);
+                }
+            }
+        }
+        return fanout.start().addCallback(new ResultCB());
     }
 
+    /**
+     * Collects the stats and metrics tracked by this class.
+     *
+     * @param collector The collector to use.
+     */
+    static void collectStats(final StatsCollector collector) {
+        collector.record("query.subqueries", subqueries_count, "type=issued");
+        collector.record("query.subqueries", subquery_errors, "type=failed");
+        collector.record("query.coalesced", coalesced_count);
+        synchronized (subquerylatency) {
+            collector.record("query.latency", subquerylatency, "type=subquery");
+        }
+    }
+
+    /**
+     * Runs the sub-queries of a (possibly federated) query concurrently.
+     * At most {@link #MAX_FANOUT} sub-queries are in flight at any time,
+     * a new one is issued each time one completes.  The first failure
+     * fails the whole query and no other sub-query is issued after it.
+     */
+    private final class Fanout {
+        private final TsdbQueryDto query;
+        private final List<TsdbQueryDto> subqueries;
+        private final TsdbQueryLoader loader = new TsdbQueryLoader(tsdb);
+        private final Deferred<Object> done = new Deferred<Object>();
+        /** Index of the next sub-query to issue. */
+        private final AtomicInteger next = new AtomicInteger();
+        /** Number of sub-queries that haven't completed yet. */
+        private final AtomicInteger remaining;
+        /** Set once {@link #done} has been called back. */
+        private final AtomicBoolean finished = new AtomicBoolean();
+        /**
+         * Number of sub-queries left to issue by the thread in
+         * {@link #issue}, see there.
+         */
+        private final AtomicInteger to_issue = new AtomicInteger();
+        /**
+         * Longest time a sub-query spent waiting on HBase (ms).  Sub-queries
+         * run in parallel, so the sum of their times would overstate it.
+         */
+        final AtomicLong hbase_time = new AtomicLong();
+
+        Fanout(final TsdbQueryDto query, final List<TsdbQueryDto> subqueries) {
+            this.query = query;
+            this.subqueries = subqueries;
+            this.remaining = new AtomicInteger(subqueries.size());
+        }
+
+        Deferred<Object> start() {
+            if (subqueries.isEmpty()) {
+                return Deferred.fromResult(null);
+            }
+            issue(Math.min(MAX_FANOUT, subqueries.size()));
+            return done.addBoth(new Callback<Object, Object>() {
+                public Object call(final Object arg) {
+                    loader.release();
+                    return arg;
+                }
+                public String toString() {
+                    return "release the rows loaded by " + query;
+                }
+            });
+        }
+
+        /**
+         * Issues the given number of sub-queries.
+         * <p>
+         * The callback of a sub-query issues the next one, and it runs right
+         * away, on the same stack, when the sub-query completes without
+         * waiting on HBase (e.g. it's answered from the cache or by the
+         * series index).  So only one thread at a time issues sub-queries,
+         * in a loop, and the others just tell it how many more to issue,
+         * otherwise a federated metric with thousands of sub-metrics could
+         * overflow the stack.
+         */
+        private void issue(final int n) {
+            if (to_issue.getAndAdd(n) != 0) {
+                return;  // Another call is issuing, it'll issue these too.
+            }
+            int count = n;
+            do {
+                for (int i = 0; i < count; i++) {
+                    issueNext();
+                }
+                count = to_issue.addAndGet(-count);
+            } while (count != 0);
+        }
+
+        private void issueNext() {
+            final int i = next.getAndIncrement();
+            if (i >= subqueries.size() || finished.get()) {
+                return;
+            }
+            final TsdbQueryDto subquery = subqueries.get(i);
+            final long start_time = System.nanoTime();
+            subqueries_count.incrementAndGet();
+            final Deferred<TsdbQueryLoader.Response> d;
+            try {
+                d = loader.findSpansAsync(subquery);
+            } catch (RuntimeException e) {
+                fail(subquery, e);
+                return;
+            }
+            d.addCallbacks(new SubQueryCB(subquery, start_time),
+                           new Callback<Object, Exception>() {
+                               public Object call(final Exception e) {
+                                   fail(subquery, e);
+                                   return null;
+                               }
+                           });
+        }
+
+        private void fail(final TsdbQueryDto subquery, final Exception e) {
+            subquery_errors.incrementAndGet();
+            LOG.warn("Sub-query failed: " + subquery, e);
+            if (finished.compareAndSet(false, true)) {
+                done.callback(e);
+            }
+        }
+
+        /** Merges the results of a sub-query and issues the next one. */
+        private final class SubQueryCB implements Callback<Object, TsdbQueryLoader.Response> {
+            private final TsdbQueryDto subquery;
+            private final long start_time;
+
+            SubQueryCB(final TsdbQueryDto subquery, final long start_time) {
+                this.subquery = subquery;
+                this.start_time = start_time;
+            }
+
+            public Object call(final TsdbQueryLoader.Response response) {
+                final int latency = (int) ((System.nanoTime() - start_time) / 1000000);
+                synchronized (subquerylatency) {
+                    subquerylatency.add(latency);
+                }
+                if (finished.get()) {  // Another sub-query failed already.
+                    return null;
+                }
+                try {
+                    if (response != null) {
+                        long max;
+                        while ((max = hbase_time.get()) < response.hbaseTs
+                               && !hbase_time.compareAndSet(max, response.hbaseTs)) {
+                            // Retry.
+                        }
+                        groupByAndAggregate(query, subquery, response.data);
+                    }
+                } catch (RuntimeException e) {
+                    fail(subquery, e);
+                    return null;
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Sub-query took " + latency + "ms ("
+                            + (response == null ? 0 : response.data.size())
+                            + " spans): " + subquery);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    if (finished.compareAndSet(false, true)) {
+                        done.callback(null);
+                    }
+                } else {
+                    issue(1);
+                }
+                return null;
+            }
+        }
+    }
 
     /**
      * Creates the {@link net.opentsdb.core.SpanGroup}s to form the final results of this query.
@@ -81,7 +399,7 @@ public final class TsdbQueryAggregator {
      * @return A possibly empty array of {@link net.opentsdb.core.SpanGroup}s built according to
      *         any 'GROUP BY' formulated in this query.
      */
-    private void groupByAndAggregate(TsdbQueryDto rootQuery, TsdbQueryDto query, final TreeMap<byte[], Span> spans) {
+    private synchronized void groupByAndAggregate(TsdbQueryDto rootQuery, TsdbQueryDto query, final TreeMap<byte[], Span> spans) {
         if (spans == null || spans.size() <= 0) return;
         final byte[] key = query.group_bys == null ? empty : new byte[query.group_bys.size() * value_width];
 
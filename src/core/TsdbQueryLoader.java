@@ -12,7 +12,11 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 import org.hbase.async.Bytes;
@@ -24,6 +28,8 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static org.hbase.async.Bytes.ByteMap;
 
@@ -63,6 +69,92 @@ public final class TsdbQueryLoader {
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(TsdbQueryLoader.class);
+
+    /**
+     * Maximum number of time slices scanned concurrently for a query.
+     * 1 disables slicing.
+     */
+    private static final int MAX_SLICES =
+            Integer.getInteger("tsd.query.max_scan_slices", 4);
+
+    /**
+     * Minimum time range (in seconds) covered by a slice, queries shorter
+     * than twice this are done with a single scanner.
+     */
+    private static final long SLICE_SPAN =
+            Math.max(Const.MAX_TIMESPAN, Long.getLong("tsd.query.scan_slice_span", 7 * 86400));
+
+    /** Number of rows fetched per batch by the scanner of a query. */
+    private static final int SCAN_BATCH_SIZE =
+            Integer.getInteger("tsd.query.scan_batch_size", 128);
+
+    /**
+     * Number of rows fetched per batch by the scanners of a query split in
+     * time slices.  These are long-range queries, so larger batches reduce
+     * the number of round trips.
+     */
+    private static final int SLICED_SCAN_BATCH_SIZE =
+            Integer.getInteger("tsd.query.sliced_scan_batch_size", 1024);
+
+    /**
+     * Maximum number of rows to fetch with individual gets when we know
+     * exactly which series match a query, 0 to always scan.
+     */
+    private static final int MAX_MULTIGET_ROWS =
+            Integer.getInteger("tsd.query.max_multiget_rows", 512);
+
+    /**
+     * Maximum number of bytes of rows a single query can load, 0 for no
+     * limit.  The data of every series matching a query has to be loaded
+     * before it can be aggregated, so this protects the TSD from queries
+     * matching too many series over a long time range.  This only accounts
+     * for the rows as read from HBase (see {@link #rowBytes}): the spans
+     * built out of them and the rows buffered by sliced scans take about
+     * as much again, hence the low default.
+     */
+    private static final long MAX_QUERY_BYTES =
+            Long.getLong("tsd.query.max_bytes", Runtime.getRuntime().maxMemory() / 16);
+
+    /**
+     * Maximum number of bytes of rows all the queries being loaded can hold
+     * together, 0 for no limit.  Past it, the query that loads a row fails,
+     * so that a few concurrent wide queries can't exhaust the heap either.
+     */
+    private static final long MAX_TOTAL_BYTES =
+            Long.getLong("tsd.query.max_total_bytes", Runtime.getRuntime().maxMemory() / 4);
+
+    /** Rough size of a {@link KeyValue} other than its arrays. */
+    private static final int KV_OVERHEAD = 32 + 4 * 16;
+
+    /** Number of queries aborted because they loaded too much data. */
+    private static final AtomicLong too_large_queries = new AtomicLong();
+    /** Number of queries aborted because all the queries loaded too much. */
+    private static final AtomicLong overloaded_queries = new AtomicLong();
+
+    /**
+     * Bytes of rows held by all the queries being loaded, see
+     * {@link #release}.
+     */
+    static final AtomicLong total_loaded_bytes = new AtomicLong();
+
+    /** Number of queries done with gets instead of a scan. */
+    private static final AtomicLong multiget_plans = new AtomicLong();
+    /** Number of rows requested with gets. */
+    private static final AtomicLong multiget_rows = new AtomicLong();
+    /** Number of queries that didn't need a scan as no series matched. */
+    private static final AtomicLong index_empty_plans = new AtomicLong();
+    /** Number of queries scanned with a single scanner. */
+    private static final AtomicLong single_scans = new AtomicLong();
+    /** Number of queries split in time slices. */
+    private static final AtomicLong sliced_scans = new AtomicLong();
+    /** Total number of time slices scanned. */
+    private static final AtomicLong slices_count = new AtomicLong();
+    /** Total time (in ms) spent waiting for scanners to return rows. */
+    private static final AtomicLong scan_wait_time = new AtomicLong();
+    /** Total time (in ms) spent processing the rows returned by scanners. */
+    private static final AtomicLong scan_process_time = new AtomicLong();
+    /** Time (in ms) spent waiting on HBase by each slice. */
+    private static final Histogram slicelatency = new Histogram(16000, (short) 2, 100);
 //
 //  /**
 //   * Charset to use with our server-side row-filter.
@@ -76,9 +168,83 @@ public final class TsdbQueryLoader {
      */
     private final TSDB tsdb;
 
+    /**
+     * Bytes of data loaded so far by the queries done with this loader.
+     * A loader is used for all the sub-queries of a query, so they share
+     * the same budget.  Negative once {@link #release}d.
+     */
+    private final AtomicLong loaded_bytes = new AtomicLong();
+    /** Maximum number of bytes the queries of this loader can load. */
+    private final long max_bytes;
+    /** Set once a query exceeded its budget. */
+    private volatile boolean over_budget = false;
+
     //  /** Constructor. */
     public TsdbQueryLoader(final TSDB tsdb) {
+        this(tsdb, MAX_QUERY_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param max_bytes Maximum number of bytes of rows the queries done with
+     *                  this loader can load, 0 for no limit.
+     */
+    TsdbQueryLoader(final TSDB tsdb, final long max_bytes) {
         this.tsdb = tsdb;
+        this.max_bytes = max_bytes;
+    }
+
+    /** Returns the estimated size in memory of a row, in bytes. */
+    static long rowBytes(final KeyValue row) {
+        return KV_OVERHEAD + row.key().length + row.qualifier().length + row.value().length;
+    }
+
+    /**
+     * Accounts for a row loaded by a query.
+     * This is done as the rows arrive, so that a query that matches too
+     * much data is aborted before it can exhaust the heap.
+     *
+     * @throws QueryTooLargeException if the query exceeded its budget.
+     */
+    void charge(final TsdbQueryDto query, final KeyValue row) {
+        final long size = rowBytes(row);
+        final long loaded = loaded_bytes.addAndGet(size);
+        if (loaded < 0) {
+            return;  // Released, the rows of stragglers are dropped anyway.
+        }
+        final long total = total_loaded_bytes.addAndGet(size);
+        if (max_bytes > 0 && loaded > max_bytes) {
+            if (!over_budget) {
+                over_budget = true;
+                too_large_queries.incrementAndGet();
+            }
+            throw new QueryTooLargeException("Query " + query + " loaded more than " + max_bytes
+                    + " bytes of data points and was aborted, try a shorter time range or more"
+                    + " specific tags (limit set with tsd.query.max_bytes)");
+        }
+        if (MAX_TOTAL_BYTES > 0 && total > MAX_TOTAL_BYTES) {
+            if (!over_budget) {
+                over_budget = true;
+                overloaded_queries.incrementAndGet();
+            }
+            throw new QueryTooLargeException("Query " + query + " was aborted as the queries"
+                    + " running concurrently loaded more than " + MAX_TOTAL_BYTES
+                    + " bytes of data points, try again later or narrow the query"
+                    + " (limit set with tsd.query.max_total_bytes)");
+        }
+    }
+
+    /**
+     * Gives back the bytes loaded by the queries of this loader to the
+     * TSD-wide budget, once they're done.  Rows loaded afterwards by
+     * sub-queries still in flight aren't accounted for.
+     */
+    void release() {
+        final long loaded = loaded_bytes.getAndSet(Long.MIN_VALUE / 2);
+        if (loaded > 0) {
+            total_loaded_bytes.addAndGet(-loaded);
+        }
     }
 
     public static class Response {
@@ -105,49 +271,548 @@ public final class TsdbQueryLoader {
      * @throws IllegalArgumentException       if bad data was retreived from HBase.
      */
     public Response findSpans(final TsdbQueryDto query) throws HBaseException {
-        final short metric_width = tsdb.metrics.width();
+        try {
+            return findSpansAsync(query).joinUninterruptibly();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Should never be here", e);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #findSpans}.
+     * The scan is driven by callbacks, so no thread is blocked while
+     * waiting for HBase, which allows many queries to be in flight at the
+     * same time.
+     *
+     * @return A deferred {@link Response}, or {@code null} if no row matched.
+     *         The deferred fails if there was a problem with HBase or if
+     *         bad data was retrieved.
+     * @throws org.hbase.async.HBaseException if the scanner couldn't be created.
+     */
+    public Deferred<Response> findSpansAsync(final TsdbQueryDto query) throws HBaseException {
+        if (tsdb.series_index != null) {
+            // The index is authoritative: it's only enabled when this TSD
+            // is the only writer, see SeriesIndex.
+            final List<byte[]> series = tsdb.series_index.findSeries(query);
+            if (series != null && series.isEmpty()) {
+                // No need to scan, we know no series matches.
+                index_empty_plans.incrementAndGet();
+                return Deferred.fromResult(null);
+            } else if (series != null) {
+                // We know exactly which series match, it's cheaper to get
+                // their rows than to scan the metric if there aren't many.
+                final long start = query.getScanStartTime();
+                final long first = start - start % Const.MAX_TIMESPAN;
+                final long nrows = rowsPerSeries(first, query.end_time == null
+                        ? System.currentTimeMillis() / 1000 + 1
+                        : query.getScanEndTime());
+                if (nrows > 0 && series.size() * nrows <= MAX_MULTIGET_ROWS) {
+                    return findSpansMultiGet(query, series, first, (int) nrows);
+                }
+            }
+        }
+        if (tsdb.query_cache != null) {
+            return findSpansCached(query, tsdb.query_cache);
+        }
+        final long[] boundaries = sliceBoundaries(query.getScanStartTime(), scanEndTime(query));
+        if (boundaries != null) {
+            return findSpansSliced(query, boundaries);
+        }
+        single_scans.incrementAndGet();
         final TreeMap<byte[], Span> spans =  // The key is a row key from HBase.
-                new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-        int nrows = 0;
-        int hbase_time = 0;  // milliseconds.
-        long starttime = System.nanoTime();
+                new TreeMap<byte[], Span>(new SpanCmp(tsdb.metrics.width()));
         final Scanner scanner = getScanner(tsdb, query);
-        try {
-            ArrayList<ArrayList<KeyValue>> rows;
-            while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
-                hbase_time += (System.nanoTime() - starttime) / 1000000;
-                for (final ArrayList<KeyValue> row : rows) {
-                    final byte[] key = row.get(0).key();
-                    if (Bytes.memcmp(query.metric, key, 0, metric_width) != 0) {
-                        throw new IllegalDataException("HBase returned a row that doesn't match"
-                                + " our scanner (" + scanner + ")! " + row + " does not start"
-                                + " with " + Arrays.toString(query.metric));
+        scanner.setMaxNumRows(SCAN_BATCH_SIZE);
+        final ScannerCB cb = new ScannerCB(query, scanner, spans);
+        final class ResponseCB implements Callback<Response, Object> {
+            public Response call(final Object unused) {
+                LOG.info(TsdbQueryLoader.this + " matched " + cb.nrows + " rows in " + spans.size() + " spans");
+                return cb.nrows == 0 ? null : new Response(spans, cb.hbase_time / 1000000);
+            }
+        }
+        cb.scan();
+        return cb.done.addCallback(new ResponseCB());
+    }
+
+    /**
+     * Collects the stats and metrics tracked by this class.
+     *
+     * @param collector The collector to use.
+     */
+    static void collectStats(final StatsCollector collector) {
+        collector.record("query.scans", index_empty_plans, "type=none");
+        collector.record("query.scans", multiget_plans, "type=multiget");
+        collector.record("query.scans.gets", multiget_rows);
+        collector.record("query.scans", single_scans, "type=single");
+        collector.record("query.scans", sliced_scans, "type=sliced");
+        collector.record("query.scans.slices", slices_count);
+        collector.record("query.scans.time", scan_wait_time, "type=wait");
+        collector.record("query.scans.time", scan_process_time, "type=process");
+        collector.record("query.rejected", too_large_queries, "reason=too_large");
+        collector.record("query.rejected", overloaded_queries, "reason=overloaded");
+        collector.record("query.loaded_bytes", total_loaded_bytes);
+        synchronized (slicelatency) {
+            collector.record("query.latency", slicelatency, "type=slice");
+        }
+    }
+
+    /**
+     * Decides whether or not to split a scan in time slices.
+     *
+     * @param start The UNIX timestamp from which to scan.
+     * @param end The UNIX timestamp at which to stop, -1 to scan until now.
+     * @return The timestamps at which the slices start, followed by the
+     *         end of the last slice ({@code end}), or {@code null} if a
+     *         single scanner should be used.
+     */
+    static long[] sliceBoundaries(final long start, final long end) {
+        if (MAX_SLICES <= 1) {
+            return null;
+        }
+        final long last = end == -1
+                ? System.currentTimeMillis() / 1000 + Const.MAX_TIMESPAN
+                : end;
+        final long range = last - start;
+        final int nslices = (int) Math.min(MAX_SLICES, range / SLICE_SPAN);
+        if (nslices <= 1) {
+            return null;
+        }
+        // Align the slices on row boundaries.
+        final long slice = (range / nslices + Const.MAX_TIMESPAN - 1)
+                / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN;
+        final long first = start - start % Const.MAX_TIMESPAN;
+        int n = 1;
+        while (n < nslices && first + n * slice < last) {
+            n++;
+        }
+        final long[] boundaries = new long[n + 1];
+        boundaries[0] = start;
+        for (int i = 1; i < n; i++) {
+            boundaries[i] = first + i * slice;
+        }
+        boundaries[n] = end;
+        return boundaries;
+    }
+
+    /** Returns the end of the scan of a query, -1 if it has no end. */
+    private static long scanEndTime(final TsdbQueryDto query) {
+        return query.end_time == null ? -1 : query.getScanEndTime();
+    }
+
+    /**
+     * Scans every time slice of a query concurrently.
+     * The rows of each slice are buffered and only loaded into spans once
+     * all the slices are done, in time order, since a
+     * {@link net.opentsdb.core.Span} requires its rows to be added in order.
+     */
+    private Deferred<Response> findSpansSliced(final TsdbQueryDto query, final long[] boundaries) {
+        final class ResponseCB implements Callback<Response, ScannedRows> {
+            public Response call(final ScannedRows scanned) {
+                final TreeMap<byte[], Span> spans = buildSpans(scanned.rows, null);
+                LOG.info(TsdbQueryLoader.this + " matched " + scanned.rows.size() + " rows in " + spans.size()
+                        + " spans using " + (boundaries.length - 1) + " slices");
+                return scanned.rows.isEmpty() ? null : new Response(spans, scanned.hbase_time / 1000000);
+            }
+        }
+        return scanRows(query, boundaries).addCallback(new ResponseCB());
+    }
+
+    /** Compacted rows returned by {@link #scanRows}. */
+    private static final class ScannedRows {
+        /** The rows, in time order. */
+        final ArrayList<KeyValue> rows;
+        /** How long we waited for HBase (nanoseconds). */
+        final long hbase_time;
+
+        ScannedRows(final ArrayList<KeyValue> rows, final long hbase_time) {
+            this.rows = rows;
+            this.hbase_time = hbase_time;
+        }
+    }
+
+    /**
+     * Scans the rows of a query in one or more time slices, concurrently.
+     *
+     * @param boundaries The timestamps at which the slices start, followed by
+     *                   the end of the last one (-1 for no end).
+     */
+    private Deferred<ScannedRows> scanRows(final TsdbQueryDto query, final long[] boundaries) {
+        final int nslices = boundaries.length - 1;
+        if (nslices > 1) {
+            sliced_scans.incrementAndGet();
+            slices_count.addAndGet(nslices);
+            LOG.debug("Scanning " + query + " in " + nslices + " time slices");
+        } else {
+            single_scans.incrementAndGet();
+        }
+        final short metric_width = tsdb.metrics.width();
+        final ScannerCB[] slices = new ScannerCB[nslices];
+        final ArrayList<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>(nslices);
+        for (int i = 0; i < nslices; i++) {
+            final Scanner scanner = getScanner(tsdb, query);
+            scanner.setStartKey(rowKey(query.metric, boundaries[i], metric_width));
+            scanner.setStopKey(rowKey(query.metric, boundaries[i + 1], metric_width));
+            scanner.setMaxNumRows(nslices > 1 ? SLICED_SCAN_BATCH_SIZE : SCAN_BATCH_SIZE);
+            final ScannerCB slice = new ScannerCB(query, scanner, null);
+            final long slice_start = boundaries[i];
+            final class SliceDoneCB implements Callback<Object, Object> {
+                public Object call(final Object unused) {
+                    final int latency = (int) (slice.hbase_time / 1000000);
+                    synchronized (slicelatency) {
+                        slicelatency.add(latency);
                     }
-                    Span datapoints = spans.get(key);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Slice starting at " + slice_start + " of " + query
+                                + " matched " + slice.nrows + " rows in " + latency + "ms");
+                    }
+                    return null;
+                }
+            }
+            slices[i] = slice;
+            deferreds.add(nslices > 1 ? slice.done.addCallback(new SliceDoneCB()) : slice.done);
+            slice.scan();
+        }
+
+        final class MergeCB implements Callback<ScannedRows, ArrayList<Object>> {
+            public ScannedRows call(final ArrayList<Object> unused) {
+                int nrows = 0;
+                for (final ScannerCB slice : slices) {
+                    nrows += slice.nrows;
+                }
+                final ArrayList<KeyValue> rows = new ArrayList<KeyValue>(nrows);
+                long hbase_time = 0;
+                for (final ScannerCB slice : slices) {
+                    rows.addAll(slice.buffered);
+                    // The slices ran in parallel, so the slowest one is
+                    // how long we waited for HBase.
+                    hbase_time = Math.max(hbase_time, slice.hbase_time);
+                }
+                return new ScannedRows(rows, hbase_time);
+            }
+        }
+        return Deferred.group(deferreds).addCallbacks(new MergeCB(), new UnwrapErrorCB());
+    }
+
+    /**
+     * Loads compacted rows into {@link net.opentsdb.core.Span}s.
+     *
+     * @param rows The rows, in time order for each series.
+     * @param spans Where to add the rows, or {@code null} to create a new map.
+     */
+    private TreeMap<byte[], Span> buildSpans(final List<KeyValue> rows, TreeMap<byte[], Span> spans) {
+        if (spans == null) {
+            spans = new TreeMap<byte[], Span>(new SpanCmp(tsdb.metrics.width()));
+        }
+        for (final KeyValue row : rows) {
+            Span datapoints = spans.get(row.key());
+            if (datapoints == null) {
+                datapoints = new Span(tsdb);
+                spans.put(row.key(), datapoints);
+            }
+            datapoints.addRow(row);
+        }
+        return spans;
+    }
+
+    /**
+     * Finds the spans of a query with the help of the {@link QueryCache}.
+     * The rows cached for this query are reused and only the rows that
+     * follow them are scanned, so that a dashboard that keeps refreshing
+     * the same graph only scans the most recent rows.
+     */
+    private Deferred<Response> findSpansCached(final TsdbQueryDto query, final QueryCache cache) {
+        final String key = QueryCache.key(query);
+        final long since = System.currentTimeMillis();
+        final long start = query.getScanStartTime();
+        final long end = scanEndTime(query);
+        final QueryCache.Entry cached = cache.get(key, query.metric, start);
+        final long from;
+        if (cached == null) {
+            from = start;
+        } else if (end != -1 && end <= cached.end) {
+            // Everything we need is in the cache.
+            cache.recordHit(false);
+            final ArrayList<KeyValue> rows = cached.rowsFrom(start, metricWidth());
+            for (final KeyValue row : rows) {
+                charge(query, row);
+            }
+            final TreeMap<byte[], Span> spans = buildSpans(rows, null);
+            LOG.info(this + " found " + rows.size() + " rows in " + spans.size() + " spans in cache");
+            return Deferred.fromResult(rows.isEmpty() ? null : new Response(spans, 0));
+        } else {
+            cache.recordHit(true);
+            from = cached.end;
+        }
+
+        long[] boundaries = sliceBoundaries(from, end);
+        if (boundaries == null) {
+            boundaries = new long[] { from, end };
+        }
+        final class CacheCB implements Callback<Response, ScannedRows> {
+            public Response call(final ScannedRows scanned) {
+                final ArrayList<KeyValue> rows = cached == null
+                        ? new ArrayList<KeyValue>(scanned.rows.size())
+                        : cached.rowsFrom(start, metricWidth());
+                final int ncached = rows.size();
+                for (final KeyValue row : rows) {
+                    charge(query, row);
+                }
+                rows.addAll(scanned.rows);
+                long complete = QueryCache.cacheableEnd(since / 1000);
+                if (end != -1) {
+                    complete = Math.min(complete, end);
+                }
+                if (cached != null) {
+                    // Extend the entry rather than replace it, so that the
+                    // queries that start before us can still use it.
+                    final ArrayList<KeyValue> extended = cached.rowsFrom(cached.start, metricWidth());
+                    extended.addAll(scanned.rows);
+                    cache.put(key, cached.start, Math.max(complete, cached.end), extended,
+                              metricWidth(), cached.since);
+                } else if (complete > start) {
+                    cache.put(key, start, complete, rows, metricWidth(), since);
+                }
+                final TreeMap<byte[], Span> spans = buildSpans(rows, null);
+                LOG.info(TsdbQueryLoader.this + " matched " + rows.size() + " rows in " + spans.size()
+                        + " spans, " + ncached + " of them from cache");
+                return rows.isEmpty() ? null : new Response(spans, scanned.hbase_time / 1000000);
+            }
+        }
+        return scanRows(query, boundaries).addCallback(new CacheCB());
+    }
+
+    private short metricWidth() {
+        return tsdb.metrics.width();
+    }
+
+    /**
+     * Returns the number of rows of a series from a base time up to a time.
+     *
+     * @param first_base_time The base time of the first row.
+     * @param end The UNIX timestamp (exclusive) of the end of the range.
+     */
+    static long rowsPerSeries(final long first_base_time, final long end) {
+        return (end - first_base_time + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN;
+    }
+
+    /**
+     * Returns the row key of a series at a given base time.
+     *
+     * @param series The row key of the series, with no timestamp.
+     * @param base_time The base time of the row.
+     */
+    static byte[] rowKeyAt(final byte[] series, final long base_time, final short metric_width) {
+        final byte[] key = Arrays.copyOf(series, series.length);
+        Bytes.setInt(key, (int) base_time, metric_width);
+        return key;
+    }
+
+    /**
+     * Fetches the rows of a known set of series with one get per row,
+     * instead of scanning the whole metric.
+     *
+     * @param series The row keys of the series, with no timestamp.
+     * @param first_base_time The base time of the first row to fetch.
+     * @param nrows The number of rows to fetch per series.
+     */
+    private Deferred<Response> findSpansMultiGet(final TsdbQueryDto query, final List<byte[]> series,
+                                                 final long first_base_time, final int nrows) {
+        multiget_plans.incrementAndGet();
+        final short metric_width = tsdb.metrics.width();
+        final int ngets = series.size() * nrows;
+        multiget_rows.addAndGet(ngets);
+        final AtomicReferenceArray<ArrayList<KeyValue>> results =
+                new AtomicReferenceArray<ArrayList<KeyValue>>(ngets);
+        final ArrayList<Deferred<Object>> gets = new ArrayList<Deferred<Object>>(ngets);
+        for (final byte[] template : series) {
+            for (int i = 0; i < nrows; i++) {
+                final byte[] key = rowKeyAt(template, first_base_time + i * (long) Const.MAX_TIMESPAN,
+                                            metric_width);
+                final int index = gets.size();
+                final class StoreCB implements Callback<Object, ArrayList<KeyValue>> {
+                    public Object call(final ArrayList<KeyValue> row) {
+                        results.set(index, row);
+                        return null;
+                    }
+                }
+                gets.add(tsdb.get(key).addCallback(new StoreCB()));
+            }
+        }
+        final long start = System.nanoTime();
+
+        final class MultiGetCB implements Callback<Response, ArrayList<Object>> {
+            public Response call(final ArrayList<Object> unused) {
+                final long hbase_time = (System.nanoTime() - start) / 1000000;
+                final TreeMap<byte[], Span> spans = new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+                int nrows_found = 0;
+                // The results are in the order of the series, then of time.
+                Span datapoints = null;
+                for (int i = 0; i < ngets; i++) {
+                    if (i % nrows == 0) {
+                        datapoints = null;
+                    }
+                    final ArrayList<KeyValue> row = results.get(i);
+                    if (row == null || row.isEmpty()) {
+                        continue;
+                    }
+                    final KeyValue compacted = tsdb.compact(row);
+                    if (compacted == null) {  // Can be null if we ignored all KVs.
+                        continue;
+                    }
+                    charge(query, compacted);
                     if (datapoints == null) {
                         datapoints = new Span(tsdb);
-                        spans.put(key, datapoints);
+                        spans.put(compacted.key(), datapoints);
                     }
-                    final KeyValue compacted = tsdb.compact(row);
-                    if (compacted != null) {  // Can be null if we ignored all KVs.
-                        datapoints.addRow(compacted);
+                    datapoints.addRow(compacted);
+                    nrows_found++;
+                }
+                LOG.info(TsdbQueryLoader.this + " fetched " + nrows_found + " rows in " + spans.size()
+                        + " spans using " + ngets + " gets");
+                return nrows_found == 0 ? null : new Response(spans, hbase_time);
+            }
+        }
+        return Deferred.group(gets).addCallbacks(new MultiGetCB(), new UnwrapErrorCB());
+    }
+
+    /** Returns the cause of a failed group of deferreds. */
+    private static final class UnwrapErrorCB implements Callback<Exception, Exception> {
+        public Exception call(final Exception e) {
+            if (e instanceof DeferredGroupException && e.getCause() instanceof Exception) {
+                return (Exception) e.getCause();
+            }
+            return e;
+        }
+    }
+
+    /** Returns the row key at which to start/stop scanning a metric. */
+    private static byte[] rowKey(final byte[] metric, final long timestamp, final short metric_width) {
+        final byte[] key = new byte[metric_width + Const.TIMESTAMP_BYTES];
+        System.arraycopy(metric, 0, key, 0, metric_width);
+        Bytes.setInt(key, (int) timestamp, metric_width);
+        return key;
+    }
+
+    /**
+     * Loads the rows returned by a scanner, one batch at a time.
+     * Rows are either added to {@link net.opentsdb.core.Span}s directly, or
+     * buffered to be added later.
+     * The next batch is requested before the current one is processed, so
+     * the round trip to HBase overlaps with the decoding and compaction.
+     */
+    private final class ScannerCB implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+        private final TsdbQueryDto query;
+        private final Scanner scanner;
+        private final short metric_width = tsdb.metrics.width();
+        /** Where to load the rows, {@code null} to buffer them instead. */
+        private final TreeMap<byte[], Span> spans;
+        /** The compacted rows, if they're buffered. */
+        final ArrayList<KeyValue> buffered;
+        /** Called back once the scanner is exhausted. */
+        final Deferred<Object> done = new Deferred<Object>();
+        int nrows = 0;
+        /** Time spent waiting for HBase (nanoseconds). */
+        long hbase_time = 0;
+        /** Time spent processing the rows (nanoseconds). */
+        private long process_time = 0;
+        private long starttime;
+
+        ScannerCB(final TsdbQueryDto query, final Scanner scanner,
+                  final TreeMap<byte[], Span> spans) {
+            this.query = query;
+            this.scanner = scanner;
+            this.spans = spans;
+            this.buffered = spans == null ? new ArrayList<KeyValue>() : null;
+        }
+
+        /** Asks the scanner for the next batch of rows. */
+        void scan() {
+            starttime = System.nanoTime();
+            scanner.nextRows().addCallback(this).addErrback(new ErrorCB());
+        }
+
+        public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+            final long now = System.nanoTime();
+            hbase_time += now - starttime;
+            if (rows == null) {
+                recordScanTimes();
+                done.callback(null);
+                return null;
+            }
+            // Keep the next batch in flight while we process this one.
+            final Deferred<ArrayList<ArrayList<KeyValue>>> next = scanner.nextRows();
+            try {
+                process(rows);
+            } catch (final RuntimeException e) {
+                // Let the batch in flight come back before closing the scanner.
+                final class FailCB<T> implements Callback<Object, T> {
+                    public Object call(final T unused) {
+                        fail(e);
+                        return null;
+                    }
+                }
+                next.addCallbacks(new FailCB<ArrayList<ArrayList<KeyValue>>>(),
+                                  new FailCB<Exception>());
+                return null;
+            } finally {
+                starttime = System.nanoTime();
+                process_time += starttime - now;
+            }
+            next.addCallback(this).addErrback(new ErrorCB());
+            return null;
+        }
+
+        private void fail(final Exception e) {
+            recordScanTimes();
+            scanner.close();
+            done.callback(e);
+        }
+
+        private void process(final ArrayList<ArrayList<KeyValue>> rows) {
+            for (final ArrayList<KeyValue> row : rows) {
+                final byte[] key = row.get(0).key();
+                if (Bytes.memcmp(query.metric, key, 0, metric_width) != 0) {
+                    throw new IllegalDataException("HBase returned a row that doesn't match"
+                            + " our scanner (" + scanner + ")! " + row + " does not start"
+                            + " with " + Arrays.toString(query.metric));
+                }
+                final KeyValue compacted = tsdb.compact(row);
+                if (compacted != null) {
+                    charge(query, compacted);
+                }
+                if (spans == null) {
+                    if (compacted != null) {
+                        buffered.add(compacted);
                         nrows++;
                     }
-                    starttime = System.nanoTime();
+                    continue;
+                }
+                Span datapoints = spans.get(key);
+                if (datapoints == null) {
+                    datapoints = new Span(tsdb);
+                    spans.put(key, datapoints);
+                }
+                if (compacted != null) {  // Can be null if we ignored all KVs.
+                    datapoints.addRow(compacted);
+                    nrows++;
                 }
             }
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException("Should never be here", e);
-        } finally {
-            hbase_time += (System.nanoTime() - starttime) / 1000000;
         }
-        LOG.info(this + " matched " + nrows + " rows in " + spans.size() + " spans");
-        if (nrows == 0) {
-            return null;
+
+        private void recordScanTimes() {
+            scan_wait_time.addAndGet(hbase_time / 1000000);
+            scan_process_time.addAndGet(process_time / 1000000);
+        }
+
+        /** Fails the scan and releases the scanner. */
+        private final class ErrorCB implements Callback<Object, Exception> {
+            public Object call(final Exception e) {
+                fail(e);
+                return null;
+            }
         }
-        return new Response(spans, hbase_time);
     }
 
     /**
@@ -0,0 +1,645 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.hbase.async.RecoverableException;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Local write-ahead spool for the data points that can't be written to
+ * HBase.
+ * <p>
+ * As soon as a write fails because HBase is unreachable, the data point is
+ * appended to a local file instead and, until HBase is back, all new data
+ * points are appended to the spool without trying HBase.  A background
+ * thread replays the spool at a limited rate, starting with a single data
+ * point after each failure to probe HBase.  As soon as a replay succeeds,
+ * new data points are written directly to HBase again, while the rest of
+ * the spool is replayed next to them.  Writes that HBase asks us to
+ * throttle aren't spooled: they fail, so that the clients slow down.
+ * <p>
+ * The spool is made of segments: files named {@code spool.N} that are
+ * rotated once they reach a given size, and deleted once replayed.
+ * Each record is prefixed by its length and its CRC32 so that a record
+ * torn by a crash is detected and skipped on restart.  Segments left over
+ * by a previous run are replayed on startup.  Since writing the same cell
+ * twice is harmless, the replay doesn't keep track of its position on
+ * disk: after a restart, the remaining segments are replayed in full.
+ * <p>
+ * The spool is configured through the following system properties, set by
+ * {@code TSDMain}:
+ * <ul>
+ *   <li>{@code tsd.spool.dir}: the directory of the segments.  The spool is
+ *   disabled unless this is set.</li>
+ *   <li>{@code tsd.spool.segment_size}: the size at which segments are
+ *   rotated, in bytes (default: 64MB).</li>
+ *   <li>{@code tsd.spool.fsync}: when to force the segments to disk:
+ *   {@code always} (after every data point), {@code segment} (when rotating
+ *   segments, the default) or {@code never}.</li>
+ *   <li>{@code tsd.spool.replay_rate}: maximum number of data points replayed
+ *   per second, 0 for unlimited (default: 10000).</li>
+ *   <li>{@code tsd.spool.max_bytes}: maximum size of the spool on disk,
+ *   beyond which writes fail instead of being spooled, 0 for unlimited
+ *   (default: 10GB).</li>
+ * </ul>
+ * <p>
+ * This class is thread-safe.
+ */
+final class WriteSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  /** Directory of the segments, {@code null} when the spool is disabled.  */
+  static final String DIR = System.getProperty("tsd.spool.dir");
+
+  private static final long SEGMENT_SIZE =
+    Long.getLong("tsd.spool.segment_size", 64 * 1024 * 1024);
+
+  private static final String FSYNC =
+    System.getProperty("tsd.spool.fsync", "segment");
+  private static final boolean FSYNC_ALWAYS = "always".equals(FSYNC);
+  private static final boolean FSYNC_SEGMENT = "segment".equals(FSYNC);
+
+  private static final int REPLAY_RATE =
+    Integer.getInteger("tsd.spool.replay_rate", 10000);
+
+  private static final long MAX_BYTES =
+    Long.getLong("tsd.spool.max_bytes", 10L * 1024 * 1024 * 1024);
+
+  /** Replay in batches of 100ms worth of data points.  */
+  private static final int REPLAY_BATCH_SIZE =
+    REPLAY_RATE > 0 ? Math.max(1, REPLAY_RATE / 10) : 1000;
+
+  /** How long we wait for a batch to be replayed before giving up.  */
+  private static final long REPLAY_TIMEOUT = 30000;  // ms
+
+  /** How long we wait before replaying again after a failure.  */
+  private static final long RETRY_INTERVAL = 1000;  // ms
+
+  private static final String SEGMENT_PREFIX = "spool.";
+
+  /**
+   * Size of the header of a record: its length and its CRC32.
+   * The record itself is made of the time at which it was spooled (8 bytes),
+   * the length of the row key (2 bytes), the row key, the length of the
+   * qualifier (2 bytes), the qualifier and the value.
+   */
+  private static final int HEADER_SIZE = 4 + 4;
+
+  private final TSDB tsdb;
+  private final File dir;
+
+  /** Segments not entirely replayed yet, oldest first.  */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  /** Sequence number of the next segment to create.  */
+  private long next_segment;
+
+  /** Segment being written to, {@code null} if none.  */
+  private Segment writer;
+  private FileChannel writer_channel;
+  /** Buffer used to serialize the records being appended.  */
+  private ByteBuffer writer_buf = ByteBuffer.allocate(256);
+  private final CRC32 writer_crc = new CRC32();
+
+  /** Whether there are data points to replay.  */
+  private volatile boolean active;
+
+  /**
+   * Whether HBase is known to be unavailable, in which case new data points
+   * go straight to the spool.
+   */
+  private volatile boolean spooling;
+
+  /** Whether the spool has reached {@link #MAX_BYTES}.  */
+  private boolean full;
+
+  /** Number of bytes spooled but not replayed yet.  */
+  private final AtomicLong depth = new AtomicLong();
+  /** When the oldest data point not replayed yet was spooled, or 0.  */
+  private volatile long replay_head_time;
+
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong append_errors = new AtomicLong();
+  private final AtomicLong replay_errors = new AtomicLong();
+  private final AtomicLong corrupted = new AtomicLong();
+  private final AtomicLong full_errors = new AtomicLong();
+
+  private final Replayer replayer = new Replayer();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to replay the data points to.
+   * @param dir The directory of the segments, created if needed.
+   * @throws IOException if the directory can't be created or read.
+   */
+  WriteSpool(final TSDB tsdb, final File dir) throws IOException {
+    this.tsdb = tsdb;
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    final String[] names = dir.list();
+    if (names == null) {
+      throw new IOException("Failed to list " + dir);
+    }
+    final ArrayList<Segment> found = new ArrayList<Segment>();
+    for (final String name : names) {
+      if (!name.startsWith(SEGMENT_PREFIX)) {
+        continue;
+      }
+      try {
+        found.add(new Segment(Long.parseLong(name.substring(SEGMENT_PREFIX
+                                                            .length()))));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file " + name + " in " + dir);
+      }
+    }
+    Collections.sort(found);
+    for (final Segment segment : found) {
+      segment.size = segment.file.length();
+      segments.add(segment);
+      depth.addAndGet(segment.size);
+      next_segment = segment.seq + 1;
+    }
+    if (!segments.isEmpty()) {
+      LOG.info("Found " + segments.size() + " segments (" + depth
+               + " bytes) left in the spool, replaying them");
+      active = true;
+    }
+  }
+
+  /** Starts the thread that replays the spool.  */
+  void start() {
+    replayer.start();
+  }
+
+  /**
+   * Writes a data point to HBase, or to the spool if HBase is unavailable.
+   * @param point The data point to write.
+   * @return A deferred object that indicates the completion of the request.
+   * Once a data point has been spooled, it's considered written.
+   */
+  Deferred<Object> put(final PutRequest point) {
+    if (spooling && append(point, false)) {
+      return Deferred.fromResult(null);
+    }
+    return tsdb.client.put(point).addErrback(new SpoolOnError(point));
+  }
+
+  /**
+   * Appends a data point to the spool.
+   * @param point The data point to append.
+   * @param activate If {@code false}, the data point is only appended if
+   * HBase is known to be unavailable.  If {@code true}, it's appended in
+   * any case, and new data points are spooled until HBase is back.
+   * @return {@code true} if the data point was appended, {@code false} if
+   * HBase isn't known to be unavailable, if the spool is full or if it
+   * couldn't be written to.
+   */
+  private synchronized boolean append(final PutRequest point,
+                                      final boolean activate) {
+    if (!spooling && !activate) {
+      return false;
+    }
+    if (MAX_BYTES > 0 && depth.get() >= MAX_BYTES) {
+      full_errors.incrementAndGet();
+      if (!full) {
+        LOG.error("The spool in " + dir + " is full (" + depth
+                  + " bytes), failing writes until it's replayed");
+        full = true;
+      }
+      return false;
+    }
+    full = false;
+    final byte[] key = point.key();
+    final byte[] qualifier = point.qualifier();
+    final byte[] value = point.value();
+    final int length = 8 + 2 + key.length + 2 + qualifier.length + value.length;
+    if (writer_buf.capacity() < HEADER_SIZE + length) {
+      writer_buf = ByteBuffer.allocate((HEADER_SIZE + length) * 2);
+    }
+    final ByteBuffer buf = writer_buf;
+    buf.clear();
+    buf.position(HEADER_SIZE);
+    buf.putLong(System.currentTimeMillis());
+    buf.putShort((short) key.length).put(key);
+    buf.putShort((short) qualifier.length).put(qualifier);
+    buf.put(value);
+    writer_crc.reset();
+    writer_crc.update(buf.array(), HEADER_SIZE, length);
+    buf.putInt(0, length);
+    buf.putInt(4, (int) writer_crc.getValue());
+    buf.flip();
+    try {
+      if (writer == null) {
+        openWriter();
+      }
+      while (buf.hasRemaining()) {
+        writer_channel.write(buf);
+      }
+      if (FSYNC_ALWAYS) {
+        writer_channel.force(false);
+      }
+    } catch (IOException e) {
+      append_errors.incrementAndGet();
+      LOG.error("Failed to append " + point + " to " + writer, e);
+      closeWriter();
+      return false;
+    }
+    writer.size += HEADER_SIZE + length;
+    depth.addAndGet(HEADER_SIZE + length);
+    spooled.incrementAndGet();
+    if (!spooling) {
+      LOG.warn("HBase is unavailable, spooling data points to " + dir);
+      spooling = true;
+    }
+    if (!active) {
+      active = true;
+      notifyAll();  // Wake up the replayer.
+    }
+    if (writer.size >= SEGMENT_SIZE) {
+      closeWriter();
+    }
+    return true;
+  }
+
+  /** Creates a new segment to append to.  */
+  private void openWriter() throws IOException {
+    final Segment segment = new Segment(next_segment++);
+    writer_channel = new RandomAccessFile(segment.file, "rw").getChannel();
+    writer = segment;
+    segments.add(segment);
+  }
+
+  /** Closes the segment being appended to, if any.  */
+  private void closeWriter() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      if (FSYNC_SEGMENT) {
+        writer_channel.force(false);
+      }
+      writer_channel.close();
+    } catch (IOException e) {
+      LOG.error("Failed to close " + writer, e);
+    }
+    writer = null;
+    writer_channel = null;
+  }
+
+  /**
+   * Returns the oldest segment left to replay, or {@code null} if the spool
+   * has been entirely replayed, in which case it's deactivated.
+   * @param replayed The segment that was just replayed, if any.
+   */
+  private synchronized Segment nextSegment(final Segment replayed) {
+    if (replayed != null) {
+      if (replayed == writer) {
+        if (replayed.size > replayed.replayed) {
+          return replayed;  // More data points got appended meanwhile.
+        }
+        closeWriter();
+      }
+      segments.remove(replayed);
+      if (!replayed.file.delete()) {
+        LOG.error("Failed to delete " + replayed + " which was replayed");
+      }
+    }
+    if (segments.isEmpty()) {
+      if (active) {
+        LOG.info("Done replaying the spool");
+        active = false;
+        spooling = false;
+      }
+      replay_head_time = 0;
+      return null;
+    }
+    return segments.peek();
+  }
+
+  /** Waits until there's something to replay.  */
+  private synchronized void awaitActive() throws InterruptedException {
+    while (!active) {
+      wait();
+    }
+  }
+
+  /** Writes new data points to HBase again, HBase having accepted writes.  */
+  private synchronized void stopSpooling() {
+    if (spooling) {
+      LOG.info("HBase is back, writing new data points to it again");
+      spooling = false;
+    }
+  }
+
+  /** Returns how much data the given segment contains.  */
+  private synchronized long size(final Segment segment) {
+    return segment.size;
+  }
+
+  /** Stops the replay and closes the segment being appended to.  */
+  void shutdown() {
+    replayer.interrupt();
+    synchronized (this) {
+      closeWriter();
+    }
+  }
+
+  /**
+   * Collects the stats of the spool.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("spool.active", active ? 1 : 0);
+    collector.record("spool.spooling", spooling ? 1 : 0);
+    collector.record("spool.depth", depth);
+    final long head = replay_head_time;
+    collector.record("spool.replay.lag",
+                     head == 0 ? 0 : System.currentTimeMillis() - head);
+    collector.record("spool.datapoints", spooled, "type=spooled");
+    collector.record("spool.datapoints", replayed, "type=replayed");
+    collector.record("spool.errors", append_errors, "type=append");
+    collector.record("spool.errors", replay_errors, "type=replay");
+    collector.record("spool.errors", corrupted, "type=corrupted");
+    collector.record("spool.errors", full_errors, "type=full");
+  }
+
+  /**
+   * Spools the data points whose write failed because HBase is unavailable.
+   * When HBase asks us to throttle, we let the write fail instead: that's
+   * backpressure for the clients, spooling would only turn it into disk
+   * usage.
+   */
+  private final class SpoolOnError implements Callback<Object, Exception> {
+
+    private final PutRequest point;
+
+    SpoolOnError(final PutRequest point) {
+      this.point = point;
+    }
+
+    public Object call(final Exception e) {
+      if (e instanceof RecoverableException && append(point, true)) {
+        return null;
+      }
+      return e;
+    }
+
+    public String toString() {
+      return "spool " + point + " on error";
+    }
+
+  }
+
+  /** A file of the spool.  */
+  private final class Segment implements Comparable<Segment> {
+
+    final long seq;
+    final File file;
+    /** Number of bytes appended, only accessed with the spool locked.  */
+    long size;
+    /** Number of bytes replayed, only accessed by the replayer.  */
+    long replayed;
+
+    Segment(final long seq) {
+      this.seq = seq;
+      this.file = new File(dir, SEGMENT_PREFIX + seq);
+    }
+
+    public int compareTo(final Segment other) {
+      return seq < other.seq ? -1 : seq == other.seq ? 0 : 1;
+    }
+
+    public String toString() {
+      return file.getPath();
+    }
+
+  }
+
+  /** Thread that replays the spool.  */
+  private final class Replayer extends Thread {
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+    /** Segment being replayed and its file.  */
+    private Segment segment;
+    private FileChannel channel;
+
+    /** Whether the last replay failed, in which case we only send 1 point.  */
+    private boolean failing;
+
+    Replayer() {
+      super("SpoolReplayer");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          awaitActive();
+          if (segment == null) {
+            open(nextSegment(null));
+          }
+          if (segment != null && !replayBatch()) {
+            open(nextSegment(segment));
+          }
+        } catch (InterruptedException e) {
+          LOG.info("Spool replay interrupted, exiting");
+          close();
+          return;
+        } catch (IOException e) {
+          replay_errors.incrementAndGet();
+          LOG.error("Failed to read the spool segment " + segment, e);
+          close();
+          sleepAfterFailure();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in the spool replayer", e);
+          sleepAfterFailure();
+        }
+      }
+    }
+
+    private void sleepAfterFailure() {
+      try {
+        Thread.sleep(RETRY_INTERVAL);
+      } catch (InterruptedException e) {
+        interrupt();  // Exit the next time around.
+      }
+    }
+
+    private void open(final Segment next) throws IOException {
+      close();
+      segment = next;
+      if (next != null) {
+        channel = new FileInputStream(next.file).getChannel();
+      }
+    }
+
+    private void close() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          LOG.warn("Failed to close " + segment, e);
+        }
+        channel = null;
+      }
+      segment = null;
+    }
+
+    /**
+     * Replays the next data points of the current segment.
+     * @return {@code false} if we reached the end of the segment.
+     */
+    private boolean replayBatch() throws Exception {
+      final long start = System.currentTimeMillis();
+      final long limit = size(segment);
+      final int max = failing ? 1 : REPLAY_BATCH_SIZE;
+      final ArrayList<Deferred<Object>> writes =
+        new ArrayList<Deferred<Object>>(max);
+      long pos = segment.replayed;
+      channel.position(pos);
+      while (writes.size() < max && pos < limit) {
+        final int length = pos + HEADER_SIZE <= limit
+          ? readRecord(pos, limit) : -1;
+        if (length < 0) {
+          if (!writes.isEmpty()) {
+            break;  // Replay what we have first.
+          }
+          corrupted.incrementAndGet();
+          LOG.error("Corrupted record at offset " + pos + " of " + segment
+                    + ", skipping the rest of the segment");
+          depth.addAndGet(-(limit - segment.replayed));
+          segment.replayed = limit;
+          return false;
+        }
+        if (writes.isEmpty()) {
+          replay_head_time = buf.getLong(0);
+        }
+        writes.add(replay());
+        pos += HEADER_SIZE + length;
+      }
+      if (writes.isEmpty()) {
+        return false;
+      }
+      tsdb.client.flush();
+      try {
+        Deferred.group(writes).joinUninterruptibly(REPLAY_TIMEOUT);
+      } catch (Exception e) {
+        replay_errors.incrementAndGet();
+        if (!failing) {
+          LOG.warn("Failed to replay the spool, will retry", e);
+        }
+        failing = true;
+        Thread.sleep(RETRY_INTERVAL);
+        return true;  // Replay the same batch again.
+      }
+      if (failing) {
+        LOG.info("HBase is back, replaying " + depth + " bytes of spool");
+        failing = false;
+      }
+      stopSpooling();
+      depth.addAndGet(-(pos - segment.replayed));
+      replayed.addAndGet(writes.size());
+      segment.replayed = pos;
+      if (REPLAY_RATE > 0) {
+        final long wait = start + writes.size() * 1000L / REPLAY_RATE
+          - System.currentTimeMillis();
+        if (wait > 0) {
+          Thread.sleep(wait);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Reads the record at the given offset into {@link #buf}.
+     * @return The length of the record, or -1 if it's corrupted.
+     */
+    private int readRecord(final long pos, final long limit)
+      throws IOException {
+      buf.clear().limit(HEADER_SIZE);
+      readFully();
+      final int length = buf.getInt(0);
+      final int checksum = buf.getInt(4);
+      if (length < 8 + 2 + 2 || pos + HEADER_SIZE + length > limit) {
+        return -1;
+      }
+      if (buf.capacity() < length) {
+        buf = ByteBuffer.allocate(length * 2);
+      }
+      buf.clear().limit(length);
+      readFully();
+      crc.reset();
+      crc.update(buf.array(), 0, length);
+      if ((int) crc.getValue() != checksum) {
+        return -1;
+      }
+      return length;
+    }
+
+    private void readFully() throws IOException {
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) < 0) {
+          throw new IOException("Unexpected end of " + segment);
+        }
+      }
+    }
+
+    /** Writes the data point in {@link #buf} to HBase.  */
+    private Deferred<Object> replay() {
+      buf.position(8);
+      final byte[] key = new byte[buf.getShort()];
+      buf.get(key);
+      final byte[] qualifier = new byte[buf.getShort()];
+      buf.get(qualifier);
+      final byte[] value = new byte[buf.limit() - buf.position()];
+      buf.get(value);
+      // The row may have been compacted while HBase wasn't accepting writes.
+      final int base_time = Bytes.getInt(key, tsdb.metrics.width());
+      tsdb.indexRow(key, base_time);
+      tsdb.scheduleForCompaction(key, base_time);
+      final Deferred<Object> d =
+        tsdb.client.put(new PutRequest(tsdb.table, key, TSDB.FAMILY,
+                                       qualifier, value));
+      return tsdb.query_cache == null
+        ? d : tsdb.query_cache.written(key, tsdb.metrics.width(), d);
+    }
+
+  }
+
+}
@@ -4,11 +4,14 @@ import net.opentsdb.core.TsdbQueryDto;
 import net.opentsdb.core.index.model.Era;
 import net.opentsdb.core.index.model.FederatedMetric;
 import net.opentsdb.core.index.model.SubMetric;
+import net.opentsdb.stats.StatsCollector;
 import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author rystsov
@@ -24,8 +27,20 @@ public class FederatedMetricEngine {
     private final long cacheTimeoutMs;
     private final IdResolver resolver;
 
+    /**
+     * Current snapshot of the index. Readers never lock, a refresh builds
+     * a new snapshot aside and publishes it with a single volatile write.
+     */
     private volatile Index index;
 
+    /** Guards against concurrent loads, only one refresh runs at a time. */
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private volatile long lastRefreshDurationMs = 0;
+    /** Set once the background refresher is running, see {@link #startBackgroundRefresh()}. */
+    private volatile Refresher refresher = null;
+
     public FederatedMetricEngine(IndexLoader loader, IdResolver resolver, long cacheTimeoutMs) {
         this.loader = loader;
         this.index = loader.load();
@@ -33,6 +48,32 @@ public class FederatedMetricEngine {
         this.resolver = resolver;
     }
 
+    /**
+     * Moves index refreshing off the put/query path: a daemon thread reloads
+     * the index every half of the cache timeout, so a snapshot never gets
+     * older than the timeout as long as a load takes less than that, and
+     * callers only ever read the volatile snapshot.
+     */
+    public synchronized void startBackgroundRefresh() {
+        if (refresher != null) return;
+        refresher = new Refresher();
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    public synchronized void shutdown() {
+        if (refresher == null) return;
+        refresher.interrupt();
+    }
+
+    public void collectStats(StatsCollector collector) {
+        collector.record("index.refresh.count", refreshes.get());
+        collector.record("index.refresh.errors", refreshFailures.get());
+        collector.record("index.refresh.latency", lastRefreshDurationMs);
+        collector.record("index.snapshot.age",
+                DateTimeUtils.currentTimeMillis() - index.snapshotTS());
+    }
+
     public List<TsdbQueryDto> split(TsdbQueryDto query) {
         checkUpdateOutdatedCache();
         Index local = this.index;
@@ -96,22 +137,63 @@ public class FederatedMetricEngine {
         }
         if (federatedMetric==null) return metric;
 
-        SubMetric subMetric = null;
-        for (SubMetric item : federatedMetric.subMetrics) {
-            if (item.isMatch(tags)) {
-                subMetric = item;
-                break;
-            }
-        }
+        SubMetric subMetric = federatedMetric.router().route(tags);
         if (subMetric==null) return metric;
 
-        LOG.info("Remap " + metric + " to " + subMetric.name);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Remap " + metric + " to " + subMetric.name);
+        }
         return subMetric.name;
     }
 
-    private synchronized void checkUpdateOutdatedCache() {
+    /**
+     * Without the background refresher the first caller that sees an expired
+     * snapshot reloads it, the others keep using the old one instead of
+     * blocking until the load is done.
+     */
+    private void checkUpdateOutdatedCache() {
+        if (refresher != null) return;
         if (DateTimeUtils.currentTimeMillis() - index.snapshotTS() > cacheTimeoutMs) {
-            index = loader.load();
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true)) return;
+        try {
+            long started = System.currentTimeMillis();
+            Index nova = loader.load();
+            lastRefreshDurationMs = System.currentTimeMillis() - started;
+            index = nova;
+            refreshes.incrementAndGet();
+        } catch (RuntimeException e) {
+            refreshFailures.incrementAndGet();
+            LOG.error("Can't refresh the index, keep using the snapshot taken at " + index.snapshotTS(), e);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    private final class Refresher extends Thread {
+        public Refresher() {
+            super("IndexRefresher");
+        }
+
+        public void run() {
+            long interval = Math.max(1, cacheTimeoutMs / 2);
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    LOG.info("Index refresher interrupted, stopping");
+                    return;
+                }
+                try {
+                    refresh();
+                } catch (Throwable e) {
+                    LOG.error("Uncaught exception in index refresher", e);
+                }
+            }
         }
     }
 
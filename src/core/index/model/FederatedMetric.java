@@ -9,6 +9,8 @@ import java.util.*;
 public class FederatedMetric {
     public final String metric;
     public final List<SubMetric> subMetrics;
+    /** Built on first use, so applying a series of changes stays linear. */
+    private volatile SubMetricRouter router;
 
     public FederatedMetric(String metric) {
         List<SubMetric> core = new ArrayList<SubMetric>();
@@ -22,6 +24,17 @@ public class FederatedMetric {
         this.subMetrics = Collections.unmodifiableList(subMetrics);
     }
 
+    /** Returns the table routing data points to the sub-metrics. */
+    public SubMetricRouter router() {
+        SubMetricRouter result = router;
+        if (result == null) {
+            // Racing threads build equivalent routers, any of them will do.
+            result = new SubMetricRouter(subMetrics);
+            router = result;
+        }
+        return result;
+    }
+
     public static FederatedMetric create(String metric, SortedSet<Change> changes) {
         if (changes==null) return null;
         FederatedMetric result = new FederatedMetric(metric);
@@ -0,0 +1,96 @@
+package net.opentsdb.core.index.model;
+
+import java.util.*;
+
+/**
+ * Precompiled lookup from data point tags to the sub-metric of a federated
+ * metric. Gives the same answer as checking {@link SubMetric#isMatch(Map)}
+ * on every sub-metric in order and taking the first match, but costs one
+ * hash lookup per tag key of each distinct key set instead of a scan.
+ *
+ * Sub-metrics are grouped by the set of tag keys they are defined on, every
+ * group is a tree of nested maps indexed by the tag values (keys sorted),
+ * and the leaves remember the position of the sub-metric so overlapping
+ * groups resolve to the earliest sub-metric just like the linear scan.
+ */
+public class SubMetricRouter {
+    private final Signature[] signatures;
+
+    public SubMetricRouter(List<SubMetric> subMetrics) {
+        Map<List<String>, Signature> bySignature = new LinkedHashMap<List<String>, Signature>();
+        int rank = 0;
+        for (SubMetric subMetric : subMetrics) {
+            rank++;
+            if (subMetric.isHead()) continue;
+            List<String> keys = new ArrayList<String>(new TreeSet<String>(subMetric.tags.keySet()));
+            Signature signature = bySignature.get(keys);
+            if (signature == null) {
+                signature = new Signature(keys.toArray(new String[keys.size()]));
+                bySignature.put(keys, signature);
+            }
+            signature.add(subMetric, rank);
+        }
+        this.signatures = bySignature.values().toArray(new Signature[bySignature.size()]);
+    }
+
+    /** Returns the sub-metric the tags belong to or null if none matches. */
+    public SubMetric route(Map<String, String> tags) {
+        Route best = null;
+        for (Signature signature : signatures) {
+            Route candidate = signature.find(tags);
+            if (candidate != null && (best == null || candidate.rank < best.rank)) {
+                best = candidate;
+            }
+        }
+        return best == null ? null : best.subMetric;
+    }
+
+    private static class Route {
+        public final SubMetric subMetric;
+        public final int rank;
+
+        private Route(SubMetric subMetric, int rank) {
+            this.subMetric = subMetric;
+            this.rank = rank;
+        }
+    }
+
+    private static class Signature {
+        private final String[] keys;
+        private final Map<String, Object> root = new HashMap<String, Object>();
+
+        private Signature(String[] keys) {
+            this.keys = keys;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(SubMetric subMetric, int rank) {
+            Map<String, Object> node = root;
+            for (int i=0;i<keys.length-1;i++) {
+                String value = subMetric.tags.get(keys[i]);
+                Map<String, Object> next = (Map<String, Object>) node.get(value);
+                if (next == null) {
+                    next = new HashMap<String, Object>();
+                    node.put(value, next);
+                }
+                node = next;
+            }
+            String last = subMetric.tags.get(keys[keys.length-1]);
+            if (!node.containsKey(last)) {
+                node.put(last, new Route(subMetric, rank));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Route find(Map<String, String> tags) {
+            Object node = root;
+            for (String key : keys) {
+                String value = tags.get(key);
+                if (value == null) return null;
+                node = ((Map<String, Object>) node).get(value);
+                if (node == null) return null;
+            }
+            return (Route) node;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.IllegalDataException;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TsdbQueryDto;
+import net.opentsdb.core.TsdbQueryLoader;
+
+/**
+ * Tool to compact the rows that missed the online compactions.
+ * <p>
+ * Rows don't get compacted when the TSD is restarted before they're old
+ * enough, or when data is imported with compactions disabled.  This tool
+ * scans the rows matching the queries given on the command line, and
+ * compacts them exactly like the compaction queue of the TSD would.
+ * <p>
+ * The time range of every query is cut in slices, which are scanned in
+ * parallel.  The slices fully compacted are recorded in a checkpoint file,
+ * if one is given, so that an interrupted run can be resumed by running
+ * the same command again.
+ */
+final class BulkCompaction {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(BulkCompaction.class);
+
+  /** How often to report progress, in seconds.  */
+  private static final int REPORT_INTERVAL = 10;
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: compact [--threads=NUM] [--max-inflight=NUM]"
+        + " [--slice=SEC] [--checkpoint=FILE]"
+        + " START-DATE [END-DATE] query [queries...]\n"
+        + "To see the format in which queries should be written, see the help"
+        + " of the 'query' command.\n"
+        + "Running the same command again with the same --checkpoint file"
+        + " resumes an interrupted run.");
+    if (argp != null) {
+      System.err.print(argp.usage());
+    }
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addCommon(argp);
+    argp.addOption("--threads", "NUM",
+                   "Number of scanners to run in parallel (default: 4).");
+    argp.addOption("--max-inflight", "NUM",
+                   "Maximum number of rows being compacted at the same time"
+                   + " (default: 1000).");
+    argp.addOption("--slice", "SEC",
+                   "Length of the time range scanned by each scanner, must"
+                   + " be a multiple of " + Const.MAX_TIMESPAN
+                   + " (default: 86400).");
+    argp.addOption("--checkpoint", "FILE",
+                   "File in which to record progress, to resume later.");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length < 3) {
+      usage(argp, "Not enough arguments.", 2);
+    }
+    if (!Internal.compactionsEnabled()) {
+      usage(argp, "Compactions are disabled, don't set"
+            + " tsd.feature.compactions=false.", 2);
+    }
+    final int threads = Integer.parseInt(argp.get("--threads", "4"));
+    final int max_inflight =
+      Integer.parseInt(argp.get("--max-inflight", "1000"));
+    final int slice = Integer.parseInt(argp.get("--slice", "86400"));
+    if (threads <= 0 || max_inflight <= 0) {
+      usage(argp, "--threads and --max-inflight must be positive.", 3);
+    } else if (slice <= 0 || slice % Const.MAX_TIMESPAN != 0) {
+      usage(argp, "--slice must be a multiple of " + Const.MAX_TIMESPAN, 3);
+    }
+    final String checkpoint = argp.get("--checkpoint");
+
+    final HBaseClient client = CliOptions.clientFromOptions(argp);
+    final TSDB tsdb = new TSDB(
+            client,
+            argp.get("--table", "tsdb"),
+            argp.get("--uidtable", "tsdb-uid"),
+            argp.get("--indextable", "tsdb-index"),
+            // TODO: change 1000 to 60*10*1000
+            Long.parseLong(argp.get("--cache-timeout-ms", "1000")));
+    argp = null;
+    long errors = 42;
+    try {
+      final BulkCompaction compaction =
+        new BulkCompaction(tsdb, threads, max_inflight, slice,
+                           checkpoint == null ? null : new File(checkpoint));
+      errors = compaction.run(args);
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+
+  private final TSDB tsdb;
+  private final short metric_width;
+  private final int nthreads;
+  /** Number of rows being compacted.  */
+  private final Semaphore inflight;
+  /** Length of a slice, in seconds.  */
+  private final int slice_length;
+  /** Where we record the slices done, or {@code null}.  */
+  private final File checkpoint;
+  private Writer checkpoint_out;
+
+  private final AtomicLong rows_scanned = new AtomicLong();
+  private final AtomicLong rows_compacted = new AtomicLong();
+  private final AtomicLong cells_deleted = new AtomicLong();
+  private final AtomicLong bytes_reclaimed = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  /** Rows not compacted because HBase asked us to throttle.  */
+  private final AtomicLong rows_throttled = new AtomicLong();
+  private final AtomicInteger slices_done = new AtomicInteger();
+
+  private BulkCompaction(final TSDB tsdb, final int nthreads,
+                         final int max_inflight, final int slice_length,
+                         final File checkpoint) {
+    this.tsdb = tsdb;
+    this.metric_width = Internal.metricWidth(tsdb);
+    this.nthreads = nthreads;
+    this.inflight = new Semaphore(max_inflight);
+    this.slice_length = slice_length;
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Compacts all the rows matching the given queries.
+   * @param args The command line arguments describing the queries.
+   * @return The number of errors, including the rows throttled by HBase.
+   */
+  private long run(final String[] args) throws Exception {
+    final ArrayList<TsdbQueryDto> queries = new ArrayList<TsdbQueryDto>();
+    CliQuery.parseCommandLineQuery(args, tsdb, queries, null, null);
+    // The slices depend on the queries and the slice length only.
+    final HashSet<String> done =
+      loadCheckpoint("--slice=" + slice_length + ' ' + join(args));
+
+    final long now = System.currentTimeMillis() / 1000;
+    final ArrayList<Slice> slices = new ArrayList<Slice>();
+    for (int i = 0; i < queries.size(); i++) {
+      final TsdbQueryDto query = queries.get(i);
+      long start = query.getScanStartTime();
+      start -= start % Const.MAX_TIMESPAN;
+      final long end = query.end_time == null ? now : query.getScanEndTime();
+      for (long t = start; t < end; t += slice_length) {
+        final Slice slice = new Slice(i, query, t,
+                                      Math.min(t + slice_length, end + 1));
+        if (!done.contains(slice.id())) {
+          slices.add(slice);
+        }
+      }
+    }
+    LOG.info("Compacting " + slices.size() + " slices of " + slice_length
+             + "s with " + nthreads + " threads"
+             + (done.isEmpty() ? ""
+                : " (" + done.size() + " slices already done)"));
+
+    final long start_time = System.nanoTime();
+    final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+    for (final Slice slice : slices) {
+      executor.execute(slice);
+    }
+    executor.shutdown();
+    long last_rows = 0;
+    long last_report = start_time;
+    while (!executor.awaitTermination(REPORT_INTERVAL, TimeUnit.SECONDS)) {
+      final long rows = rows_scanned.get();
+      final long t = System.nanoTime();
+      LOG.info("... " + slices_done.get() + '/' + slices.size()
+               + " slices done, " + report(rows, rows_compacted.get())
+               + ", " + ((rows - last_rows) * 1000000000L
+                         / Math.max(1, t - last_report)) + " rows/s");
+      last_rows = rows;
+      last_report = t;
+    }
+    if (checkpoint_out != null) {
+      checkpoint_out.close();
+    }
+    final long elapsed = (System.nanoTime() - start_time) / 1000000;
+    LOG.info("Done in " + elapsed + "ms: "
+             + report(rows_scanned.get(), rows_compacted.get()) + ", "
+             + (rows_scanned.get() * 1000 / Math.max(1, elapsed))
+             + " rows/s, " + cells_deleted.get() + " cells deleted");
+    return errors.get() + rows_throttled.get();
+  }
+
+  private String report(final long rows, final long compacted) {
+    return rows + " rows scanned, " + compacted + " compacted, "
+      + (bytes_reclaimed.get() / 1024) + "KB reclaimed, "
+      + errors.get() + " errors, " + rows_throttled.get()
+      + " rows throttled";
+  }
+
+  /**
+   * Reads the slices already done from the checkpoint file, if any.
+   * The file starts with the command line of the run, then has the ID of
+   * a slice done per line.
+   * @param cmdline What defines the slices of this run.
+   */
+  private HashSet<String> loadCheckpoint(final String cmdline)
+    throws IOException {
+    final HashSet<String> done = new HashSet<String>();
+    if (checkpoint == null) {
+      return done;
+    }
+    if (checkpoint.exists()) {
+      final BufferedReader in = new BufferedReader(new FileReader(checkpoint));
+      try {
+        final String first = in.readLine();
+        if (first != null && !first.equals(cmdline)) {
+          usage(null, "The checkpoint file " + checkpoint + " was written"
+                + " by a different command: " + first, 3);
+        }
+        String line;
+        while ((line = in.readLine()) != null) {
+          done.add(line);
+        }
+      } finally {
+        in.close();
+      }
+      checkpoint_out = new FileWriter(checkpoint, true);
+    } else {
+      checkpoint_out = new FileWriter(checkpoint);
+      checkpoint_out.write(cmdline + '\n');
+      checkpoint_out.flush();
+    }
+    return done;
+  }
+
+  /** Records in the checkpoint file that a slice is done.  */
+  private synchronized void recordDone(final Slice slice) throws IOException {
+    if (checkpoint_out != null) {
+      checkpoint_out.write(slice.id() + '\n');
+      checkpoint_out.flush();
+    }
+  }
+
+  private static String join(final String[] args) {
+    final StringBuilder buf = new StringBuilder();
+    for (final String arg : args) {
+      if (buf.length() > 0) {
+        buf.append(' ');
+      }
+      buf.append(arg);
+    }
+    return buf.toString();
+  }
+
+  /** Returns roughly how many bytes a cell uses in HBase.  */
+  private static int cellSize(final KeyValue kv) {
+    return kv.key().length + kv.family().length + kv.qualifier().length
+      + kv.value().length;
+  }
+
+  /** The rows of a query within a time range.  */
+  private final class Slice implements Runnable {
+
+    private final int query_idx;
+    private final TsdbQueryDto query;
+    /** Base time of the first row of the slice.  */
+    private final long start;
+    /** Base time of the first row after the slice.  */
+    private final long end;
+    /** Number of rows being compacted, plus one until the scan is done.  */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger slice_errors = new AtomicInteger();
+
+    Slice(final int query_idx, final TsdbQueryDto query,
+          final long start, final long end) {
+      this.query_idx = query_idx;
+      this.query = query;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Identifies this slice in the checkpoint file.  */
+    String id() {
+      return query_idx + " " + start + ' ' + end;
+    }
+
+    public void run() {
+      try {
+        scan();
+        pending.decrementAndGet();  // The scan is done.
+        synchronized (this) {
+          while (pending.get() != 0) {
+            wait();  // Until the last compaction completes.
+          }
+        }
+        if (slice_errors.get() == 0) {
+          recordDone(this);
+        } else {
+          LOG.warn(slice_errors.get() + " rows not compacted in " + this
+                   + ", it will be retried if this run is resumed");
+        }
+        slices_done.incrementAndGet();
+      } catch (Exception e) {
+        errors.incrementAndGet();
+        LOG.error("Failed to compact " + this, e);
+      }
+    }
+
+    private void scan() throws Exception {
+      final Scanner scanner = TsdbQueryLoader.getScanner(tsdb, query);
+      final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+      System.arraycopy(query.metric, 0, start_row, 0, metric_width);
+      final byte[] end_row = start_row.clone();
+      Bytes.setInt(start_row, (int) start, metric_width);
+      Bytes.setInt(end_row, (int) end, metric_width);
+      scanner.setStartKey(start_row);
+      scanner.setStopKey(end_row);
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          rows_scanned.incrementAndGet();
+          if (row.size() > 1) {
+            compact(row);
+          }
+        }
+      }
+    }
+
+    private void compact(final ArrayList<KeyValue> row)
+      throws InterruptedException {
+      final int ncells = row.size();
+      int size = 0;
+      for (final KeyValue kv : row) {
+        size += cellSize(kv);
+      }
+      final KeyValue[] stored = { null };
+      inflight.acquire();
+      pending.incrementAndGet();
+      final Deferred<Object> d;
+      try {
+        d = Internal.compactNow(tsdb, row, stored);
+      } catch (IllegalDataException e) {
+        new Failed().call(e);
+        return;
+      }
+      final Done done = new Done(ncells, size, stored);
+      if (d == null) {
+        done.call(null);
+      } else {
+        d.addCallbacks(done, new Failed());
+      }
+    }
+
+    /** Called once a compaction has completed (maybe with an error).  */
+    private void completed() {
+      inflight.release();
+      if (pending.decrementAndGet() == 0) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+
+    public String toString() {
+      return "slice [" + start + ", " + end + ") of " + query;
+    }
+
+    /** Callback for a successful compaction.  */
+    private final class Done implements Callback<Object, Object> {
+      private final int ncells;
+      private final int size;
+      private final KeyValue[] stored;
+
+      Done(final int ncells, final int size, final KeyValue[] stored) {
+        this.ncells = ncells;
+        this.size = size;
+        this.stored = stored;
+      }
+
+      public Object call(final Object arg) {
+        if (stored[0] != null) {
+          rows_compacted.incrementAndGet();
+          cells_deleted.addAndGet(ncells - 1);
+          bytes_reclaimed.addAndGet(size - cellSize(stored[0]));
+        }
+        completed();
+        return arg;
+      }
+
+      public String toString() {
+        return "bulk compaction done";
+      }
+    }
+
+    /**
+     * Errback for a failed compaction.  Rows that HBase asked us to throttle
+     * weren't compacted either, so they keep the slice from being recorded
+     * as done.
+     */
+    private final class Failed implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        slice_errors.incrementAndGet();
+        if (e instanceof PleaseThrottleException) {
+          if (rows_throttled.incrementAndGet() % 100 == 1) {
+            LOG.warn("HBase throttled the compaction of a row of "
+                     + Slice.this + ", try a lower --max-inflight", e);
+          }
+        } else if (errors.incrementAndGet() % 100 == 1) {  // Don't flood logs.
+          LOG.error("Failed to compact a row of " + Slice.this, e);
+        }
+        completed();
+        return e;
+      }
+
+      public String toString() {
+        return "bulk compaction failed";
+      }
+    }
+
+  }
+
+}
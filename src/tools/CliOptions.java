@@ -66,6 +66,13 @@ final class CliOptions {
                    + " metrics to be tracked");
   }
 
+  /** Adds the --write-compactions flag.  */
+  static void addWriteCompactionsFlag(final ArgP argp) {
+    argp.addOption("--write-compactions", "Buffer the data points of each"
+                   + " series in memory and write one compacted row at a"
+                   + " time, instead of compacting rows after the fact.");
+  }
+
   /**
    * Parse the command line arguments with the given options.
    * @param options Options to parse in the given args.
@@ -103,6 +110,10 @@ final class CliOptions {
     if (argp.optionExists("--auto-metric") && argp.has("--auto-metric")) {
       System.setProperty("tsd.core.auto_create_metrics", "true");
     }
+    if (argp.optionExists("--write-compactions")
+        && argp.has("--write-compactions")) {
+      System.setProperty("tsd.feature.write_compactions", "true");
+    }
     final String zkq = argp.get("--zkquorum", "localhost");
     if (argp.has("--zkbasedir")) {
       return new HBaseClient(zkq, argp.get("--zkbasedir"));
@@ -156,9 +156,12 @@ final class DumpSeries {
   private static void formatKeyValue(final StringBuilder buf,
                                      final TSDB tsdb,
                                      final boolean importformat,
-                                     final KeyValue kv,
+                                     KeyValue kv,
                                      final long base_time,
                                      final String metric) {
+    if (Internal.isCompressed(kv)) {
+      kv = Internal.decompress(kv);
+    }
     if (importformat) {
       buf.append(metric).append(' ');
     }
@@ -154,6 +154,21 @@ final class Fsck {
                        + "ms (" + (100000 * 1000 / ping_start_time) + " KVs/s)");
               ping_start_time = now;
             }
+            if (Internal.isCompressed(kv)) {
+              final byte[] qual;
+              try {
+                qual = Internal.decompress(kv).qualifier();
+              } catch (IllegalDataException e) {
+                errors++;
+                LOG.error(e.getMessage() + "\n\t" + kv);
+                continue;
+              }
+              prev.setTimestamp(base_time
+                + ((Bytes.getShort(qual, qual.length - 2) & 0xFFFF)
+                   >>> Internal.FLAG_BITS));
+              prev.kv = kv;
+              continue;  // We done checking a compressed value.
+            }
             byte[] value = kv.value();
             final byte[] qual = kv.qualifier();
             if (qual.length < 2) {
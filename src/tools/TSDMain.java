@@ -104,6 +104,51 @@ final class TSDMain {
     argp.addOption("--flush-interval", "MSEC",
                    "Maximum time for which a new data point can be buffered"
                    + " (default: " + DEFAULT_FLUSH_INTERVAL + ").");
+    argp.addOption("--max-inflight-puts", "NUM",
+                   "Stop reading from clients while that many data points are"
+                   + " being written (default: 0, unlimited).");
+    argp.addOption("--max-inflight-puts-per-connection", "NUM",
+                   "Stop reading from a client while that many of its data"
+                   + " points are being written (default: 0, unlimited).");
+    argp.addOption("--spooldir", "PATH",
+                   "Directory in which to spool data points while HBase is"
+                   + " unavailable (default: no spooling).");
+    argp.addOption("--spool-segment-size", "BYTES",
+                   "Size of the spool files (default: 64MB).");
+    argp.addOption("--spool-fsync", "always|segment|never",
+                   "When to force the spool to disk (default: segment).");
+    argp.addOption("--spool-replay-rate", "NUM",
+                   "Maximum number of spooled data points written back to"
+                   + " HBase per second (default: 10000, 0 for unlimited).");
+    argp.addOption("--spool-max-size", "BYTES",
+                   "Fail writes instead of spooling them once the spool is"
+                   + " that big (default: 10GB, 0 for unlimited).");
+    argp.addOption("--checkpointdir", "PATH",
+                   "Directory in which to save the compaction queue so that"
+                   + " it survives restarts (default: not saved).");
+    argp.addOption("--checkpoint-interval", "SEC",
+                   "How often to save the compaction queue (default: 60).");
+    argp.addOption("--rebuild-compaction-queue", "HOURS",
+                   "At startup, scan the rows of the last HOURS hours to find"
+                   + " those that need to be compacted (default: 0, don't).");
+    argp.addOption("--compaction-concurrency", "NUM",
+                   "Maximum number of rows compacted concurrently"
+                   + " (default: 10000).");
+    argp.addOption("--compaction-rate", "NUM",
+                   "Maximum number of compaction RPCs sent to HBase per"
+                   + " second (default: 0, unlimited).");
+    argp.addOption("--compaction-target-latency", "MSEC",
+                   "Slow down compactions when HBase reads take longer than"
+                   + " this on average (default: 100, 0 to never slow down).");
+    argp.addOption("--series-index", "NUM",
+                   "Keep an in-memory index of up to NUM series to plan"
+                   + " queries (default: 0, no index).  Only use it if all"
+                   + " the data points are written through this TSD: series"
+                   + " written by other TSDs or tools would be missing from"
+                   + " query results.");
+    argp.addOption("--series-index-bootstrap", "HOURS",
+                   "At startup, index the series written in the last HOURS"
+                   + " hours (default: 24).");
     CliOptions.addAutoMetricFlag(argp);
     args = CliOptions.parse(argp, args);
     if (args == null || !argp.has("--port")
@@ -120,6 +165,57 @@ final class TSDMain {
                               DONT_CREATE, !MUST_BE_WRITEABLE);
     setDirectoryInSystemProps("tsd.http.cachedir", argp.get("--cachedir"),
                               CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+    setLimitInSystemProps("tsd.rpc.max_inflight_puts",
+                          argp.get("--max-inflight-puts"));
+    setLimitInSystemProps("tsd.rpc.max_inflight_puts_per_connection",
+                          argp.get("--max-inflight-puts-per-connection"));
+    if (argp.has("--spooldir")) {
+      setDirectoryInSystemProps("tsd.spool.dir", argp.get("--spooldir"),
+                                CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+      setLimitInSystemProps("tsd.spool.segment_size",
+                            argp.get("--spool-segment-size"));
+      setLimitInSystemProps("tsd.spool.replay_rate",
+                            argp.get("--spool-replay-rate"));
+      final String max_size = argp.get("--spool-max-size");
+      if (max_size != null) {
+        try {
+          if (Long.parseLong(max_size) < 0) {
+            usage(argp, "Negative value for --spool-max-size: " + max_size, 3);
+          }
+        } catch (NumberFormatException e) {
+          usage(argp, "Invalid value for --spool-max-size: " + max_size, 3);
+        }
+        System.setProperty("tsd.spool.max_bytes", max_size);
+      }
+      final String fsync = argp.get("--spool-fsync");
+      if (fsync != null) {
+        if (!"always".equals(fsync) && !"segment".equals(fsync)
+            && !"never".equals(fsync)) {
+          usage(argp, "Invalid value for --spool-fsync: " + fsync, 3);
+        }
+        System.setProperty("tsd.spool.fsync", fsync);
+      }
+    }
+
+    if (argp.has("--checkpointdir")) {
+      setDirectoryInSystemProps("tsd.compaction.checkpoint_dir",
+                                argp.get("--checkpointdir"),
+                                CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+      setLimitInSystemProps("tsd.compaction.checkpoint_interval",
+                            argp.get("--checkpoint-interval"));
+    }
+    setLimitInSystemProps("tsd.compaction.rebuild_hours",
+                          argp.get("--rebuild-compaction-queue"));
+    setLimitInSystemProps("tsd.compaction.max_concurrent_flushes",
+                          argp.get("--compaction-concurrency"));
+    setLimitInSystemProps("tsd.compaction.max_rpc_rate",
+                          argp.get("--compaction-rate"));
+    setLimitInSystemProps("tsd.compaction.target_latency",
+                          argp.get("--compaction-target-latency"));
+    setLimitInSystemProps("tsd.core.series_index.max_series",
+                          argp.get("--series-index"));
+    setLimitInSystemProps("tsd.core.series_index.bootstrap_hours",
+                          argp.get("--series-index-bootstrap"));
 
     final ServerSocketChannelFactory factory;
     if (argp.get("--async-io", "true").equalsIgnoreCase("true")) {
@@ -181,6 +277,30 @@ final class TSDMain {
     // The server is now running in separate threads, we can exit main.
   }
 
+  /**
+   * Ensures the given limit is a positive integer and stores it in the
+   * given system property.
+   * @param prop The name of the system property to set.
+   * @param limit The limit given on the command line, if any.
+   */
+  private static void setLimitInSystemProps(final String prop,
+                                            final String limit) {
+    if (limit == null) {
+      return;
+    }
+    final int value;
+    try {
+      value = Integer.parseInt(limit);
+    } catch (NumberFormatException e) {
+      usage(null, "Invalid limit for " + prop + ": " + limit, 3);
+      return;
+    }
+    if (value < 0) {
+      usage(null, "Negative limit for " + prop + ": " + limit, 3);
+    }
+    System.setProperty(prop, limit);
+  }
+
   /**
    * Parses the value of the --flush-interval parameter.
    * @throws IllegalArgumentException if the flush interval is negative.
@@ -53,6 +53,7 @@ final class TextImporter {
     ArgP argp = new ArgP();
     CliOptions.addCommon(argp);
     CliOptions.addAutoMetricFlag(argp);
+    CliOptions.addWriteCompactionsFlag(argp);
     args = CliOptions.parse(argp, args);
     if (args == null) {
       usage(argp, 1);
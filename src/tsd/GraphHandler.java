@@ -35,6 +35,10 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +76,16 @@ final class GraphHandler implements HttpRpc {
   private static final Histogram graphlatency =
     new Histogram(16000, (short) 2, 100);
 
+  /** Keep track of the latency (in ms) of the queries of graph requests. */
+  private static final Histogram querylatency =
+    new Histogram(16000, (short) 2, 100);
+
+  /** Number of graph requests waiting for the results of their queries. */
+  private static final AtomicInteger queries_inflight = new AtomicInteger();
+
+  /** Number of graph requests waiting for a thread to be rendered. */
+  private static final AtomicInteger render_queue = new AtomicInteger();
+
   /** Keep track of the latency (in ms) introduced by running Gnuplot. */
   private static final Histogram gnuplotlatency =
     new Histogram(16000, (short) 2, 100);
@@ -163,44 +177,132 @@ final class GraphHandler implements HttpRpc {
                                timezones.get(query.getQueryStringParam("tz")));
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
+    final List<String> plot_options = options;
     final int nqueries = tsdbqueries.length;
-    @SuppressWarnings("unchecked")
-    final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
-    int npoints = 0;
-
+    // Issue all the queries at once, nothing blocks until they all come
+    // back.  The results are then rendered on the Gnuplot thread pool,
+    // since building the plot involves looking up UIDs, which can block.
+    final DataPoints[][] results = new DataPoints[nqueries][];
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>(nqueries);
     for (int i = 0; i < nqueries; i++) {
-      try {  // execute the TSDB query!
-        // XXX This is slow and will block Netty.  TODO(tsuna): Don't block.
-        // TODO(tsuna): Optimization: run each query in parallel.
-        // insert magic here
-        final DataPoints[] series = TsdbQueryAggregator.execute(tsdb, tsdbqueries[i]);
-        for (final DataPoints datapoints : series) {
-          plot.add(datapoints, options.get(i));
-          aggregated_tags[i] = new HashSet<String>();
-          aggregated_tags[i].addAll(datapoints.getAggregatedTags());
-          npoints += datapoints.aggregatedSize();
+      final int index = i;
+      final TsdbQueryDto tsdbquery = tsdbqueries[i];
+      final class StoreCB implements Callback<Object, DataPoints[]> {
+        public Object call(final DataPoints[] series) {
+          results[index] = series;
+          return null;
+        }
+      }
+      final class LogErrorCB implements Callback<Exception, Exception> {
+        public Exception call(final Exception e) {
+          logInfo(query, "Query failed (stack trace coming): " + tsdbquery);
+          return e;
         }
+      }
+      try {  // execute the TSDB query!
+        deferreds.add(TsdbQueryAggregator.executeAsync(tsdb, tsdbquery)
+                      .addCallbacks(new StoreCB(), new LogErrorCB()));
       } catch (RuntimeException e) {
-        logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[i]);
+        logInfo(query, "Query failed (stack trace coming): " + tsdbquery);
         throw e;
       }
       tsdbqueries[i] = null;  // free()
     }
     tsdbqueries = null;  // free()
+    queries_inflight.incrementAndGet();
 
-    if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
-      return;
+    final class RenderCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> unused) {
+        queries_inflight.decrementAndGet();
+        querylatency.add(query.processingTimeMillis());
+        final Render render = new Render(query, max_age, plot, basepath,
+                                         plot_options, results);
+        try {
+          render_queue.incrementAndGet();
+          gnuplot.execute(render);
+        } catch (RejectedExecutionException e) {
+          render_queue.decrementAndGet();
+          query.internalError(new Exception("Too many requests pending,"
+                                            + " please try again later", e));
+        }
+        return null;
+      }
+    }
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(Exception e) {
+        queries_inflight.decrementAndGet();
+        if (e instanceof DeferredGroupException) {
+          e = (Exception) e.getCause();
+        }
+        if (e instanceof BadRequestException
+            || e instanceof IllegalArgumentException) {
+          query.badRequest(e.getMessage());
+        } else {
+          query.internalError(e);
+        }
+        return null;
+      }
     }
+    Deferred.group(deferreds).addCallbacks(new RenderCB(), new ErrorCB());
+  }
 
-    try {
-      gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
-    } catch (RejectedExecutionException e) {
-      query.internalError(new Exception("Too many requests pending,"
-                                        + " please try again later", e));
+  /**
+   * Renders the results of the queries of a graph request, as ASCII
+   * or by running Gnuplot, and sends the reply.
+   */
+  private static final class Render implements Runnable {
+
+    private final HttpQuery query;
+    private final int max_age;
+    private final Plot plot;
+    private final String basepath;
+    private final List<String> options;
+    private final DataPoints[][] results;
+
+    public Render(final HttpQuery query,
+                  final int max_age,
+                  final Plot plot,
+                  final String basepath,
+                  final List<String> options,
+                  final DataPoints[][] results) {
+      this.query = query;
+      this.max_age = max_age;
+      this.plot = plot;
+      this.basepath = basepath;
+      this.options = options;
+      this.results = results;
     }
+
+    public void run() {
+      render_queue.decrementAndGet();
+      final int nqueries = results.length;
+      @SuppressWarnings("unchecked")
+      final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
+      int npoints = 0;
+      try {
+        for (int i = 0; i < nqueries; i++) {
+          for (final DataPoints datapoints : results[i]) {
+            plot.add(datapoints, options.get(i));
+            aggregated_tags[i] = new HashSet<String>();
+            aggregated_tags[i].addAll(datapoints.getAggregatedTags());
+            npoints += datapoints.aggregatedSize();
+          }
+          results[i] = null;  // free()
+        }
+      } catch (RuntimeException e) {
+        query.internalError(e);
+        return;
+      }
+
+      if (query.hasQueryStringParam("ascii")) {
+        respondAsciiQuery(query, max_age, basepath, plot);
+        return;
+      }
+      new RunGnuplot(query, max_age, plot, basepath,
+                     aggregated_tags, npoints).run();
+    }
+
   }
 
   /**
@@ -321,6 +423,9 @@ final class GraphHandler implements HttpRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", graphlatency, "type=graph");
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
+    collector.record("http.latency", querylatency, "type=query");
+    collector.record("http.graph.inflight", queries_inflight, "state=query");
+    collector.record("http.graph.inflight", render_queue, "state=queued");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
   }
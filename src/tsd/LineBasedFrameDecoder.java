@@ -56,7 +56,9 @@ final class LineBasedFrameDecoder extends FrameDecoder {
         frame = null;
         buffer.skipBytes(length);
       } else {
-        frame = buffer.readBytes(length);
+        // No need to copy the frame: the next handlers in the pipeline
+        // decode it right away, before we touch the buffer again.
+        frame = buffer.readSlice(length);
       }
       final byte delim = buffer.readByte();
       if (delim == '\r') {
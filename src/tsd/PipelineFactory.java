@@ -86,7 +86,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
-        pipeline.addLast("decoder", DECODER);
+        pipeline.addLast("decoder", new PutDecoder(DECODER));
       }
       pipeline.remove(this);
       pipeline.addLast("handler", rpchandler);
@@ -13,13 +13,21 @@
 package net.opentsdb.tsd;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.jboss.netty.channel.Channel;
 
+import org.hbase.async.HBaseException;
+
+import net.opentsdb.core.RowKeyTemplate;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.stats.StatsCollector;
@@ -28,7 +36,11 @@ import net.opentsdb.uid.NoSuchUniqueName;
 /** Implements the "put" telnet-style command. */
 final class PutDataPointRpc implements TelnetRpc {
 
+  private static final Logger LOG =
+    LoggerFactory.getLogger(PutDataPointRpc.class);
+
   private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong batches = new AtomicLong();
   private static final AtomicLong hbase_errors = new AtomicLong();
   private static final AtomicLong invalid_values = new AtomicLong();
   private static final AtomicLong illegal_arguments = new AtomicLong();
@@ -36,36 +48,206 @@ final class PutDataPointRpc implements TelnetRpc {
 
   public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
                                   final String[] cmd) {
+    if ("putbatch".equals(cmd[0])) {  // The PutDecoder rejected the header.
+      if (chan.isConnected()) {
+        chan.write("putbatch: invalid batch size, must be between 1 and "
+                   + PutDecoder.MAX_BATCH_SIZE + '\n');
+      }
+      return Deferred.fromResult(null);
+    }
     requests.incrementAndGet();
-    String errmsg = null;
     try {
-      final class PutErrback implements Callback<Exception, Exception> {
-        public Exception call(final Exception arg) {
-          if (chan.isConnected()) {
-            chan.write("put: HBase error: " + arg.getMessage() + '\n');
-          }
-          hbase_errors.incrementAndGet();
-          return arg;
-        }
-        public String toString() {
-          return "report error to channel";
-        }
+      return importDataPoint(tsdb, cmd)
+        .addBoth(PutThrottle.acquire(chan))
+        .addErrback(new PutErrback(chan));
+    } catch (RuntimeException x) {
+      return reportError(chan, x);
+    }
+  }
+
+  /**
+   * Executes a put already parsed by the {@link PutDecoder}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param chan The channel on which the put was received.
+   * @param dp The data point to import.
+   * @return A deferred object that indicates the completion of the request.
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final PutDecoder.DataPoint dp) {
+    requests.incrementAndGet();
+    try {
+      return importDataPoint(tsdb, dp)
+        .addBoth(PutThrottle.acquire(chan))
+        .addErrback(new PutErrback(chan));
+    } catch (RuntimeException x) {
+      return reportError(chan, x);
+    }
+  }
+
+  /**
+   * Executes a batch of puts framed by the {@link PutDecoder}.
+   * <p>
+   * Invalid data points are skipped, all the others are written.  Once
+   * every write has completed, a single line is sent back to the client:
+   * {@code putbatch: <ok> ok, <failed> failed}, followed by the first error
+   * encountered, if any.
+   * @param tsdb The TSDB to import the data points into.
+   * @param chan The channel on which the batch was received.
+   * @param batch The data points to import.
+   * @return A deferred that is called back once the batch is acknowledged.
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final PutDecoder.Batch batch) {
+    batches.incrementAndGet();
+    requests.addAndGet(batch.size());
+    // The whole batch is accounted for at once, not point by point.
+    final Callback<Object, Object> release =
+      PutThrottle.acquire(chan, batch.size());
+    final BatchCB cb = new BatchCB(chan, batch.size());
+    // The row key of each series of the batch is only resolved once.
+    final HashMap<Series, RowKeyTemplate> rows =
+      new HashMap<Series, RowKeyTemplate>();
+    for (int i = 0; i < batch.size(); i++) {
+      final Object point = batch.get(i);
+      try {
+        (point instanceof PutDecoder.DataPoint
+         ? importDataPoint(tsdb, (PutDecoder.DataPoint) point, rows)
+         : importDataPoint(tsdb, (String[]) point))
+          .addBoth(cb);
+      } catch (RuntimeException x) {
+        cb.failed("line " + (i + 1) + ": " + describeBatchError(x));
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
-    } catch (NumberFormatException x) {
-      errmsg = "put: invalid value: " + x.getMessage() + '\n';
+    }
+    return cb.done.addBoth(release);
+  }
+
+  /**
+   * Counts the outcome of every data point of a batch, and sends the
+   * acknowledgement once they have all completed.
+   * A single instance is shared by all the data points of the batch.
+   */
+  private static final class BatchCB implements Callback<Object, Object> {
+    private final Channel chan;
+    private final int size;
+    private final AtomicInteger remaining;
+    private final AtomicInteger failures = new AtomicInteger();
+    /** The first error encountered, if any.  */
+    private volatile String first_error;
+    final Deferred<Object> done = new Deferred<Object>();
+
+    BatchCB(final Channel chan, final int size) {
+      this.chan = chan;
+      this.size = size;
+      remaining = new AtomicInteger(size);
+    }
+
+    public Object call(final Object arg) {
+      if (arg instanceof Exception) {
+        hbase_errors.incrementAndGet();
+        failed("HBase error: " + ((Exception) arg).getMessage());
+      } else {
+        completed();
+      }
+      return arg;
+    }
+
+    void failed(final String error) {
+      if (first_error == null) {
+        first_error = error;
+      }
+      failures.incrementAndGet();
+      completed();
+    }
+
+    private void completed() {
+      if (remaining.decrementAndGet() != 0) {
+        return;
+      }
+      final int failed = failures.get();
+      if (chan.isConnected()) {
+        chan.write("putbatch: " + (size - failed) + " ok, " + failed
+                   + " failed" + (failed == 0 ? "" : ", first error: "
+                                  + first_error) + '\n');
+      }
+      done.callback(null);
+    }
+
+    public String toString() {
+      return "acknowledge batch of " + size + " data points";
+    }
+  }
+
+  /** Reports HBase errors back to the client.  */
+  private static final class PutErrback implements Callback<Exception, Exception> {
+    private final Channel chan;
+
+    PutErrback(final Channel chan) {
+      this.chan = chan;
+    }
+
+    public Exception call(final Exception arg) {
+      if (chan.isConnected()) {
+        chan.write("put: HBase error: " + arg.getMessage() + '\n');
+      }
+      hbase_errors.incrementAndGet();
+      return arg;
+    }
+
+    public String toString() {
+      return "report error to channel";
+    }
+  }
+
+  /**
+   * Reports an invalid data point back to the client.
+   * @param chan The channel on which the put was received.
+   * @param x The exception thrown while importing the data point.
+   * @throws RuntimeException x itself, if it's not due to invalid input.
+   */
+  private static Deferred<Object> reportError(final Channel chan,
+                                              final RuntimeException x) {
+    final String errmsg = "put: " + describeError(x) + '\n';
+    if (chan.isConnected()) {
+      chan.write(errmsg);
+    }
+    return Deferred.fromResult(null);
+  }
+
+  /**
+   * Describes and counts an invalid data point.
+   * @param x The exception thrown while importing the data point.
+   * @throws RuntimeException x itself, if it's not due to invalid input.
+   */
+  static String describeError(final RuntimeException x) {
+    if (x instanceof NumberFormatException) {
       invalid_values.incrementAndGet();
-    } catch (IllegalArgumentException x) {
-      errmsg = "put: illegal argument: " + x.getMessage() + '\n';
+      return "invalid value: " + x.getMessage();
+    } else if (x instanceof IllegalArgumentException) {
       illegal_arguments.incrementAndGet();
-    } catch (NoSuchUniqueName x) {
-      errmsg = "put: unknown metric: " + x.getMessage() + '\n';
+      return "illegal argument: " + x.getMessage();
+    } else if (x instanceof NoSuchUniqueName) {
       unknown_metrics.incrementAndGet();
+      return "unknown metric: " + x.getMessage();
     }
-    if (errmsg != null && chan.isConnected()) {
-      chan.write(errmsg);
+    throw x;
+  }
+
+  /**
+   * Describes and counts a data point of a batch that couldn't be written.
+   * Unlike {@link #describeError}, this never throws, as every data point
+   * must be accounted for for the batch to be acknowledged.
+   * @param x The exception thrown while importing the data point.
+   */
+  private static String describeBatchError(final RuntimeException x) {
+    if (x instanceof IllegalArgumentException
+        || x instanceof NoSuchUniqueName) {
+      return describeError(x);
+    } else if (x instanceof HBaseException) {  // e.g. while resolving a UID.
+      hbase_errors.incrementAndGet();
+      return "HBase error: " + x.getMessage();
     }
-    return Deferred.fromResult(null);
+    LOG.error("Unexpected exception while importing a data point", x);
+    return "unexpected error: " + x;
   }
 
   /**
@@ -74,6 +256,7 @@ final class PutDataPointRpc implements TelnetRpc {
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("rpc.received", requests, "type=put");
+    collector.record("rpc.received", batches, "type=putbatch");
     collector.record("rpc.errors", hbase_errors, "type=hbase_errors");
     collector.record("rpc.errors", invalid_values, "type=invalid_values");
     collector.record("rpc.errors", illegal_arguments, "type=illegal_arguments");
@@ -90,7 +273,7 @@ final class PutDataPointRpc implements TelnetRpc {
    * @throws IllegalArgumentException if any other argument is invalid.
    * @throws NoSuchUniqueName if the metric isn't registered.
    */
-  private Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
+  static Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
     words[0] = null; // Ditch the "put".
     if (words.length < 5) {  // Need at least: metric timestamp value tag
       //               ^ 5 and not 4 because words[0] is "put".
@@ -121,4 +304,86 @@ final class PutDataPointRpc implements TelnetRpc {
       return tsdb.addPoint(metric, timestamp, Float.parseFloat(value), tags);
     }
   }
+
+  /**
+   * Imports a single data point already parsed by the {@link PutDecoder}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param dp The data point to import.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   */
+  static Deferred<Object> importDataPoint(final TSDB tsdb,
+                                          final PutDecoder.DataPoint dp) {
+    return dp.is_integer
+      ? tsdb.addPoint(dp.metric, dp.timestamp, dp.long_value, dp.tags)
+      : tsdb.addPoint(dp.metric, dp.timestamp, dp.float_value, dp.tags);
+  }
+
+  /**
+   * Imports a single line, as returned by {@link PutDecoder#parseLine}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param line Either a {@link PutDecoder.DataPoint} or the words of a line.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws NumberFormatException if the timestamp or value is invalid.
+   * @throws IllegalArgumentException if any other argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   */
+  static Deferred<Object> importDataPoint(final TSDB tsdb, final Object line) {
+    return line instanceof PutDecoder.DataPoint
+      ? importDataPoint(tsdb, (PutDecoder.DataPoint) line)
+      : importDataPoint(tsdb, (String[]) line);
+  }
+
+  /**
+   * Imports a data point of a batch.
+   * @param tsdb The TSDB to import the data point into.
+   * @param dp The data point to import.
+   * @param rows The row keys of the series already resolved in this batch.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   */
+  private static Deferred<Object>
+    importDataPoint(final TSDB tsdb, final PutDecoder.DataPoint dp,
+                    final HashMap<Series, RowKeyTemplate> rows) {
+    final String metric = tsdb.tryMapMetricToSubMetric(dp.metric,
+                                                        dp.timestamp * 1000,
+                                                        dp.tags);
+    final Series series = new Series(metric, dp.tags);
+    RowKeyTemplate row = rows.get(series);
+    if (row == null) {
+      row = tsdb.rowKeyTemplate(metric, dp.tags);
+      rows.put(series, row);
+    }
+    return dp.is_integer
+      ? tsdb.addPoint(row, dp.timestamp, dp.long_value)
+      : tsdb.addPoint(row, dp.timestamp, dp.float_value);
+  }
+
+  /** A series of a batch: a metric (after remapping) and a set of tags.  */
+  private static final class Series {
+    private final String metric;
+    private final Map<String, String> tags;
+
+    Series(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    @Override
+    public int hashCode() {
+      return metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Series)) {
+        return false;
+      }
+      final Series series = (Series) other;
+      return metric.equals(series.metric) && tags.equals(series.tags);
+    }
+  }
+
 }
@@ -0,0 +1,333 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import net.opentsdb.core.Tags;
+
+/**
+ * Decodes "put" lines straight out of the {@link ChannelBuffer}.
+ * <p>
+ * Going through the {@link WordSplitter} costs a String for the whole line,
+ * a String[] and a String per word, then a HashMap and two more Strings per
+ * tag.  At high ingest rates this garbage becomes the bottleneck.  Instead
+ * this decoder parses well-formed put lines in a single pass into a
+ * {@link DataPoint} that is reused from one line to the next, numbers are
+ * parsed directly from the bytes and the names (metric, tag names and tag
+ * values) are looked up in a small per-connection cache, as a given
+ * connection keeps sending the same names over and over again.
+ * <p>
+ * Everything else, including malformed put lines, is handed over to the
+ * {@link WordSplitter} so that errors are reported exactly as before.
+ * <p>
+ * This decoder also frames batches: a {@code putbatch N} line announces
+ * that the next N lines are data points (with or without the leading
+ * {@code put}), which are collected and emitted as a single {@link Batch}
+ * once the last one has been received.
+ * <p>
+ * The {@link DataPoint} emitted is only valid until the next line is
+ * decoded, which is fine as the {@link RpcHandler} consumes it right away
+ * in the I/O thread.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ */
+final class PutDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private static final byte[] PUT = { 'p', 'u', 't', ' ' };
+  private static final byte[] PUTBATCH = {
+    'p', 'u', 't', 'b', 'a', 't', 'c', 'h', ' '
+  };
+
+  /** Maximum number of data points in a single batch.  */
+  static final int MAX_BATCH_SIZE = 10000;
+
+  /** Number of names remembered per connection (must be a power of 2).  */
+  private static final int NAME_CACHE_SIZE = 4096;
+
+  /** Decoder used for anything that isn't a well-formed put.  */
+  private final WordSplitter fallback;
+
+  /** The data point handed to the next handler, reused for every line.  */
+  private final DataPoint point = new DataPoint();
+
+  /** Direct-mapped cache of the names seen on this connection.  */
+  private final String[] names = new String[NAME_CACHE_SIZE];
+
+  /** The batch being received, if any.  */
+  private Batch batch;
+  /** How many more lines we expect in the current batch.  */
+  private int batch_remaining;
+
+  /**
+   * Constructor.
+   * @param fallback The decoder to use for non-put commands, can be
+   * {@code null} if this instance is only used through {@link #parseLine}.
+   */
+  public PutDecoder(final WordSplitter fallback) {
+    this.fallback = fallback;
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) throws Exception {
+    final ChannelBuffer buf = (ChannelBuffer) msg;
+    final int start = buf.readerIndex();
+    final int end = buf.writerIndex();
+    if (batch != null) {
+      return addToBatch(buf, start, end);
+    }
+    if (startsWith(buf, start, end, PUT)
+        && parse(buf, start + PUT.length, end, point)) {
+      return point;
+    } else if (startsWith(buf, start, end, PUTBATCH)) {
+      final long size = parseUnsigned(buf, start + PUTBATCH.length, end);
+      if (size > 0 && size <= MAX_BATCH_SIZE) {
+        batch = new Batch((int) size);
+        batch_remaining = (int) size;
+        return null;  // Wait for the data points.
+      }
+    }
+    return fallback.decode(ctx, channel, msg);
+  }
+
+  /**
+   * Adds a line to the current batch.
+   * @return The batch if this was its last line, {@code null} otherwise.
+   */
+  private Object addToBatch(final ChannelBuffer buf,
+                            final int start, final int end) {
+    batch.add(parseLine(buf, start, end));
+    if (--batch_remaining > 0) {
+      return null;
+    }
+    final Batch complete = batch;
+    batch = null;
+    return complete;
+  }
+
+  /**
+   * Parses a data point line, with or without the leading "put".
+   * @param buf The buffer to read the line from.
+   * @param start Index of the first byte of the line.
+   * @param end Index of the end of the line (excluded).
+   * @return A new {@link DataPoint}, or if the line can't be parsed, the
+   * String[] of its words, starting with "put", so that importing it
+   * reports the usual error message.
+   */
+  Object parseLine(final ChannelBuffer buf, final int start, final int end) {
+    final int pos = startsWith(buf, start, end, PUT) ? start + PUT.length : start;
+    final DataPoint dp = new DataPoint();
+    if (parse(buf, pos, end, dp)) {
+      return dp;
+    }
+    return Tags.splitString("put " + buf.toString(pos, end - pos, CHARSET), ' ');
+  }
+
+  private static boolean startsWith(final ChannelBuffer buf,
+                                    final int start, final int end,
+                                    final byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf.getByte(start + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Attempts to parse the data point of a put line, after the "put".
+   * @param dp The data point to fill in.
+   * @return {@code false} if the line is malformed in any way, in which
+   * case the slow path must be used.
+   */
+  private boolean parse(final ChannelBuffer buf, int pos, final int end,
+                        final DataPoint dp) {
+    // Metric.
+    int sep = buf.indexOf(pos, end, (byte) ' ');
+    if (sep <= pos) {  // Not found or empty metric.
+      return false;
+    }
+    final String metric = name(buf, pos, sep);
+    pos = sep + 1;
+
+    // Timestamp.
+    sep = buf.indexOf(pos, end, (byte) ' ');
+    if (sep < 0) {
+      return false;
+    }
+    final long timestamp = parseUnsigned(buf, pos, sep);
+    if (timestamp <= 0) {
+      return false;
+    }
+    pos = sep + 1;
+
+    // Value.
+    sep = buf.indexOf(pos, end, (byte) ' ');
+    if (sep <= pos) {  // Not found (no tags) or empty value.
+      return false;
+    }
+    boolean integer = true;
+    for (int i = pos; i < sep; i++) {
+      final byte b = buf.getByte(i);
+      if (b == '.' || b == 'e' || b == 'E') {
+        integer = false;
+        break;
+      }
+    }
+    long long_value = 0;
+    float float_value = 0;
+    if (integer) {
+      final boolean negative = buf.getByte(pos) == '-';
+      long_value = parseUnsigned(buf, negative ? pos + 1 : pos, sep);
+      if (long_value < 0) {
+        return false;
+      }
+      if (negative) {
+        long_value = -long_value;
+      }
+    } else {
+      try {
+        float_value = Float.parseFloat(buf.toString(pos, sep - pos, CHARSET));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    pos = sep + 1;
+
+    // Tags.
+    final HashMap<String, String> tags = dp.tags;
+    tags.clear();
+    while (pos <= end) {
+      sep = buf.indexOf(pos, end, (byte) ' ');
+      if (sep < 0) {
+        sep = end;
+      }
+      if (sep > pos) {  // Skip empty words, like the slow path does.
+        final int equal = buf.indexOf(pos, sep, (byte) '=');
+        if (equal <= pos || equal == sep - 1
+            || buf.indexOf(equal + 1, sep, (byte) '=') >= 0) {
+          return false;
+        }
+        final String name = name(buf, pos, equal);
+        final String value = name(buf, equal + 1, sep);
+        final String prev = tags.put(name, value);
+        if (prev != null && !prev.equals(value)) {
+          return false;  // Let the slow path report the duplicate tag.
+        }
+      }
+      pos = sep + 1;
+    }
+    if (tags.isEmpty()) {
+      return false;
+    }
+
+    dp.metric = metric;
+    dp.timestamp = timestamp;
+    dp.is_integer = integer;
+    dp.long_value = long_value;
+    dp.float_value = float_value;
+    return true;
+  }
+
+  /**
+   * Parses a positive decimal number made of at most 18 digits.
+   * @return The number, or -1 if the bytes aren't such a number.
+   */
+  private static long parseUnsigned(final ChannelBuffer buf,
+                                    final int start, final int end) {
+    if (start >= end || end - start > 18) {  // Can't overflow with 18 digits.
+      return -1;
+    }
+    long v = 0;
+    for (int i = start; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b < '0' || b > '9') {
+        return -1;
+      }
+      v = v * 10 + (b - '0');
+    }
+    return v;
+  }
+
+  /**
+   * Returns the String for the given bytes, from the cache if possible.
+   */
+  private String name(final ChannelBuffer buf, final int start, final int end) {
+    final int len = end - start;
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buf.getByte(i);
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+    String name = names[slot];
+    if (name != null && name.length() == len) {
+      int i = 0;
+      while (i < len && name.charAt(i) == (char) (buf.getByte(start + i) & 0xFF)) {
+        i++;
+      }
+      if (i == len) {
+        return name;
+      }
+    }
+    name = buf.toString(start, len, CHARSET);
+    names[slot] = name;
+    return name;
+  }
+
+  /**
+   * A data point parsed out of a put line.
+   * The instance emitted for single puts is reused, don't hold on to it.
+   */
+  static final class DataPoint {
+    String metric;
+    long timestamp;
+    boolean is_integer;
+    long long_value;
+    float float_value;
+    final HashMap<String, String> tags = new HashMap<String, String>();
+
+    public String toString() {
+      return "put " + metric + ' ' + timestamp + ' '
+        + (is_integer ? Long.toString(long_value) : Float.toString(float_value))
+        + ' ' + tags;
+    }
+  }
+
+  /**
+   * The data points of a {@code putbatch}, in the order they were received.
+   * Each element is either a {@link DataPoint} or, for the lines that
+   * couldn't be parsed, the String[] of the words of the line.
+   */
+  static final class Batch extends ArrayList<Object> {
+    Batch(final int size) {
+      super(size);
+    }
+
+    static final long serialVersionUID = 1373932800;
+  }
+
+}
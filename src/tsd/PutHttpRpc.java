@@ -0,0 +1,336 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import com.stumbleupon.async.Callback;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+
+/**
+ * Bulk ingestion of data points over HTTP ("POST /put").
+ * <p>
+ * The body contains one data point per line, in either of these forms:
+ * <ul>
+ *   <li>The same format as the telnet-style "put" command, with or without
+ *   the leading "put":
+ *   {@code sys.cpu.user 1356998400 42.5 host=web01 cpu=0}</li>
+ *   <li>A JSON object:
+ *   {@code {"metric":"sys.cpu.user","timestamp":1356998400,"value":42.5,
+ *   "tags":{"host":"web01","cpu":"0"}}}</li>
+ * </ul>
+ * Large bodies are received in chunks and parsed as they arrive, so the
+ * body is never buffered in memory.  Once every data point has been
+ * written (or has failed), a JSON object is sent back with the number of
+ * data points written and failed, along with the first errors.  The
+ * status code is 200 if everything was written, 400 otherwise.
+ */
+final class PutHttpRpc implements HttpRpc {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Maximum length of a line, longer lines cause the request to fail.  */
+  private static final int MAX_LINE_LENGTH = 65536;
+
+  /** Maximum number of errors reported back to the client.  */
+  private static final int MAX_ERRORS_REPORTED = 10;
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong datapoints = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+
+  /** Time taken to process a whole request, from the headers to the reply.  */
+  private static final Histogram latency = new Histogram(16000, (short) 2, 100);
+
+  /**
+   * Handles a request whose body was received at once.
+   * @param tsdb The TSDB to use.
+   * @param query The HTTP query to execute.
+   */
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    final Stream stream = stream(tsdb, query);
+    if (stream != null) {
+      stream.add(query.request().getContent());
+      stream.finish();
+    }
+  }
+
+  /**
+   * Starts handling a request whose body is going to be received in chunks.
+   * @param tsdb The TSDB to use.
+   * @param query The HTTP query to execute.
+   * @return The stream to feed the chunks to, or {@code null} if the query
+   * has already been answered (e.g. because the method isn't POST).
+   */
+  Stream stream(final TSDB tsdb, final HttpQuery query) {
+    if (query.request().getMethod() != HttpMethod.POST) {
+      query.badRequest("Data points must be sent with a POST.");
+      return null;
+    }
+    requests.incrementAndGet();
+    return new Stream(tsdb, query);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("http.put.requests", requests);
+    collector.record("http.put.datapoints", datapoints);
+    collector.record("http.put.errors", failures);
+    collector.record("http.latency", latency, "type=put");
+  }
+
+  /**
+   * The body of a request, parsed and written as it's received.
+   * <p>
+   * A single instance is used as the callback of all the data points of
+   * the request, which is answered once they have all completed.
+   */
+  static final class Stream implements Callback<Object, Object> {
+
+    private final TSDB tsdb;
+    private final HttpQuery query;
+    private final long start_time = System.nanoTime();
+    /** Parses the lines that are in the telnet format.  */
+    private final PutDecoder decoder = new PutDecoder(null);
+    /** Partial line left at the end of the previous chunk, if any.  */
+    private ChannelBuffer partial;
+    /** Whether the request has already been answered with an error.  */
+    private volatile boolean aborted;
+
+    /**
+     * Number of data points whose write hasn't completed yet, plus one
+     * until {@link #finish} is called so we don't reply too early.
+     */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final ArrayList<String> errors = new ArrayList<String>();
+    /** Number of lines seen so far, to report errors.  */
+    private int lineno;
+
+    Stream(final TSDB tsdb, final HttpQuery query) {
+      this.tsdb = tsdb;
+      this.query = query;
+    }
+
+    /**
+     * Parses and writes all the complete lines of the given chunk.
+     * @param chunk The next bytes of the body.
+     */
+    void add(final ChannelBuffer chunk) {
+      if (aborted) {
+        return;
+      }
+      ChannelBuffer buf = chunk;
+      if (partial != null) {
+        partial.writeBytes(chunk);
+        buf = partial;
+      }
+      int start = buf.readerIndex();
+      final int end = buf.writerIndex();
+      int eol;
+      while ((eol = buf.indexOf(start, end, (byte) '\n')) >= 0) {
+        importLine(buf, start, eol);
+        start = eol + 1;
+      }
+      final int left = end - start;
+      if (left > MAX_LINE_LENGTH) {
+        abort("Line " + (lineno + 1) + " is longer than " + MAX_LINE_LENGTH
+              + " bytes.");
+        return;
+      }
+      if (left == 0) {
+        partial = null;
+      } else if (buf == partial) {
+        partial.readerIndex(start);
+        partial.discardReadBytes();
+      } else {
+        partial = ChannelBuffers.dynamicBuffer(Math.max(left * 2, 256));
+        partial.writeBytes(buf, start, left);
+      }
+    }
+
+    /** Called once the whole body has been received.  */
+    void finish() {
+      if (aborted) {
+        return;
+      }
+      if (partial != null) {  // Last line without a trailing new-line.
+        importLine(partial, partial.readerIndex(), partial.writerIndex());
+        partial = null;
+      }
+      completed();
+    }
+
+    /** Called back once the write of a data point has completed.  */
+    public Object call(final Object arg) {
+      if (arg instanceof Exception) {
+        failed("HBase error: " + ((Exception) arg).getMessage());
+      } else {
+        written.incrementAndGet();
+      }
+      completed();
+      return arg;
+    }
+
+    public String toString() {
+      return "HTTP bulk put from " + query.channel();
+    }
+
+    private void importLine(final ChannelBuffer buf, final int start, int end) {
+      lineno++;
+      if (end > start && buf.getByte(end - 1) == '\r') {
+        end--;
+      }
+      int pos = start;
+      while (pos < end && buf.getByte(pos) == ' ') {
+        pos++;
+      }
+      if (pos == end) {  // Ignore blank lines.
+        return;
+      }
+      datapoints.incrementAndGet();
+      try {
+        final Object line = buf.getByte(pos) == '{'
+          ? parseJson(buf.toString(pos, end - pos, CHARSET))
+          : decoder.parseLine(buf, pos, end);
+        pending.incrementAndGet();
+        try {
+          PutDataPointRpc.importDataPoint(tsdb, line)
+            .addBoth(PutThrottle.acquire(query.channel()))
+            .addBoth(this);
+        } catch (RuntimeException e) {
+          pending.decrementAndGet();
+          throw e;
+        }
+      } catch (IllegalArgumentException e) {
+        failed("line " + lineno + ": " + PutDataPointRpc.describeError(e));
+      } catch (NoSuchUniqueName e) {
+        failed("line " + lineno + ": " + PutDataPointRpc.describeError(e));
+      } catch (RuntimeException e) {
+        failed("line " + lineno + ": unexpected error: " + e);
+      }
+    }
+
+    private void failed(final String error) {
+      failures.incrementAndGet();
+      failed.incrementAndGet();
+      synchronized (errors) {
+        if (errors.size() < MAX_ERRORS_REPORTED) {
+          errors.add(error);
+        }
+      }
+    }
+
+    private void completed() {
+      if (pending.decrementAndGet() != 0 || aborted) {
+        return;
+      }
+      final StringBuilder buf = new StringBuilder(64);
+      buf.append("{\"success\":").append(written.get())
+        .append(",\"failed\":").append(failed.get())
+        .append(",\"errors\":[");
+      synchronized (errors) {
+        for (final String error : errors) {
+          buf.append('"');
+          HttpQuery.escapeJson(error, buf);
+          buf.append("\",");
+        }
+        if (!errors.isEmpty()) {
+          buf.setLength(buf.length() - 1);
+        }
+      }
+      buf.append("]}");
+      query.sendReply(failed.get() == 0
+                      ? HttpResponseStatus.OK : HttpResponseStatus.BAD_REQUEST,
+                      buf);
+      latency.add((int) ((System.nanoTime() - start_time) / 1000000));
+    }
+
+    private void abort(final String explain) {
+      aborted = true;
+      partial = null;
+      failures.incrementAndGet();
+      query.badRequest(explain);
+    }
+
+    /**
+     * Turns a data point in JSON into the words of a "put" line, so that
+     * it gets validated exactly like the other data points.
+     */
+    private static String[] parseJson(final String json) {
+      final JsonObject obj;
+      try {
+        obj = new JsonParser().parse(json).getAsJsonObject();
+      } catch (JsonParseException e) {
+        throw new IllegalArgumentException("invalid JSON: " + e.getMessage());
+      } catch (IllegalStateException e) {
+        throw new IllegalArgumentException("not a JSON object: " + json);
+      }
+      final JsonElement tags = obj.get("tags");
+      final int ntags = tags == null || !tags.isJsonObject()
+        ? 0 : tags.getAsJsonObject().entrySet().size();
+      final String[] words = new String[4 + ntags];
+      words[0] = "put";
+      words[1] = getString(obj, "metric");
+      words[2] = getString(obj, "timestamp");
+      words[3] = getString(obj, "value");
+      if (ntags > 0) {
+        int i = 4;
+        for (final Map.Entry<String, JsonElement> tag
+             : tags.getAsJsonObject().entrySet()) {
+          words[i++] = tag.getKey() + '=' + asString(tag.getValue(), tag.getKey());
+        }
+      }
+      return words;
+    }
+
+    private static String getString(final JsonObject obj, final String name) {
+      final JsonElement e = obj.get(name);
+      if (e == null || e.isJsonNull()) {
+        throw new IllegalArgumentException("missing " + name);
+      }
+      return asString(e, name);
+    }
+
+    private static String asString(final JsonElement e, final String name) {
+      if (!e.isJsonPrimitive()) {
+        throw new IllegalArgumentException("invalid " + name + ": " + e);
+      }
+      return e.getAsString();
+    }
+
+  }
+
+}
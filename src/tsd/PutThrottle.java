@@ -0,0 +1,248 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Limits the number of data points being written at any given time.
+ * <p>
+ * Every data point received is accounted for until its write completes.
+ * When a connection has too many writes in flight, or when the whole TSD
+ * does, we stop reading from the connection, so that TCP backpressure
+ * slows down the client instead of having the data points pile up in
+ * memory.  We resume reading once the number of writes in flight is back
+ * under half the limit.
+ * <p>
+ * The limits are given by the {@code tsd.rpc.max_inflight_puts} (for the
+ * whole TSD) and {@code tsd.rpc.max_inflight_puts_per_connection} system
+ * properties, set by {@code TSDMain}.  A limit of 0 disables it, which is
+ * the default.
+ */
+final class PutThrottle {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PutThrottle.class);
+
+  /** Maximum number of writes in flight for the whole TSD.  */
+  private static final int MAX_INFLIGHT =
+    Integer.getInteger("tsd.rpc.max_inflight_puts", 0);
+  /** Maximum number of writes in flight for a single connection.  */
+  private static final int MAX_INFLIGHT_PER_CONNECTION =
+    Integer.getInteger("tsd.rpc.max_inflight_puts_per_connection", 0);
+
+  /** Number of writes in flight for the whole TSD.  */
+  private static final AtomicInteger inflight = new AtomicInteger();
+
+  private static final AtomicLong pauses = new AtomicLong();
+  /** Total time spent with a connection paused, in milliseconds.  */
+  private static final AtomicLong paused_time = new AtomicLong();
+
+  /** Connections we've currently stopped reading from.  */
+  private static final Set<Connection> paused =
+    Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+  private static final ChannelLocal<Connection> connections =
+    new ChannelLocal<Connection>(true) {
+      @Override
+      protected Connection initialValue(final Channel chan) {
+        return new Connection(chan);
+      }
+    };
+
+  private PutThrottle() {
+    // Can't create instances of this utility class.
+  }
+
+  /**
+   * Accounts for a new data point about to be written.
+   * @param chan The channel on which the data point was received.
+   * @return The callback to add to the {@code Deferred} of the write, so
+   * that it's accounted for once it completes (successfully or not).  The
+   * same instance is returned for all the data points of a connection.
+   */
+  static Callback<Object, Object> acquire(final Channel chan) {
+    final Connection conn = connections.get(chan);
+    acquire(conn, 1);
+    return conn;
+  }
+
+  /**
+   * Accounts for a batch of data points about to be written.
+   * @param chan The channel on which the data points were received.
+   * @param n The number of data points in the batch.
+   * @return The callback to add to the {@code Deferred} that completes once
+   * all the writes of the batch have completed.
+   */
+  static Callback<Object, Object> acquire(final Channel chan, final int n) {
+    final Connection conn = connections.get(chan);
+    acquire(conn, n);
+    return new Release(conn, n);
+  }
+
+  private static void acquire(final Connection conn, final int n) {
+    final int conn_inflight = conn.inflight.addAndGet(n);
+    final int total_inflight = inflight.addAndGet(n);
+    if ((MAX_INFLIGHT_PER_CONNECTION > 0
+         && conn_inflight >= MAX_INFLIGHT_PER_CONNECTION)
+        || (MAX_INFLIGHT > 0 && total_inflight >= MAX_INFLIGHT)) {
+      conn.pause();
+      // All the writes may have completed before we were done pausing, in
+      // which case nothing would ever resume this connection.
+      if (belowLowWatermark(conn.inflight.get(), MAX_INFLIGHT_PER_CONNECTION)
+          && belowLowWatermark(inflight.get(), MAX_INFLIGHT)) {
+        conn.resume();
+      }
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.inflight", inflight.get());
+    collector.record("rpc.inflight.limit", MAX_INFLIGHT, "type=global");
+    collector.record("rpc.inflight.limit", MAX_INFLIGHT_PER_CONNECTION,
+                     "type=connection");
+    collector.record("rpc.throttle.paused", paused.size());
+    collector.record("rpc.throttle.pauses", pauses);
+    long time = paused_time.get();
+    final long now = System.currentTimeMillis();
+    for (final Connection conn : paused) {  // Account for ongoing pauses.
+      final long since = conn.paused_since;
+      if (since != 0) {
+        time += now - since;
+      }
+    }
+    collector.record("rpc.throttle.paused_ms", time);
+  }
+
+  /** Returns whether or not the given number of writes is low enough.  */
+  private static boolean belowLowWatermark(final int count, final int limit) {
+    return limit <= 0 || count <= limit / 2;
+  }
+
+  /** Resumes the connections that were only paused due to the global limit. */
+  private static void resumeAll() {
+    for (final Connection conn : paused) {
+      if (!conn.chan.isOpen()) {
+        paused.remove(conn);
+      } else if (belowLowWatermark(conn.inflight.get(),
+                                   MAX_INFLIGHT_PER_CONNECTION)) {
+        conn.resume();
+      }
+    }
+  }
+
+  /**
+   * State of a connection, also the callback of all its writes.
+   */
+  private static final class Connection implements Callback<Object, Object> {
+
+    private final Channel chan;
+    private final AtomicInteger inflight = new AtomicInteger();
+    /** When we stopped reading from this connection, or 0 if we didn't.  */
+    private volatile long paused_since;
+
+    Connection(final Channel chan) {
+      this.chan = chan;
+    }
+
+    public Object call(final Object arg) {
+      release(1);
+      return arg;
+    }
+
+    void release(final int n) {
+      final int conn_inflight = inflight.addAndGet(-n);
+      final int total_inflight = PutThrottle.inflight.addAndGet(-n);
+      if (paused_since != 0
+          && belowLowWatermark(conn_inflight, MAX_INFLIGHT_PER_CONNECTION)
+          && belowLowWatermark(total_inflight, MAX_INFLIGHT)) {
+        resume();
+      }
+      if (!paused.isEmpty()
+          && belowLowWatermark(total_inflight, MAX_INFLIGHT)) {
+        resumeAll();
+      }
+    }
+
+    synchronized void pause() {
+      if (paused_since != 0) {
+        return;
+      }
+      paused_since = System.currentTimeMillis();
+      paused.add(this);
+      pauses.incrementAndGet();
+      chan.setReadable(false);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Too many writes in flight, pausing " + chan);
+      }
+    }
+
+    synchronized void resume() {
+      final long since = paused_since;
+      if (since == 0) {
+        return;
+      }
+      paused_since = 0;
+      paused.remove(this);
+      paused_time.addAndGet(System.currentTimeMillis() - since);
+      if (chan.isOpen()) {
+        chan.setReadable(true);
+      }
+    }
+
+    public String toString() {
+      return "release in-flight write from " + chan;
+    }
+
+  }
+
+  /** Callback of a whole batch of writes.  */
+  private static final class Release implements Callback<Object, Object> {
+
+    private final Connection conn;
+    private final int n;
+
+    Release(final Connection conn, final int n) {
+      this.conn = conn;
+      this.n = n;
+    }
+
+    public Object call(final Object arg) {
+      conn.release(n);
+      return arg;
+    }
+
+    public String toString() {
+      return "release " + n + " in-flight writes from " + conn.chan;
+    }
+
+  }
+
+}
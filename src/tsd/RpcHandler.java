@@ -28,6 +28,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 import net.opentsdb.BuildData;
@@ -50,8 +51,12 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private final HashMap<String, TelnetRpc> telnet_commands;
   /** RPC executed when there's an unknown telnet-style command. */
   private final TelnetRpc unknown_cmd = new Unknown();
+  /** Handler for the puts decoded by the {@link PutDecoder}. */
+  private final PutDataPointRpc put_rpc = new PutDataPointRpc();
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
+  /** The "/put" endpoint, the only one that accepts chunked requests. */
+  private final PutHttpRpc http_put = new PutHttpRpc();
 
   /** The TSDB to use. */
   private final TSDB tsdb;
@@ -93,11 +98,13 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    telnet_commands.put("put", new PutDataPointRpc());
+    telnet_commands.put("put", put_rpc);
+    telnet_commands.put("putbatch", put_rpc);
 
     http_commands.put("", new HomePage());
     http_commands.put("aggregators", new ListAggregators());
     http_commands.put("logs", new LogsRpc());
+    http_commands.put("put", http_put);
     http_commands.put("q", new GraphHandler());
     http_commands.put("suggest", new Suggest());
   }
@@ -107,10 +114,20 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
                               final MessageEvent msgevent) {
     try {
       final Object message = msgevent.getMessage();
-      if (message instanceof String[]) {
+      if (message instanceof PutDecoder.DataPoint) {
+        telnet_rpcs_received.incrementAndGet();
+        put_rpc.execute(tsdb, msgevent.getChannel(),
+                        (PutDecoder.DataPoint) message);
+      } else if (message instanceof PutDecoder.Batch) {
+        telnet_rpcs_received.incrementAndGet();
+        put_rpc.execute(tsdb, msgevent.getChannel(),
+                        (PutDecoder.Batch) message);
+      } else if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
       } else if (message instanceof HttpRequest) {
-        handleHttpQuery(msgevent.getChannel(), (HttpRequest) message);
+        handleHttpQuery(ctx, msgevent.getChannel(), (HttpRequest) message);
+      } else if (message instanceof HttpChunk) {
+        handleHttpChunk(ctx, msgevent.getChannel(), (HttpChunk) message);
       } else {
         logError(msgevent.getChannel(), "Unexpected message type "
                  + message.getClass() + ": " + message);
@@ -143,13 +160,20 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
   /**
    * Finds the right handler for an HTTP query and executes it.
+   * @param ctx The context of this handler in the channel's pipeline.
    * @param chan The channel on which the query was received.
    * @param req The parsed HTTP request.
    */
-  private void handleHttpQuery(final Channel chan, final HttpRequest req) {
+  private void handleHttpQuery(final ChannelHandlerContext ctx,
+                               final Channel chan, final HttpRequest req) {
     http_rpcs_received.incrementAndGet();
     final HttpQuery query = new HttpQuery(req, chan);
     if (req.isChunked()) {
+      if (isBulkPut(query)) {
+        // The body will follow in chunks, remember where to send them.
+        ctx.setAttachment(http_put.stream(tsdb, query));
+        return;
+      }
       logError(query, "Received an unsupported chunked request: "
                + query.request());
       query.badRequest("Chunked request not supported.");
@@ -170,6 +194,37 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     }
   }
 
+  /** Returns whether or not the given query is for the "/put" endpoint.  */
+  private boolean isBulkPut(final HttpQuery query) {
+    try {
+      return "put".equals(getEndPoint(query));
+    } catch (BadRequestException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Hands a chunk of the body of an HTTP request to its "/put" stream.
+   * @param ctx The context of this handler in the channel's pipeline.
+   * @param chan The channel on which the chunk was received.
+   * @param chunk The chunk received.
+   */
+  private void handleHttpChunk(final ChannelHandlerContext ctx,
+                               final Channel chan, final HttpChunk chunk) {
+    final PutHttpRpc.Stream stream = (PutHttpRpc.Stream) ctx.getAttachment();
+    if (stream == null) {
+      // Either the request was rejected already, or this is a bug.
+      return;
+    }
+    if (chunk.isLast()) {
+      ctx.setAttachment(null);
+      stream.add(chunk.getContent());
+      stream.finish();
+    } else {
+      stream.add(chunk.getContent());
+    }
+  }
+
   /**
    * Returns the "first path segment" in the URI.
    *
@@ -224,6 +279,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    PutHttpRpc.collectStats(collector);
+    PutThrottle.collectStats(collector);
   }
 
   // ---------------------------- //
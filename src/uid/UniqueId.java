@@ -375,6 +375,16 @@ public final class UniqueId implements UniqueIdInterface {
     throw hbe;
   }
 
+  /**
+   * Returns the highest ID assigned so far.
+   * @return The highest ID assigned, or 0 if no ID was ever assigned.
+   * @throws HBaseException if there was a problem reading from HBase.
+   */
+  public long maxAssignedId() throws HBaseException {
+    final byte[] maxid = hbaseGet(MAXID_ROW, ID_FAMILY);
+    return maxid == null ? 0 : Bytes.getLong(maxid);
+  }
+
   /**
    * Attempts to find suggestions of names given a search term.
    * @param search The search term (possibly empty).
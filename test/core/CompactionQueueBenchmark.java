@@ -0,0 +1,148 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.hbase.async.Bytes;
+
+/**
+ * Compares the memory usage and speed of {@link PendingRows} with the
+ * sorted map of row keys that the compaction queue used to be.
+ * <p>
+ * Usage: {@code CompactionQueueBenchmark [num_rows] [points_per_row]}
+ * <p>
+ * Run with a fixed heap size (e.g. {@code -Xms2g -Xmx2g}) so that the
+ * memory measurements are more stable.
+ */
+final class CompactionQueueBenchmark {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final int BASE_TIME = 1356998400;
+  /** Number of tags of every row.  */
+  private static final int NTAGS = 3;
+
+  public static void main(final String[] args) {
+    final int nrows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final int points = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    System.out.println("Rows: " + nrows + ", data points per row: " + points);
+    for (int run = 0; run < 3; run++) {  // The first runs warm up the JIT.
+      System.out.println("Run #" + run);
+      benchSkipList(nrows, points);
+      benchPendingRows(nrows, points);
+    }
+  }
+
+  private static void benchSkipList(final int nrows, final int points) {
+    final long before = usedMemory();
+    final ConcurrentSkipListMap<byte[], Boolean> map =
+      new ConcurrentSkipListMap<byte[], Boolean>(new Cmp());
+    long start = System.nanoTime();
+    for (int p = 0; p < points; p++) {
+      for (int i = 0; i < nrows; i++) {
+        map.put(row(i), Boolean.TRUE);
+      }
+    }
+    final long add_time = System.nanoTime() - start;
+    final long memory = usedMemory() - before;
+    start = System.nanoTime();
+    int polled = 0;
+    for (final byte[] row : map.keySet()) {
+      if (map.remove(row) != null) {
+        polled++;
+      }
+    }
+    report("skip list", nrows, points, add_time, System.nanoTime() - start,
+           memory, -1);
+    if (polled != nrows) {
+      throw new AssertionError("polled " + polled + " rows instead of "
+                               + nrows);
+    }
+  }
+
+  private static void benchPendingRows(final int nrows, final int points) {
+    final long before = usedMemory();
+    final PendingRows rows = new PendingRows(METRIC_WIDTH);
+    long start = System.nanoTime();
+    for (int p = 0; p < points; p++) {
+      for (int i = 0; i < nrows; i++) {
+        rows.add(row(i));
+      }
+    }
+    final long add_time = System.nanoTime() - start;
+    final long memory = usedMemory() - before;
+    final long estimate = rows.memoryUsage();
+    start = System.nanoTime();
+    int polled = 0;
+    final ArrayList<byte[]> batch = new ArrayList<byte[]>(10000);
+    int n;
+    while ((n = rows.poll(BASE_TIME, 10000, batch)) > 0) {
+      polled += n;
+      batch.clear();
+    }
+    report("pending rows", nrows, points, add_time, System.nanoTime() - start,
+           memory, estimate);
+    if (polled != nrows) {
+      throw new AssertionError("polled " + polled + " rows instead of "
+                               + nrows);
+    }
+  }
+
+  private static void report(final String what, final int nrows,
+                             final int points, final long add_time,
+                             final long poll_time, final long memory,
+                             final long estimate) {
+    System.out.println("  " + what + ": "
+                       + (add_time / nrows / points) + "ns/add, "
+                       + (poll_time / nrows) + "ns/poll, "
+                       + (memory / nrows) + " bytes/row"
+                       + (estimate < 0 ? ""
+                          : " (estimated " + (estimate / nrows) + ")"));
+  }
+
+  /** Creates a new row key, the way a new data point would.  */
+  private static byte[] row(final int i) {
+    final byte[] row = new byte[METRIC_WIDTH + Const.TIMESTAMP_BYTES
+                                + NTAGS * 6];
+    row[2] = (byte) (i % 100);
+    Bytes.setInt(row, BASE_TIME, METRIC_WIDTH);
+    int pos = METRIC_WIDTH + Const.TIMESTAMP_BYTES;
+    for (int t = 0; t < NTAGS; t++) {
+      row[pos + 2] = (byte) (t + 1);
+      row[pos + 3] = (byte) (i >>> 16);
+      row[pos + 4] = (byte) (i >>> 8);
+      row[pos + 5] = (byte) (t == NTAGS - 1 ? i : 0);
+      pos += 6;
+    }
+    return row;
+  }
+
+  private static long usedMemory() {
+    final Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /** How the compaction queue used to sort its row keys.  */
+  private static final class Cmp implements Comparator<byte[]> {
+    public int compare(final byte[] a, final byte[] b) {
+      final int c = Bytes.memcmp(a, b, METRIC_WIDTH, Const.TIMESTAMP_BYTES);
+      return c != 0 ? c : Bytes.memcmp(a, b);
+    }
+  }
+
+}
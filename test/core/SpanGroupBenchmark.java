@@ -0,0 +1,138 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import org.powermock.reflect.Whitebox;
+
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Measures how the iteration over a {@link SpanGroup} scales with the
+ * number of Spans in the group.
+ * <p>
+ * Usage: {@code SpanGroupBenchmark [max_spans] [points_per_span]}
+ * <p>
+ * For each number of Spans, two layouts are measured: "aligned", where all
+ * the Spans have data points at the same times (e.g. hosts reporting at
+ * the same interval), and "interleaved", where no two Spans have a data
+ * point at the same time, which is the worst case for the merge.  For
+ * each, we measure the time to merge the data points (iterating over the
+ * timestamps only, as {@link SpanGroup#size} does) and the time to merge
+ * and sum them.
+ */
+final class SpanGroupBenchmark {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final int BASE_TIME = 1356998400;
+
+  public static void main(final String[] args) {
+    final int max_spans = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+    final int points = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    final TSDB tsdb = Whitebox.newInstance(TSDB.class);
+    Whitebox.setInternalState(tsdb, "metrics",
+                              new UniqueId(null, new byte[] { 't' },
+                                           "metrics", METRIC_WIDTH));
+    System.out.println("Data points per span: " + points);
+    for (int run = 0; run < 3; run++) {  // The first runs warm up the JIT.
+      System.out.println("Run #" + run);
+      for (int nspans = 4; nspans <= max_spans; nspans *= 4) {
+        bench(tsdb, nspans, points, false);
+        bench(tsdb, nspans, points, true);
+      }
+    }
+  }
+
+  private static void bench(final TSDB tsdb, final int nspans,
+                            final int points, final boolean interleaved) {
+    final ArrayList<Span> spans = new ArrayList<Span>(nspans);
+    for (int i = 0; i < nspans; i++) {
+      spans.add(span(tsdb, i, nspans, points, interleaved));
+    }
+    // Interleaved spans are spread over a longer time range.
+    final long end_time = BASE_TIME + (long) nspans * points + 1;
+    final SpanGroup group = new SpanGroup(tsdb, BASE_TIME, end_time, spans,
+                                          false, Aggregators.SUM, 0, null);
+
+    long start = System.nanoTime();
+    SeekableView it = group.iterator();
+    int npoints = 0;
+    while (it.hasNext()) {
+      it.next();
+      npoints++;
+    }
+    final long merge_time = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    it = group.iterator();
+    long sum = 0;
+    while (it.hasNext()) {
+      sum += it.next().longValue();
+    }
+    final long sum_time = System.nanoTime() - start;
+
+    System.out.println("  " + nspans + " spans, "
+                       + (interleaved ? "interleaved" : "aligned") + ": "
+                       + npoints + " points, "
+                       + (merge_time / npoints) + "ns/point to merge, "
+                       + (sum_time / npoints) + "ns/point to merge and sum"
+                       + " (sum=" + sum + ')');
+  }
+
+  /**
+   * Creates a Span with one data point every {@code nspans} seconds if the
+   * Spans are interleaved, every second otherwise.
+   */
+  private static Span span(final TSDB tsdb, final int i, final int nspans,
+                           final int points, final boolean interleaved) {
+    final int step = interleaved ? nspans : 1;
+    final int offset = interleaved ? i : 0;
+    final Span span = new Span(tsdb);
+    int first = 0;
+    while (first < points) {
+      final int timestamp = BASE_TIME + offset + first * step;
+      final int base_time = timestamp - timestamp % Const.MAX_TIMESPAN;
+      // Find how many data points go in this row.
+      int n = 1;
+      while (first + n < points
+             && offset + (first + n) * step < base_time - BASE_TIME
+                                                + Const.MAX_TIMESPAN) {
+        n++;
+      }
+      final byte[] key = new byte[METRIC_WIDTH + Const.TIMESTAMP_BYTES + 6];
+      key[2] = 1;
+      Bytes.setInt(key, base_time, METRIC_WIDTH);
+      key[9] = 1;
+      key[10] = (byte) (i >>> 16);
+      key[11] = (byte) (i >>> 8);
+      key[12] = (byte) i;
+      final byte[] qualifiers = new byte[n * 2];
+      // Compacted rows have an extra meta-data byte after the values.
+      final byte[] values = new byte[n * 8 + (n > 1 ? 1 : 0)];
+      for (int j = 0; j < n; j++) {
+        final int delta = BASE_TIME + offset + (first + j) * step - base_time;
+        Bytes.setShort(qualifiers, (short) (delta << Const.FLAG_BITS | 0x7),
+                       j * 2);
+        Bytes.setLong(values, 1, j * 8);
+      }
+      span.addRow(new KeyValue(key, TSDB.FAMILY, qualifiers, values));
+      first += n;
+    }
+    return span;
+  }
+
+}
@@ -18,12 +18,16 @@ import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
+import org.hbase.async.PleaseThrottleException;
 
 import net.opentsdb.uid.UniqueId;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -47,7 +51,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
 @PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
-                  TSDB.class, UniqueId.class })
+                  TSDB.class, UniqueId.class, PleaseThrottleException.class })
 final class TestCompactionQueue {
 
   private TSDB tsdb = mock(TSDB.class);
@@ -298,6 +302,30 @@ final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(KEY, new byte[][] { qual1, qual12, qual13, qual3, qual2 });
   }
 
+  @Test
+  public void compactNowReportsThrottling() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual1 = { 0x00, 0x07 };
+    kvs.add(makekv(qual1, Bytes.fromLong(4L)));
+    final byte[] qual2 = { 0x00, 0x17 };
+    kvs.add(makekv(qual2, Bytes.fromLong(5L)));
+    final PleaseThrottleException throttled =
+      mock(PleaseThrottleException.class);
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenReturn(Deferred.<Object>fromError(throttled));
+
+    final KeyValue[] stored = { null };
+    try {
+      compactionq.compactNow(kvs, stored).join();
+      fail("the throttled write should have been reported");
+    } catch (PleaseThrottleException e) {
+      assertSame(throttled, e);
+    }
+    // The caller deals with it: nothing deleted, the row isn't re-queued.
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+    assertEquals(0, compactionq.size());
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
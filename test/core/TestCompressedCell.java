@@ -0,0 +1,147 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestCompressedCell {
+
+  private static final byte[] KEY = { 0, 0, 1, 78, 36, -84, 42, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void regularIntegers() throws Exception {
+    final Row row = new Row();
+    for (int i = 0; i < 360; i++) {
+      row.addLong(i * 10, 1000 + i);
+    }
+    final KeyValue compressed = assertRoundTrip(row.toKeyValue());
+    // 1 bit for the time, 1 for the flags and 8 for the value.
+    assertTrue(compressed.value().length < 360 * 2);
+  }
+
+  @Test
+  public void regularFloats() throws Exception {
+    final Row row = new Row();
+    for (int i = 0; i < 360; i++) {
+      row.addFloat(i * 10, 0.5f + (i % 4));
+    }
+    assertRoundTrip(row.toKeyValue());
+  }
+
+  @Test
+  public void irregularMixedValues() throws Exception {
+    final Random random = new Random(42);
+    final Row row = new Row();
+    int delta = 0;
+    long counter = 0;
+    float gauge = 100;
+    for (int i = 0; i < 1000; i++) {
+      delta += 1 + random.nextInt(i % 50 == 0 ? 400 : 5);
+      if (delta >= Const.MAX_TIMESPAN) {
+        break;
+      }
+      if (i % 3 == 0) {
+        gauge += random.nextFloat() - 0.5f;
+        row.addFloat(delta, gauge);
+      } else {
+        counter += random.nextInt(i % 2 == 0 ? 10 : 100000);
+        row.addLong(delta, i % 7 == 0 ? -counter : counter);
+      }
+    }
+    assertRoundTrip(row.toKeyValue());
+  }
+
+  @Test
+  public void singleValueIsLeftAlone() throws Exception {
+    final Row row = new Row();
+    row.addLong(0, 42);
+    final KeyValue kv = row.toKeyValue();
+    assertSame(kv, CompressedCell.compress(kv));
+  }
+
+  @Test
+  public void legacyCellsArentCompressed() throws Exception {
+    final Row row = new Row();
+    row.addLong(0, 1);
+    row.addLong(1, 2);
+    assertFalse(CompressedCell.isCompressed(row.toKeyValue()));
+  }
+
+  @Test(expected=IllegalDataException.class)
+  public void truncatedCell() throws Exception {
+    final Row row = new Row();
+    for (int i = 0; i < 100; i++) {
+      row.addFloat(i, i * 1.1f);
+    }
+    final KeyValue compressed = CompressedCell.compress(row.toKeyValue());
+    final byte[] value = compressed.value();
+    final byte[] truncated = new byte[value.length / 2];
+    System.arraycopy(value, 0, truncated, 0, truncated.length - 1);
+    truncated[truncated.length - 1] = CompressedCell.FORMAT;
+    CompressedCell.decompress(new KeyValue(KEY, FAMILY, compressed.qualifier(),
+                                           truncated));
+  }
+
+  private static KeyValue assertRoundTrip(final KeyValue kv) {
+    final KeyValue compressed = CompressedCell.compress(kv);
+    assertTrue(CompressedCell.isCompressed(compressed));
+    assertTrue(compressed.qualifier().length + compressed.value().length
+               < kv.qualifier().length + kv.value().length);
+    final KeyValue decompressed = CompressedCell.decompress(compressed);
+    assertArrayEquals(kv.qualifier(), decompressed.qualifier());
+    assertArrayEquals(kv.value(), decompressed.value());
+    return compressed;
+  }
+
+  /** Builds a compacted cell in the uncompressed format.  */
+  private static final class Row {
+    private final ByteArrayOutputStream qualifiers =
+      new ByteArrayOutputStream();
+    private final ByteArrayOutputStream values = new ByteArrayOutputStream();
+
+    void addLong(final int delta, final long value) {
+      final byte[] v = TSDB.encodeInteger(value);
+      add(delta, v.length - 1, v);
+    }
+
+    void addFloat(final int delta, final float value) {
+      add(delta, Const.FLAG_FLOAT | 0x3,
+          Bytes.fromInt(Float.floatToRawIntBits(value)));
+    }
+
+    private void add(final int delta, final int flags, final byte[] value) {
+      final byte[] qual = Bytes.fromShort((short) (delta << Const.FLAG_BITS
+                                                   | flags));
+      qualifiers.write(qual, 0, 2);
+      values.write(value, 0, value.length);
+    }
+
+    KeyValue toKeyValue() {
+      values.write(0);  // Meta-data byte.
+      return new KeyValue(KEY, FAMILY, qualifiers.toByteArray(),
+                          values.toByteArray());
+    }
+  }
+
+}
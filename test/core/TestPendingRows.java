@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.hbase.async.Bytes;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TestPendingRows {
+
+  private static final short METRIC_WIDTH = 3;
+
+  private final PendingRows rows = new PendingRows(METRIC_WIDTH);
+
+  @Test
+  public void addIsIdempotent() {
+    assertTrue(rows.add(row(1, 1356998400, 1)));
+    assertFalse(rows.add(row(1, 1356998400, 1)));
+    assertTrue(rows.add(row(1, 1356998400, 2)));
+    assertTrue(rows.add(row(1, 1357002000, 1)));
+    assertEquals(3, rows.size());
+  }
+
+  @Test
+  public void pollOldestFirst() {
+    rows.add(row(1, 1357002000, 1));
+    rows.add(row(2, 1356998400, 1));
+    rows.add(row(3, 1357005600, 1));
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>();
+    assertEquals(2, rows.poll(1357002000, 10, polled));
+    assertArrayEquals(row(2, 1356998400, 1), polled.get(0));
+    assertArrayEquals(row(1, 1357002000, 1), polled.get(1));
+    assertEquals(1, rows.size());
+    assertEquals(1357005600, rows.oldestBaseTime());
+  }
+
+  @Test
+  public void pollRespectsMax() {
+    for (int i = 0; i < 100; i++) {
+      rows.add(row(1, 1356998400, i));
+    }
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>();
+    assertEquals(30, rows.poll(1356998400, 30, polled));
+    assertEquals(70, rows.size());
+    assertEquals(70, rows.poll(1356998400, 1000, polled));
+    assertEquals(0, rows.size());
+    assertEquals(-1, rows.oldestBaseTime());
+    final HashSet<String> distinct = new HashSet<String>();
+    for (final byte[] row : polled) {
+      distinct.add(Arrays.toString(row));
+    }
+    assertEquals(100, distinct.size());
+  }
+
+  @Test
+  public void rowCanBeAddedAgainOncePolled() {
+    rows.add(row(1, 1356998400, 1));
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>();
+    rows.poll(1356998400, 10, polled);
+    assertTrue(rows.add(row(1, 1356998400, 1)));
+    assertEquals(1, rows.size());
+  }
+
+  @Test
+  public void manyRows() {
+    // Enough rows to grow the arrays of every stripe several times.
+    for (int i = 0; i < 50000; i++) {
+      assertTrue(rows.add(row(i % 7, 1356998400, i)));
+    }
+    for (int i = 0; i < 50000; i += 3) {
+      assertFalse(rows.add(row(i % 7, 1356998400, i)));
+    }
+    assertEquals(50000, rows.size());
+    assertTrue(rows.memoryUsage() > 0);
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>();
+    assertEquals(25000, rows.poll(1356998400, 25000, polled));
+    // Rows that were polled can be added again, the others are still there.
+    for (final byte[] row : polled) {
+      assertTrue(rows.add(row));
+    }
+    for (int i = 0; i < 50000; i++) {
+      assertFalse(rows.add(row(i % 7, 1356998400, i)));
+    }
+    assertEquals(50000, rows.size());
+    assertEquals(50000, rows.clear());
+    assertEquals(0, rows.size());
+  }
+
+  @Test
+  public void writeAndReadBack() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      rows.add(row(i % 3, 1356998400 + 3600 * (i % 4), i));
+    }
+    final ArrayList<byte[]> polled = new ArrayList<byte[]>();
+    rows.poll(1356998400, 100, polled);  // Shouldn't be written.
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    assertEquals(900, rows.writeTo(new DataOutputStream(buf)));
+
+    final PendingRows restored = new PendingRows(METRIC_WIDTH);
+    assertEquals(900, restored.readFrom(new DataInputStream(
+      new ByteArrayInputStream(buf.toByteArray()))));
+    assertEquals(900, restored.size());
+    for (int i = 0; i < 1000; i++) {
+      final byte[] row = row(i % 3, 1356998400 + 3600 * (i % 4), i);
+      assertEquals(rows.add(row), restored.add(row));
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void rowKeyTooShort() {
+    rows.add(new byte[] { 0, 0, 1, 2 });
+  }
+
+  /** Creates a row key with a single tag.  */
+  private static byte[] row(final int metric, final int base_time,
+                            final int tagv) {
+    final byte[] row = new byte[METRIC_WIDTH + Const.TIMESTAMP_BYTES + 6];
+    row[2] = (byte) metric;
+    Bytes.setInt(row, base_time, METRIC_WIDTH);
+    row[9] = 1;
+    row[10] = (byte) (tagv >>> 16);
+    row[11] = (byte) (tagv >>> 8);
+    row[12] = (byte) tagv;
+    return row;
+  }
+
+}
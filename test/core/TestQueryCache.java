@@ -0,0 +1,155 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class TestQueryCache {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final int BASE_TIME = 1356998400;
+  private static final byte[] METRIC = { 0, 0, 1 };
+
+  private final QueryCache cache = new QueryCache(1024 * 1024);
+
+  @Test
+  public void onlyRowsBeforeEndAreCached() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    for (int i = 0; i < 5; i++) {
+      rows.add(row(BASE_TIME + 3600 * i));
+    }
+    cache.put("k", BASE_TIME, BASE_TIME + 3600 * 3, rows, METRIC_WIDTH,
+              now());
+    final QueryCache.Entry entry = cache.get("k", METRIC, BASE_TIME);
+    assertNotNull(entry);
+    assertEquals(BASE_TIME + 3600 * 3, entry.end);
+    assertEquals(3, entry.rowsFrom(BASE_TIME, METRIC_WIDTH).size());
+    final ArrayList<KeyValue> from = entry.rowsFrom(BASE_TIME + 3600,
+                                                    METRIC_WIDTH);
+    assertEquals(2, from.size());
+    assertSame(rows.get(1), from.get(0));
+  }
+
+  @Test
+  public void queryStartingBeforeCachedRows() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    rows.add(row(BASE_TIME));
+    cache.put("k", BASE_TIME, BASE_TIME + 3600, rows, METRIC_WIDTH, now());
+    assertNull(cache.get("k", METRIC, BASE_TIME - 3600));
+    assertNull(cache.get("other", METRIC, BASE_TIME));
+    assertNotNull(cache.get("k", METRIC, BASE_TIME + 7200));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedWhenFull() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    for (int i = 0; i < 5; i++) {
+      rows.add(row(BASE_TIME + 3600 * i));
+    }
+    final long entry_bytes = 5 * TsdbQueryLoader.rowBytes(rows.get(0));
+    // Room for 3 entries, not 4.
+    final QueryCache small = new QueryCache(entry_bytes * 7 / 2);
+    final long end = BASE_TIME + 3600 * 5;
+    small.put("a", BASE_TIME, end, rows, METRIC_WIDTH, now());
+    small.put("b", BASE_TIME, end, rows, METRIC_WIDTH, now());
+    small.put("c", BASE_TIME, end, rows, METRIC_WIDTH, now());
+    assertNotNull(small.get("a", METRIC, BASE_TIME));
+    small.put("d", BASE_TIME, end, rows, METRIC_WIDTH, now());
+    assertNull(small.get("b", METRIC, BASE_TIME));
+    assertNotNull(small.get("a", METRIC, BASE_TIME));
+    assertNotNull(small.get("c", METRIC, BASE_TIME));
+    assertNotNull(small.get("d", METRIC, BASE_TIME));
+  }
+
+  @Test
+  public void expiresAfterTtl() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    rows.add(row(BASE_TIME));
+    cache.put("k", BASE_TIME, BASE_TIME + 3600, rows, METRIC_WIDTH,
+              now() - QueryCache.TTL * 1000 - 1);
+    assertNull(cache.get("k", METRIC, BASE_TIME));
+  }
+
+  @Test
+  public void lateWriteInvalidatesMetric() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    rows.add(row(BASE_TIME));
+    final byte[] other = { 0, 0, 2 };
+    cache.put("k", BASE_TIME, BASE_TIME + 3600, rows, METRIC_WIDTH, now());
+    cache.put("o", BASE_TIME, BASE_TIME + 3600, rows, METRIC_WIDTH, now());
+    final KeyValue late = row(BASE_TIME + 3600);
+    cache.written(late.key(), METRIC_WIDTH, Deferred.fromResult(null));
+    assertNull(cache.get("k", METRIC, BASE_TIME));
+    assertNotNull(cache.get("o", other, BASE_TIME));
+  }
+
+  @Test
+  public void recentWriteDoesNotInvalidate() {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    rows.add(row(BASE_TIME));
+    cache.put("k", BASE_TIME, BASE_TIME + 3600, rows, METRIC_WIDTH, now());
+    final int now = (int) (now() / 1000);
+    final KeyValue recent = row(now - now % Const.MAX_TIMESPAN);
+    cache.written(recent.key(), METRIC_WIDTH, Deferred.fromResult(null));
+    assertNotNull(cache.get("k", METRIC, BASE_TIME));
+  }
+
+  @Test
+  public void keyIgnoresOrderOfGroupByValues() {
+    final byte[] host = { 0, 0, 1 };
+    final TsdbQueryDto q1 = query();
+    q1.group_bys = new ArrayList<byte[]>();
+    q1.group_bys.add(host);
+    q1.group_by_values = new ByteMap<byte[][]>();
+    q1.group_by_values.put(host, new byte[][] { { 0, 0, 1 }, { 0, 0, 2 } });
+    final TsdbQueryDto q2 = query();
+    q2.group_bys = q1.group_bys;
+    q2.group_by_values = new ByteMap<byte[][]>();
+    q2.group_by_values.put(host, new byte[][] { { 0, 0, 2 }, { 0, 0, 1 } });
+    assertEquals(QueryCache.key(q1), QueryCache.key(q2));
+    assertFalse(QueryCache.key(q1).equals(QueryCache.key(query())));
+  }
+
+  private static TsdbQueryDto query() {
+    final TsdbQueryDto query = new TsdbQueryDto();
+    query.metric = METRIC;
+    query.start_time = (long) BASE_TIME;
+    query.tags = new ArrayList<byte[]>();
+    return query;
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static KeyValue row(final int base_time) {
+    final byte[] key = new byte[METRIC_WIDTH + Const.TIMESTAMP_BYTES];
+    key[2] = 1;
+    Bytes.setInt(key, base_time, METRIC_WIDTH);
+    return new KeyValue(key, TSDB.FAMILY, new byte[2], new byte[8]);
+  }
+
+}
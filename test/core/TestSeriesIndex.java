@@ -0,0 +1,159 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class TestSeriesIndex {
+
+  private static final int BASE_TIME = 1356998400;
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] HOST = { 0, 0, 1 };
+  private static final byte[] DC = { 0, 0, 2 };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private SeriesIndex index;
+
+  @Before
+  public void before() {
+    for (final String field : new String[] { "metrics", "tag_names",
+                                             "tag_values" }) {
+      final UniqueId uid = mock(UniqueId.class);
+      when(uid.width()).thenReturn((short) 3);
+      Whitebox.setInternalState(tsdb, field, uid);
+    }
+    index = new SeriesIndex(tsdb, 100);
+    // Pretend the bootstrap is done.
+    Whitebox.setInternalState(index, "complete_since", 0L);
+    for (int host = 1; host <= 10; host++) {
+      index.add(row(METRIC, host, host % 2 + 1, BASE_TIME), BASE_TIME);
+      index.add(row(METRIC, host, host % 2 + 1, BASE_TIME), BASE_TIME);
+    }
+    index.add(row(new byte[] { 0, 0, 2 }, 1, 1, BASE_TIME), BASE_TIME);
+  }
+
+  @Test
+  public void seriesAreDeduplicated() {
+    assertEquals(11, index.size());
+    assertTrue(index.memoryUsage() > 0);
+  }
+
+  @Test
+  public void exactTags() {
+    final TsdbQueryDto query = query();
+    query.tags.add(tag(HOST, 3));
+    final List<byte[]> series = index.findSeries(query);
+    assertEquals(1, series.size());
+    assertArrayEquals(row(METRIC, 3, 2, 0), series.get(0));
+  }
+
+  @Test
+  public void groupByAnyValue() {
+    final TsdbQueryDto query = query();
+    query.tags.add(tag(DC, 1));
+    query.group_bys = new ArrayList<byte[]>();
+    query.group_bys.add(HOST);
+    assertEquals(5, index.findSeries(query).size());
+  }
+
+  @Test
+  public void groupBySomeValues() {
+    final TsdbQueryDto query = query();
+    query.group_bys = new ArrayList<byte[]>();
+    query.group_bys.add(HOST);
+    query.group_by_values = new ByteMap<byte[][]>();
+    query.group_by_values.put(HOST, new byte[][] { { 0, 0, 2 },
+                                                   { 0, 0, 7 },
+                                                   { 0, 0, 42 } });
+    assertEquals(2, index.findSeries(query).size());
+  }
+
+  @Test
+  public void noMatch() {
+    final TsdbQueryDto query = query();
+    query.tags.add(tag(HOST, 42));
+    assertEquals(0, index.findSeries(query).size());
+  }
+
+  @Test
+  public void unknownMetric() {
+    final TsdbQueryDto query = query();
+    query.metric = new byte[] { 0, 0, 3 };
+    assertNull(index.findSeries(query));
+  }
+
+  @Test
+  public void seriesNotSeenInTimeRange() {
+    index.add(row(METRIC, 1, 2, BASE_TIME + 36000), BASE_TIME + 36000);
+    final TsdbQueryDto query = query();
+    query.start_time = (long) BASE_TIME + 36000;
+    assertEquals(1, index.findSeries(query).size());
+  }
+
+  @Test
+  public void queryBeforeBootstrap() {
+    Whitebox.setInternalState(index, "complete_since", (long) BASE_TIME);
+    assertNull(index.findSeries(query()));
+  }
+
+  private static TsdbQueryDto query() {
+    final TsdbQueryDto query = new TsdbQueryDto();
+    query.metric = METRIC;
+    query.start_time = (long) BASE_TIME;
+    query.tags = new ArrayList<byte[]>();
+    return query;
+  }
+
+  private static byte[] tag(final byte[] name, final int value) {
+    return new byte[] { name[0], name[1], name[2], 0, 0, (byte) value };
+  }
+
+  /** Creates a row key with a `host' and a `dc' tag.  */
+  private static byte[] row(final byte[] metric, final int host,
+                            final int dc, final int base_time) {
+    final byte[] row = new byte[3 + Const.TIMESTAMP_BYTES + 12];
+    System.arraycopy(metric, 0, row, 0, 3);
+    Bytes.setInt(row, base_time, 3);
+    System.arraycopy(tag(HOST, host), 0, row, 7, 6);
+    System.arraycopy(tag(DC, dc), 0, row, 13, 6);
+    return row;
+  }
+
+}
@@ -0,0 +1,213 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class TestSpanGroup {
+
+  private static final int BASE_TIME = 1356998400;
+
+  private final TSDB tsdb = mock(TSDB.class);
+
+  @Before
+  public void before() {
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+  }
+
+  @Test
+  public void sameTimestamps() {
+    final SpanGroup group = group(false,
+      span(1, new int[] { 0, 10, 20 }, new long[] { 1, 2, 3 }),
+      span(2, new int[] { 0, 10, 20 }, new long[] { 10, 20, 30 }),
+      span(3, new int[] { 0, 10, 20 }, new long[] { 100, 200, 300 }));
+    assertPoints(group, new int[] { 0, 10, 20 },
+                 new double[] { 111, 222, 333 });
+    assertEquals(3, group.size());
+    assertEquals(9, group.aggregatedSize());
+  }
+
+  @Test
+  public void interpolation() {
+    final SpanGroup group = group(false,
+      span(1, new int[] { 0, 20 }, new long[] { 0, 20 }),
+      span(2, new int[] { 10, 30 }, new long[] { 100, 300 }));
+    // At 10 the 1st span is interpolated to 10, at 20 the 2nd one to 200.
+    // Past its last point, a span is no longer aggregated.
+    assertPoints(group, new int[] { 0, 10, 20, 30 },
+                 new double[] { 0, 110, 220, 300 });
+  }
+
+  @Test
+  public void spansOfDifferentLengths() {
+    final SpanGroup group = group(false,
+      span(1, new int[] { 0, 10, 20, 30, 40 }, new long[] { 1, 1, 1, 1, 1 }),
+      span(2, new int[] { 10 }, new long[] { 5 }),
+      span(3, new int[] { 0, 20, 40 }, new long[] { 2, 2, 2 }));
+    assertPoints(group, new int[] { 0, 10, 20, 30, 40 },
+                 new double[] { 3, 8, 3, 3, 3 });
+  }
+
+  @Test
+  public void floatsAndLongs() {
+    final Span floats = new Span(tsdb);
+    floats.addRow(row(2, new int[] { 0, 10 }, new long[] { 3, 4 }, true));
+    final SpanGroup group = group(false,
+      span(1, new int[] { 0, 10 }, new long[] { 1, 2 }), floats);
+    final SeekableView it = group.iterator();
+    assertTrue(it.hasNext());
+    final DataPoint dp = it.next();
+    assertFalse(dp.isInteger());
+    assertEquals(4.0, dp.doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void rate() {
+    final SpanGroup group = group(true,
+      span(1, new int[] { 0, 10, 20 }, new long[] { 0, 10, 30 }),
+      span(2, new int[] { 0, 10, 20 }, new long[] { 0, 100, 100 }));
+    assertPoints(group, new int[] { 10, 20 }, new double[] { 11, 2 });
+  }
+
+  @Test
+  public void endTime() {
+    final SpanGroup group = new SpanGroup(tsdb, BASE_TIME, BASE_TIME + 15,
+      spans(span(1, new int[] { 0, 10, 20 }, new long[] { 1, 2, 3 }),
+            span(2, new int[] { 5, 25 }, new long[] { 10, 10 })),
+      false, Aggregators.SUM, 0, null);
+    final SeekableView it = group.iterator();
+    assertEquals(BASE_TIME, it.next().timestamp());
+    assertEquals(BASE_TIME + 5, it.next().timestamp());
+    assertEquals(BASE_TIME + 10, it.next().timestamp());
+    assertFalse(it.hasNext());
+    try {
+      it.next();
+      fail("Expected a NoSuchElementException");
+    } catch (NoSuchElementException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void manySpans() {
+    // Every span has its points at different times, so every data point
+    // of every span is returned, in order.
+    final int nspans = 200;
+    final Span[] spans = new Span[nspans];
+    for (int i = 0; i < nspans; i++) {
+      spans[i] = span(i, new int[] { i, nspans + i, 2 * nspans + i },
+                      new long[] { 1, 1, 1 });
+    }
+    final SpanGroup group = group(false, spans);
+    final SeekableView it = group.iterator();
+    int n = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(BASE_TIME + n, dp.timestamp());
+      // Spans that haven't started yet or are over don't count.
+      final int expected = n < nspans ? n + 1
+        : n >= 2 * nspans ? 3 * nspans - n : nspans;
+      assertEquals("at #" + n, expected, dp.longValue());
+      n++;
+    }
+    assertEquals(3 * nspans, n);
+  }
+
+  private SpanGroup group(final boolean rate, final Span... spans) {
+    return new SpanGroup(tsdb, BASE_TIME, BASE_TIME + 3600, spans(spans),
+                         rate, Aggregators.SUM, 0, null);
+  }
+
+  private static ArrayList<Span> spans(final Span... spans) {
+    final ArrayList<Span> list = new ArrayList<Span>(spans.length);
+    for (final Span span : spans) {
+      list.add(span);
+    }
+    return list;
+  }
+
+  private Span span(final int tagv, final int[] deltas, final long[] values) {
+    final Span span = new Span(tsdb);
+    span.addRow(row(tagv, deltas, values, false));
+    return span;
+  }
+
+  /** Creates a compacted row with a single tag.  */
+  private static KeyValue row(final int tagv, final int[] deltas,
+                              final long[] values, final boolean floats) {
+    final byte[] key = new byte[3 + Const.TIMESTAMP_BYTES + 6];
+    key[2] = 1;
+    Bytes.setInt(key, BASE_TIME, 3);
+    key[9] = 1;
+    key[11] = (byte) (tagv >>> 8);
+    key[12] = (byte) tagv;
+    final byte[] qualifiers = new byte[deltas.length * 2];
+    // Compacted rows have an extra meta-data byte after the values.
+    final byte[] value = new byte[deltas.length * 8
+                                  + (deltas.length > 1 ? 1 : 0)];
+    for (int i = 0; i < deltas.length; i++) {
+      final int flags = floats ? Const.FLAG_FLOAT | 0x7 : 0x7;
+      Bytes.setShort(qualifiers, (short) (deltas[i] << Const.FLAG_BITS
+                                          | flags), i * 2);
+      Bytes.setLong(value, floats
+                    ? Double.doubleToRawLongBits(values[i]) : values[i],
+                    i * 8);
+    }
+    return new KeyValue(key, TSDB.FAMILY, qualifiers, value);
+  }
+
+  private static void assertPoints(final SpanGroup group,
+                                   final int[] deltas,
+                                   final double[] expected) {
+    final SeekableView it = group.iterator();
+    for (int i = 0; i < deltas.length; i++) {
+      assertTrue("missing point #" + i, it.hasNext());
+      final DataPoint dp = it.next();
+      assertEquals(BASE_TIME + deltas[i], dp.timestamp());
+      assertEquals("at #" + i, expected[i],
+                   dp.isInteger() ? dp.longValue() : dp.doubleValue(),
+                   0.0001);
+    }
+    assertFalse(it.hasNext());
+  }
+
+}
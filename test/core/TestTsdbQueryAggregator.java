@@ -0,0 +1,119 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import static org.mockito.Mockito.mock;
+
+public final class TestTsdbQueryAggregator {
+
+  private static final long BASE_TIME = 1356998400L;
+
+  @Test
+  public void coalescingKeyOfIdenticalQueries() {
+    assertEquals(TsdbQueryAggregator.coalescingKey(query()),
+                 TsdbQueryAggregator.coalescingKey(query()));
+  }
+
+  @Test
+  public void coalescingKeyOfDifferentQueries() {
+    final String key = TsdbQueryAggregator.coalescingKey(query());
+    TsdbQueryDto query = query();
+    query.end_time = BASE_TIME + 7200;
+    assertFalse(key.equals(TsdbQueryAggregator.coalescingKey(query)));
+    query = query();
+    query.aggregator = Aggregators.AVG;
+    assertFalse(key.equals(TsdbQueryAggregator.coalescingKey(query)));
+    query = query();
+    query.rate = true;
+    assertFalse(key.equals(TsdbQueryAggregator.coalescingKey(query)));
+    query = query();
+    query.downsampler = Aggregators.AVG;
+    query.sample_interval = 60;
+    assertFalse(key.equals(TsdbQueryAggregator.coalescingKey(query)));
+    query = query();
+    query.tags.add(new byte[] { 0, 0, 1, 0, 0, 2 });
+    assertFalse(key.equals(TsdbQueryAggregator.coalescingKey(query)));
+  }
+
+  @Test
+  public void everyCallerGetsItsOwnResults() throws Exception {
+    final TsdbQueryAggregator.InFlight query =
+      new TsdbQueryAggregator.InFlight();
+    final Deferred<DataPoints[]> first = query.join();
+    final Deferred<DataPoints[]> second = query.join();
+    final DataPoints[] results = { mock(DataPoints.class) };
+    query.complete(results);
+    final DataPoints[] r1 = first.joinUninterruptibly();
+    final DataPoints[] r2 = second.joinUninterruptibly();
+    assertNotSame(r1, r2);
+    assertArrayEquals(results, r1);
+    assertArrayEquals(results, r2);
+    assertSame(results[0], r1[0]);
+  }
+
+  @Test
+  public void cantJoinACompletedQuery() {
+    final TsdbQueryAggregator.InFlight query =
+      new TsdbQueryAggregator.InFlight();
+    query.join();
+    query.complete(new DataPoints[0]);
+    assertNull(query.join());
+  }
+
+  @Test
+  public void errorsArePropagatedToEveryCaller() throws Exception {
+    final TsdbQueryAggregator.InFlight query =
+      new TsdbQueryAggregator.InFlight();
+    final Deferred<DataPoints[]> first = query.join();
+    final Deferred<DataPoints[]> second = query.join();
+    final RuntimeException e = new RuntimeException("boom");
+    query.complete(e);
+    assertFails(e, first);
+    assertFails(e, second);
+  }
+
+  private static void assertFails(final RuntimeException expected,
+                                  final Deferred<DataPoints[]> d)
+    throws Exception {
+    try {
+      d.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(expected, e);
+    }
+  }
+
+  private static TsdbQueryDto query() {
+    final TsdbQueryDto query = new TsdbQueryDto();
+    query.metric = new byte[] { 0, 0, 1 };
+    query.start_time = BASE_TIME;
+    query.end_time = BASE_TIME + 3600;
+    query.tags = new ArrayList<byte[]>();
+    query.aggregator = Aggregators.SUM;
+    return query;
+  }
+
+}
@@ -0,0 +1,115 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class TestTsdbQueryLoader {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final int BASE_TIME = 1356998400;
+
+  @Test
+  public void shortQueriesAreNotSliced() {
+    assertNull(TsdbQueryLoader.sliceBoundaries(BASE_TIME, BASE_TIME + 86400));
+    assertNull(TsdbQueryLoader.sliceBoundaries(BASE_TIME,
+                                               BASE_TIME + 13 * 86400));
+  }
+
+  @Test
+  public void slicesAreAlignedOnRows() {
+    final long start = BASE_TIME + 1234;
+    final long end = BASE_TIME + 29 * 86400 + 42;
+    final long[] boundaries = TsdbQueryLoader.sliceBoundaries(start, end);
+    assertEquals(5, boundaries.length);  // 4 slices.
+    assertEquals(start, boundaries[0]);
+    assertEquals(end, boundaries[4]);
+    for (int i = 1; i < 4; i++) {
+      assertEquals(0, boundaries[i] % Const.MAX_TIMESPAN);
+      assertTrue(boundaries[i] > boundaries[i - 1]);
+    }
+    assertTrue(boundaries[3] < end);
+  }
+
+  @Test
+  public void lastSliceOfAnOpenQueryHasNoEnd() {
+    final long now = System.currentTimeMillis() / 1000;
+    final long[] boundaries =
+      TsdbQueryLoader.sliceBoundaries(now - 30 * 86400, -1);
+    assertEquals(-1, boundaries[boundaries.length - 1]);
+    assertTrue(boundaries[boundaries.length - 2] < now);
+  }
+
+  @Test
+  public void rowsPerSeries() {
+    assertEquals(1, TsdbQueryLoader.rowsPerSeries(BASE_TIME, BASE_TIME + 1));
+    assertEquals(1, TsdbQueryLoader.rowsPerSeries(BASE_TIME,
+                                                  BASE_TIME + 3600));
+    assertEquals(2, TsdbQueryLoader.rowsPerSeries(BASE_TIME,
+                                                  BASE_TIME + 3601));
+    assertEquals(24, TsdbQueryLoader.rowsPerSeries(BASE_TIME,
+                                                   BASE_TIME + 86400));
+    assertEquals(0, TsdbQueryLoader.rowsPerSeries(BASE_TIME, BASE_TIME));
+  }
+
+  @Test
+  public void rowKeyAt() {
+    final byte[] series = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 2, 0, 0, 3 };
+    final byte[] key = TsdbQueryLoader.rowKeyAt(series, BASE_TIME + 3600,
+                                                METRIC_WIDTH);
+    assertEquals(BASE_TIME + 3600, Bytes.getInt(key, METRIC_WIDTH));
+    assertArrayEquals(Arrays.copyOfRange(series, 0, 3),
+                      Arrays.copyOfRange(key, 0, 3));
+    assertArrayEquals(Arrays.copyOfRange(series, 7, 13),
+                      Arrays.copyOfRange(key, 7, 13));
+    // The series isn't modified.
+    assertEquals(0, Bytes.getInt(series, METRIC_WIDTH));
+  }
+
+  @Test
+  public void queryOverBudgetIsAborted() {
+    final KeyValue row = new KeyValue(new byte[13], TSDB.FAMILY, new byte[2],
+                                      new byte[1000]);
+    final long before = TsdbQueryLoader.total_loaded_bytes.get();
+    final TsdbQueryLoader loader =
+      new TsdbQueryLoader(null, 3 * TsdbQueryLoader.rowBytes(row));
+    final TsdbQueryDto query = new TsdbQueryDto();
+    for (int i = 0; i < 3; i++) {
+      loader.charge(query, row);
+    }
+    assertEquals(before + 3 * TsdbQueryLoader.rowBytes(row),
+                 TsdbQueryLoader.total_loaded_bytes.get());
+    try {
+      loader.charge(query, row);
+      fail("loaded more rows than the budget allows");
+    } catch (QueryTooLargeException e) {
+      assertTrue(e.getMessage().contains("tsd.query.max_bytes"));
+    }
+    loader.release();
+    assertEquals(before, TsdbQueryLoader.total_loaded_bytes.get());
+    // Rows of sub-queries still in flight aren't accounted for anymore.
+    loader.charge(query, row);
+    assertEquals(before, TsdbQueryLoader.total_loaded_bytes.get());
+  }
+
+}
@@ -0,0 +1,197 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.hbase.async.RecoverableException;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class, UniqueId.class })
+public final class TestWriteSpool {
+
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+  private final UniqueId metrics = mock(UniqueId.class);
+
+  /** Data points written to HBase.  */
+  private final List<PutRequest> written =
+    Collections.synchronizedList(new ArrayList<PutRequest>());
+  /** Whether HBase accepts writes.  */
+  private volatile boolean hbase_up;
+
+  private File dir;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "client", client);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    when(metrics.width()).thenReturn((short) 3);
+    when(client.put(any(PutRequest.class))).thenAnswer(
+      new Answer<Deferred<Object>>() {
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          if (!hbase_up) {
+            return Deferred.fromError(mock(RecoverableException.class));
+          }
+          written.add((PutRequest) invocation.getArguments()[0]);
+          return Deferred.fromResult(null);
+        }
+      });
+    dir = File.createTempFile("spool", null);
+    assertTrue(dir.delete());
+  }
+
+  @After
+  public void after() {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void tornRecordIsSkippedOnRestart() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb, dir);
+    for (int i = 0; i < 3; i++) {
+      spool.put(point(i)).join();
+    }
+    spool.shutdown();
+    assertTrue(written.isEmpty());
+    final File segment = new File(dir, "spool.0");
+    final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 3);
+    file.close();
+
+    hbase_up = true;
+    final WriteSpool restarted = new WriteSpool(tsdb, dir);
+    restarted.start();
+    try {
+      awaitDeleted(segment);
+    } finally {
+      restarted.shutdown();
+    }
+    assertEquals(2, written.size());
+    assertArrayEquals(value(0), written.get(0).value());
+    assertArrayEquals(value(1), written.get(1).value());
+    assertEquals(1, stat(restarted, "spool.errors", "type=corrupted"));
+  }
+
+  @Test
+  public void segmentBeingWrittenIsReplayedAndDeleted() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb, dir);
+    spool.put(point(0)).join();
+    spool.put(point(1)).join();
+    assertEquals(1, stat(spool, "spool.spooling", null));
+    final File segment = new File(dir, "spool.0");
+    assertTrue(segment.exists());
+
+    hbase_up = true;
+    spool.start();
+    try {
+      awaitDeleted(segment);
+      // HBase is back, new data points are no longer spooled.
+      spool.put(point(2)).join();
+    } finally {
+      spool.shutdown();
+    }
+    assertEquals(3, written.size());
+    assertArrayEquals(value(2), written.get(2).value());
+    assertEquals(0, stat(spool, "spool.active", null));
+    assertEquals(0, stat(spool, "spool.spooling", null));
+    assertFalse(new File(dir, "spool.1").exists());
+  }
+
+  private static PutRequest point(final int i) {
+    final byte[] key = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0x00, 0, 0, 1,
+                         0, 0, 2 };
+    return new PutRequest(TABLE, key, TSDB.FAMILY,
+                          Bytes.fromShort((short) (i << Const.FLAG_BITS | 7)),
+                          value(i));
+  }
+
+  private static byte[] value(final int i) {
+    return Bytes.fromLong(42 + i);
+  }
+
+  private static void awaitDeleted(final File file) throws Exception {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (file.exists()) {
+      assertTrue("timed out waiting for " + file + " to be replayed",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /** Returns the value of the given stat of the spool.  */
+  private static long stat(final WriteSpool spool, final String name,
+                           final String tags) {
+    final ArrayList<String> lines = new ArrayList<String>();
+    spool.collectStats(new StatsCollector("tsd") {
+      public void emit(final String datapoint) {
+        lines.add(datapoint.trim());
+      }
+    });
+    for (final String line : lines) {
+      final String[] words = line.split(" ");
+      if (words[0].equals("tsd." + name)
+          && (tags == null ? words.length == 3
+              : words.length == 4 && words[3].equals(tags))) {
+        return Long.parseLong(words[2]);
+      }
+    }
+    throw new AssertionError("no stat " + name + ' ' + tags + " in "
+                             + lines);
+  }
+
+}
@@ -0,0 +1,58 @@
+package net.opentsdb.core.index.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class TestSubMetricRouter {
+    @Test
+    public void headIsNeverRouted() {
+        FederatedMetric metric = new FederatedMetric("foo");
+        Assert.assertNull(metric.router().route(tags("host=local")));
+        Assert.assertNull(metric.router().route(tags(null)));
+    }
+
+    @Test
+    public void matchesLikeLinearScan() {
+        FederatedMetric metric = new FederatedMetric("foo");
+        metric = metric.apply(add("cluster=a"));
+        metric = metric.apply(add("cluster=b dc=x"));
+        metric = metric.apply(add("dc=x"));
+        metric = metric.apply(add("cluster=a dc=y"));
+
+        String[] probes = {
+                "cluster=a", "cluster=a dc=y", "cluster=b", "cluster=b dc=x",
+                "cluster=c dc=x", "dc=y", "host=local", null
+        };
+        for (String probe : probes) {
+            Map<String, String> tags = tags(probe);
+            Assert.assertSame(probe, linear(metric, tags), metric.router().route(tags));
+        }
+    }
+
+    private static SubMetric linear(FederatedMetric metric, Map<String, String> tags) {
+        for (SubMetric item : metric.subMetrics) {
+            if (item.isMatch(tags)) return item;
+        }
+        return null;
+    }
+
+    private static Change add(String tags) {
+        Change change = new Change();
+        change.type = Change.ChangeType.ADD;
+        change.ts = 0L;
+        change.tags = tags(tags);
+        return change;
+    }
+
+    private static Map<String, String> tags(String tags) {
+        Map<String, String> parsed = new HashMap<String, String>();
+        if (tags==null) return parsed;
+        for (String pair : tags.split(" ")) {
+            String[] parts = pair.split("=");
+            parsed.put(parts[0], parts[1]);
+        }
+        return parsed;
+    }
+}
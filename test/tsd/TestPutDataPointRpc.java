@@ -0,0 +1,118 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import org.hbase.async.HBaseException;
+
+import net.opentsdb.core.RowKeyTemplate;
+import net.opentsdb.core.TSDB;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, RowKeyTemplate.class })
+public final class TestPutDataPointRpc {
+
+  private static final long TIMESTAMP = 1356998400L;
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final Channel chan = mock(Channel.class);
+  private final PutDataPointRpc rpc = new PutDataPointRpc();
+
+  @Before
+  public void before() {
+    when(chan.isConnected()).thenReturn(true);
+    when(chan.isOpen()).thenReturn(true);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    when(tsdb.tryMapMetricToSubMetric(anyString(), anyLong(),
+                                      anyMapOf(String.class, String.class)))
+      .thenAnswer(new Answer<String>() {
+        public String answer(final InvocationOnMock invocation) {
+          return (String) invocation.getArguments()[0];
+        }
+      });
+    when(tsdb.rowKeyTemplate(anyString(),
+                             anyMapOf(String.class, String.class)))
+      .thenReturn(mock(RowKeyTemplate.class));
+    when(tsdb.addPoint(any(RowKeyTemplate.class), anyLong(), anyLong()))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @Test
+  public void seriesAreResolvedOncePerBatch() {
+    final PutDecoder.Batch batch = new PutDecoder.Batch(3);
+    batch.add(point("web01", 0));
+    batch.add(point("web02", 0));
+    batch.add(point("web01", 10));
+    rpc.execute(tsdb, chan, batch);
+    verify(tsdb, times(2)).rowKeyTemplate(anyString(),
+                                          anyMapOf(String.class, String.class));
+    verify(tsdb, times(3)).addPoint(any(RowKeyTemplate.class), anyLong(),
+                                    anyLong());
+    verify(chan).write("putbatch: 3 ok, 0 failed\n");
+  }
+
+  @Test
+  public void unexpectedErrorsAreCountedAsFailures() {
+    final PutDecoder.DataPoint bad = point("web02", 0);
+    when(tsdb.rowKeyTemplate(eq("sys.cpu"), eq(bad.tags)))
+      .thenThrow(mock(HBaseException.class));
+    final PutDecoder.Batch batch = new PutDecoder.Batch(3);
+    batch.add(point("web01", 0));
+    batch.add(bad);
+    batch.add(point("web01", 10));
+    rpc.execute(tsdb, chan, batch);
+    verify(tsdb, times(2)).addPoint(any(RowKeyTemplate.class), anyLong(),
+                                    anyLong());
+    verify(chan).write(startsWith("putbatch: 2 ok, 1 failed, first error:"
+                                  + " line 2: HBase error"));
+  }
+
+  private static PutDecoder.DataPoint point(final String host,
+                                            final int delta) {
+    final PutDecoder.DataPoint dp = new PutDecoder.DataPoint();
+    dp.metric = "sys.cpu";
+    dp.timestamp = TIMESTAMP + delta;
+    dp.is_integer = true;
+    dp.long_value = 42;
+    dp.tags.put("host", host);
+    return dp;
+  }
+
+}
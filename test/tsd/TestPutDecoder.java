@@ -0,0 +1,110 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestPutDecoder {
+
+  private final PutDecoder decoder = new PutDecoder(new WordSplitter());
+
+  @Test
+  public void integerPut() throws Exception {
+    final PutDecoder.DataPoint dp =
+      (PutDecoder.DataPoint) decode("put sys.cpu 1356998400 -42 host=web01 cpu=0");
+    assertEquals("sys.cpu", dp.metric);
+    assertEquals(1356998400L, dp.timestamp);
+    assertTrue(dp.is_integer);
+    assertEquals(-42L, dp.long_value);
+    assertEquals(2, dp.tags.size());
+    assertEquals("web01", dp.tags.get("host"));
+    assertEquals("0", dp.tags.get("cpu"));
+  }
+
+  @Test
+  public void floatPut() throws Exception {
+    final PutDecoder.DataPoint dp =
+      (PutDecoder.DataPoint) decode("put sys.load 1356998400 0.75 host=web01");
+    assertFalse(dp.is_integer);
+    assertEquals(0.75f, dp.float_value, 0.0f);
+  }
+
+  @Test
+  public void extraSpacesBetweenTags() throws Exception {
+    final PutDecoder.DataPoint dp =
+      (PutDecoder.DataPoint) decode("put m 1 1  a=b  c=d ");
+    assertEquals(2, dp.tags.size());
+  }
+
+  @Test
+  public void namesAreReused() throws Exception {
+    final String metric =
+      ((PutDecoder.DataPoint) decode("put m 1 1 host=a")).metric;
+    assertSame(metric,
+               ((PutDecoder.DataPoint) decode("put m 2 1 host=a")).metric);
+  }
+
+  @Test
+  public void batch() throws Exception {
+    assertNull(decode("putbatch 3"));
+    assertNull(decode("put m 1 1 a=b"));
+    assertNull(decode("m 2 2.5 a=b"));
+    final PutDecoder.Batch batch = (PutDecoder.Batch) decode("m 3 x a=b");
+    assertEquals(3, batch.size());
+    assertEquals(1L, ((PutDecoder.DataPoint) batch.get(0)).timestamp);
+    assertEquals(2.5f, ((PutDecoder.DataPoint) batch.get(1)).float_value, 0.0f);
+    assertArrayEquals(new String[] { "put", "m", "3", "x", "a=b" },
+                      (String[]) batch.get(2));
+    // Back to normal after the batch.
+    assertTrue(decode("put m 4 1 a=b") instanceof PutDecoder.DataPoint);
+  }
+
+  @Test
+  public void invalidBatchSize() throws Exception {
+    assertFallback("putbatch 0");
+    assertFallback("putbatch " + (PutDecoder.MAX_BATCH_SIZE + 1));
+    assertFallback("putbatch x");
+  }
+
+  @Test  // Anything unusual goes through the WordSplitter.
+  public void fallback() throws Exception {
+    assertArrayEquals(new String[] { "version" }, (String[]) decode("version"));
+    assertFallback("put m 1 1");              // No tags.
+    assertFallback("put  m 1 1 a=b");         // Empty metric.
+    assertFallback("put m -1 1 a=b");         // Negative timestamp.
+    assertFallback("put m 1 1x a=b");         // Invalid value.
+    assertFallback("put m 1 99999999999999999999 a=b");  // Overflow.
+    assertFallback("put m 1 1 a=b=c");        // Invalid tag.
+    assertFallback("put m 1 1 a=b a=c");      // Duplicate tag.
+  }
+
+  private void assertFallback(final String line) throws Exception {
+    assertTrue(line, decode(line) instanceof String[]);
+  }
+
+  private Object decode(final String line) throws Exception {
+    return decoder.decode(null, null,
+      ChannelBuffers.wrappedBuffer(line.getBytes(Charset.forName("ISO-8859-1"))));
+  }
+
+}